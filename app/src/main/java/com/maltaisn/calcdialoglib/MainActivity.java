@@ -64,6 +64,7 @@ public class MainActivity extends AppCompatActivity implements CalcDialog.CalcDi
         final CheckBox exprEditableChk = findViewById(R.id.chk_expr_editable);
         final CheckBox showAnswerBtnChk = findViewById(R.id.chk_show_answer_btn);
         final CheckBox showSignBtnChk = findViewById(R.id.chk_show_sign_btn);
+        final CheckBox showFunctionBtnsChk = findViewById(R.id.chk_show_function_btns);
         final CheckBox applyOrderOpChk = findViewById(R.id.chk_order_operation);
         final CheckBox evalOnOperationChk = findViewById(R.id.chk_eval_operation);
         final CheckBox showZeroChk = findViewById(R.id.chk_show_zero);
@@ -158,6 +159,7 @@ public class MainActivity extends AppCompatActivity implements CalcDialog.CalcDi
                         .setExpressionEditable(exprEditableChk.isChecked())
                         .setAnswerBtnShown(showAnswerBtnChk.isChecked())
                         .setSignBtnShown(showSignBtnChk.isChecked())
+                        .setFunctionBtnsShown(showFunctionBtnsChk.isChecked())
                         .setOrderOfOperationsApplied(applyOrderOpChk.isChecked())
                         .setShouldEvaluateOnOperation(evalOnOperationChk.isChecked())
                         .setZeroShownWhenNoValue(showZeroChk.isChecked())
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Cache of frequently used BigDecimal instances: small values with up to two decimal places,
+ * like the numbers typed by the user, and powers of ten, like stripped results.
+ * Values are only shared if they have the same unscaled value and scale, so that
+ * an interned value is always {@link BigDecimal#equals(Object)} to the original value.
+ * Instances are created when first needed.
+ */
+final class BigDecimalCache {
+
+    /** Maximum absolute unscaled value cached for each scale. */
+    static final int MAX_UNSCALED = 1000;
+
+    /** Maximum scale of cached small values. */
+    static final int MAX_SCALE = 2;
+
+    /** Maximum exponent of cached powers of ten. */
+    static final int MAX_POWER = 18;
+
+    private static final BigDecimal[][] SMALL_VALUES = new BigDecimal[MAX_SCALE + 1][MAX_UNSCALED * 2 + 1];
+    private static final BigDecimal[] POWERS_OF_TEN = new BigDecimal[MAX_POWER + 1];
+    private static final BigInteger[] BIG_POWERS_OF_TEN = new BigInteger[MAX_POWER + 1];
+
+    static {
+        SMALL_VALUES[0][MAX_UNSCALED] = BigDecimal.ZERO;
+        SMALL_VALUES[0][MAX_UNSCALED + 1] = BigDecimal.ONE;
+        SMALL_VALUES[0][MAX_UNSCALED + 10] = BigDecimal.TEN;
+        BIG_POWERS_OF_TEN[0] = BigInteger.ONE;
+        BIG_POWERS_OF_TEN[1] = BigInteger.TEN;
+    }
+
+    private BigDecimalCache() {
+        // Utility class
+    }
+
+    /**
+     * Get a BigDecimal with an unscaled value and a scale, cached if possible.
+     */
+    @NonNull
+    static BigDecimal valueOf(long unscaled, int scale) {
+        if (scale >= 0 && scale <= MAX_SCALE && unscaled >= -MAX_UNSCALED && unscaled <= MAX_UNSCALED) {
+            BigDecimal[] values = SMALL_VALUES[scale];
+            int index = (int) unscaled + MAX_UNSCALED;
+            BigDecimal value = values[index];
+            if (value == null) {
+                // BigDecimal is immutable so a race only creates an extra instance.
+                value = BigDecimal.valueOf(unscaled, scale);
+                values[index] = value;
+            }
+            return value;
+        } else if (unscaled == 1 && scale < 0 && scale >= -MAX_POWER) {
+            BigDecimal value = POWERS_OF_TEN[-scale];
+            if (value == null) {
+                value = BigDecimal.valueOf(1, scale);
+                POWERS_OF_TEN[-scale] = value;
+            }
+            return value;
+        }
+        return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    /**
+     * Get the cached instance equal to a value, or the value itself if not cached.
+     */
+    @Nullable
+    static BigDecimal intern(@Nullable BigDecimal value) {
+        if (value == null || value.precision() > 4) {
+            // Cached values have at most 4 digits.
+            return value;
+        }
+        int scale = value.scale();
+        if (scale > MAX_SCALE || scale < -MAX_POWER) {
+            return value;
+        }
+        return valueOf(value.unscaledValue().longValue(), scale);
+    }
+
+    /**
+     * Parse a plain decimal string, as typed by the user, without going through a string
+     * parser for short values. Exponents aren't supported.
+     * @throws NumberFormatException if the string isn't a valid number.
+     */
+    @NonNull
+    static BigDecimal parse(@NonNull String str) {
+        int length = str.length();
+        if (length > 18) {
+            // Might not fit in a long.
+            return intern(new BigDecimal(str));
+        }
+
+        long unscaled = 0;
+        int scale = -1;
+        int digits = 0;
+        boolean negative = false;
+        for (int i = 0; i < length; i++) {
+            char c = str.charAt(i);
+            if (c >= '0' && c <= '9') {
+                unscaled = unscaled * 10 + (c - '0');
+                digits++;
+                if (scale != -1) scale++;
+            } else if (c == '.' && scale == -1) {
+                scale = 0;
+            } else if (c == '-' && i == 0) {
+                negative = true;
+            } else {
+                throw new NumberFormatException("Invalid number: " + str);
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid number: " + str);
+        }
+        return valueOf(negative ? -unscaled : unscaled, Math.max(scale, 0));
+    }
+
+    /**
+     * Compare two values, checking reference equality first.
+     * @see BigDecimal#compareTo(BigDecimal)
+     */
+    static int compare(@NonNull BigDecimal a, @NonNull BigDecimal b) {
+        if (a == b) return 0;
+        return a.compareTo(b);
+    }
+
+    /**
+     * Returns whether a value is zero, checking the cached zero first.
+     */
+    static boolean isZero(@NonNull BigDecimal value) {
+        return value == BigDecimal.ZERO || value.signum() == 0;
+    }
+
+    /**
+     * Get ten to the power of an exponent as a BigInteger, cached for small exponents.
+     */
+    @NonNull
+    static BigInteger bigPowerOfTen(int exponent) {
+        if (exponent > MAX_POWER) {
+            return BigInteger.TEN.pow(exponent);
+        }
+        BigInteger value = BIG_POWERS_OF_TEN[exponent];
+        if (value == null) {
+            value = BigInteger.TEN.pow(exponent);
+            BIG_POWERS_OF_TEN[exponent] = value;
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Scientific functions computed on decimal numbers to any scale, without using doubles.
+ * Intermediate results are computed with a few more digits than the requested scale,
+ * and the result is then rounded to the scale with the rounding mode. Square roots are
+ * always correctly rounded, other functions are correct except in very rare cases where
+ * the exact result is extremely close to a rounding boundary.
+ * <p>
+ * The constants e, ln 2 and ln 10 are cached with the most digits computed so far,
+ * and rounded when fewer digits are needed.
+ */
+final class BigDecimalMath {
+
+    /** Extra digits used in intermediate results. */
+    private static final int GUARD_DIGITS = 10;
+
+    /** Maximum number of integer digits of a result, more is considered an overflow. */
+    static final int MAX_RESULT_DIGITS = 100000;
+
+    /** Maximum number of digits of an integer power computed exactly. */
+    private static final int MAX_EXACT_POWER_DIGITS = 10000;
+
+    /** Maximum absolute value of an integer exponent, as supported by {@link BigDecimal#pow(int)}. */
+    private static final int MAX_INT_EXPONENT = 999999999;
+
+    private static final BigDecimal HALF = new BigDecimal("0.5");
+    private static final BigDecimal THREE = BigDecimal.valueOf(3);
+    private static final BigDecimal NINE = BigDecimal.valueOf(9);
+
+    private static final double LOG10_E = Math.log10(Math.E);
+    private static final double LN_2 = Math.log(2);
+
+    // Cached constants, their scale is the number of fraction digits computed.
+    private static BigDecimal e;
+    private static BigDecimal ln2;
+    private static BigDecimal ln10;
+
+    private BigDecimalMath() {
+        // Utility class
+    }
+
+    /**
+     * Thrown when a function is used outside of its domain, or if the result is too large.
+     */
+    static final class DomainException extends ArithmeticException {
+
+        private static final long serialVersionUID = 1L;
+
+        DomainException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Compute the square root of a number.
+     * @throws DomainException If the number is negative.
+     */
+    @NonNull
+    static BigDecimal sqrt(@NonNull BigDecimal x, int scale, @NonNull RoundingMode roundingMode) {
+        if (x.signum() < 0) {
+            throw new DomainException("Square root of a negative number.");
+        }
+
+        // Compute the integer square root with at least one more digit than needed and an
+        // exact radicand, then round it with the remainder as sticky digit.
+        int workScale = Math.max(scale, (x.scale() + 1) / 2) + 1;
+        BigInteger n = x.unscaledValue().multiply(
+                BigDecimalCache.bigPowerOfTen(2 * workScale - x.scale()));
+        BigInteger s = isqrt(n);
+        BigInteger digits = s.multiply(BigInteger.TEN);
+        if (!s.multiply(s).equals(n)) {
+            digits = digits.add(BigInteger.ONE);
+        }
+        return new BigDecimal(digits, workScale + 1).setScale(scale, roundingMode);
+    }
+
+    /**
+     * Compute e raised to the power of a number.
+     * @throws DomainException If the result is too large.
+     */
+    @NonNull
+    static BigDecimal exp(@NonNull BigDecimal x, int scale, @NonNull RoundingMode roundingMode) {
+        if (x.signum() == 0) {
+            return BigDecimal.ONE.setScale(scale, roundingMode);
+        }
+
+        double digits = x.doubleValue() * LOG10_E;
+        if (digits > MAX_RESULT_DIGITS) {
+            throw new DomainException("Overflow.");
+        } else if (digits < -(scale + GUARD_DIGITS)) {
+            return roundTiny(false, scale, roundingMode);
+        }
+
+        // Split the exponent in integer and fraction parts: e^x = e^n × e^r, with |r| <= 0.5.
+        BigDecimal n = x.setScale(0, RoundingMode.HALF_EVEN);
+        BigDecimal r = x.subtract(n);
+        int ni = n.intValueExact();
+        int precision = Math.max(0, (int) Math.ceil(digits)) + scale + GUARD_DIGITS
+                + getDigitCount(ni);
+
+        BigDecimal result = expSeries(r, precision);
+        if (ni != 0) {
+            MathContext mc = new MathContext(precision);
+            result = getE(precision + getDigitCount(ni)).pow(ni, mc).multiply(result, mc);
+        }
+        return result.setScale(scale, roundingMode);
+    }
+
+    /**
+     * Compute the natural logarithm of a number.
+     * @throws DomainException If the number isn't positive.
+     */
+    @NonNull
+    static BigDecimal ln(@NonNull BigDecimal x, int scale, @NonNull RoundingMode roundingMode) {
+        return lnUnrounded(x, scale + GUARD_DIGITS).setScale(scale, roundingMode);
+    }
+
+    /**
+     * Compute the base 10 logarithm of a number. Powers of ten give an exact result.
+     * @throws DomainException If the number isn't positive.
+     */
+    @NonNull
+    static BigDecimal log10(@NonNull BigDecimal x, int scale, @NonNull RoundingMode roundingMode) {
+        if (x.signum() <= 0) {
+            throw new DomainException("Logarithm of a non-positive number.");
+        }
+        BigDecimal stripped = x.stripTrailingZeros();
+        if (stripped.unscaledValue().equals(BigInteger.ONE)) {
+            return BigDecimal.valueOf(-stripped.scale()).setScale(scale, roundingMode);
+        }
+
+        int work = scale + GUARD_DIGITS + getDigitCount(x.precision() - x.scale());
+        return HighPrecisionMath.divide(lnUnrounded(x, work), getLn10(work), scale, roundingMode);
+    }
+
+    /**
+     * Raise a number to the power of another. Integer powers of numbers with few digits
+     * are exact, like products. Other powers are rounded to the scale, like quotients.
+     * @throws DomainException If a negative number is raised to a fractional power,
+     *                         or if the result is too large.
+     * @throws ArithmeticException If zero is raised to a negative power.
+     */
+    @NonNull
+    static BigDecimal pow(@NonNull BigDecimal x, @NonNull BigDecimal y,
+                          int scale, @NonNull RoundingMode roundingMode) {
+        BigDecimal yStripped = y.stripTrailingZeros();
+        boolean isInteger = yStripped.scale() <= 0
+                && yStripped.abs().compareTo(BigDecimal.valueOf(MAX_INT_EXPONENT)) <= 0;
+
+        if (x.signum() == 0) {
+            if (y.signum() < 0) {
+                throw new ArithmeticException("Division by zero");
+            }
+            return (y.signum() == 0) ? BigDecimal.ONE : BigDecimal.ZERO;
+        } else if (x.signum() < 0 && !isInteger) {
+            throw new DomainException("Fractional power of a negative number.");
+        }
+
+        double digits = y.doubleValue() * getLog10(x);
+        if (digits > MAX_RESULT_DIGITS) {
+            throw new DomainException("Overflow.");
+        }
+
+        if (isInteger) {
+            int n = yStripped.intValueExact();
+            if ((long) Math.abs(n) * x.precision() <= MAX_EXACT_POWER_DIGITS) {
+                BigDecimal p = x.pow(Math.abs(n));
+                return (n >= 0) ? p : HighPrecisionMath.divide(BigDecimal.ONE, p, scale, roundingMode);
+            } else if (digits < -(scale + GUARD_DIGITS)) {
+                return roundTiny(x.signum() < 0 && n % 2 != 0, scale, roundingMode);
+            }
+            MathContext mc = new MathContext(Math.max(0, (int) Math.ceil(digits))
+                    + scale + GUARD_DIGITS + getDigitCount(n));
+            return x.pow(n, mc).setScale(scale, roundingMode);
+        }
+
+        if (digits < -(scale + GUARD_DIGITS)) {
+            return roundTiny(false, scale, roundingMode);
+        }
+
+        // x^y = e^(y × ln x), the logarithm needs more digits if y is large.
+        int lnDigits = Math.max(0, (int) Math.ceil(digits)) + scale + GUARD_DIGITS
+                + Math.max(0, y.precision() - y.scale());
+        return exp(y.multiply(lnUnrounded(x, lnDigits)), scale, roundingMode);
+    }
+
+    /**
+     * Round a number much smaller than the last digit of the scale. The result is zero,
+     * except for rounding modes rounding away from zero.
+     */
+    private static BigDecimal roundTiny(boolean negative, int scale, RoundingMode roundingMode) {
+        BigDecimal tiny = BigDecimal.ONE.movePointLeft(scale + GUARD_DIGITS);
+        return (negative ? tiny.negate() : tiny).setScale(scale, roundingMode);
+    }
+
+    /**
+     * Compute the natural logarithm of a number with a number of fraction digits,
+     * the last digits being possibly wrong.
+     */
+    private static BigDecimal lnUnrounded(BigDecimal x, int digits) {
+        if (x.signum() <= 0) {
+            throw new DomainException("Logarithm of a non-positive number.");
+        }
+
+        // x = m × 10^e with 1 <= m < 10, then m = y × 2^j with y close to 1.
+        int e = x.precision() - x.scale() - 1;
+        BigDecimal m = x.movePointLeft(e);
+        int j = (int) Math.round(Math.log(m.doubleValue()) / LN_2);
+        BigDecimal y = m.multiply(HALF.pow(j));
+
+        // ln x = e × ln 10 + j × ln 2 + ln y
+        int work = digits + getDigitCount(e) + 2;
+        BigDecimal z = y.subtract(BigDecimal.ONE).divide(y.add(BigDecimal.ONE),
+                work, RoundingMode.HALF_EVEN);
+        BigDecimal result = atanh(z, work).multiply(BigDecimal.valueOf(2));
+        if (e != 0) {
+            result = result.add(getLn10(work).multiply(BigDecimal.valueOf(e)));
+        }
+        if (j != 0) {
+            result = result.add(getLn2(work).multiply(BigDecimal.valueOf(j)));
+        }
+        return result.setScale(digits, RoundingMode.HALF_EVEN);
+    }
+
+    /**
+     * Compute e^r for a small r with its Taylor series, with a number of fraction digits.
+     * The argument is first divided by 2^k, and the result is squared k times.
+     */
+    private static BigDecimal expSeries(BigDecimal r, int digits) {
+        int k = Math.min(64, (int) Math.sqrt(digits));
+        int work = digits + k / 3 + 2;
+        BigDecimal y = r.multiply(HALF.pow(k)).setScale(work, RoundingMode.HALF_EVEN);
+
+        BigDecimal sum = BigDecimal.ONE;
+        BigDecimal term = BigDecimal.ONE;
+        for (int i = 1; ; i++) {
+            term = HighPrecisionMath.divide(HighPrecisionMath.multiply(term, y),
+                    BigDecimal.valueOf(i), work, RoundingMode.HALF_EVEN);
+            if (term.signum() == 0) break;
+            sum = sum.add(term);
+        }
+        for (int i = 0; i < k; i++) {
+            sum = HighPrecisionMath.multiply(sum, sum).setScale(work, RoundingMode.HALF_EVEN);
+        }
+        return sum;
+    }
+
+    /**
+     * Compute atanh(z) = z + z^3/3 + z^5/5 + ... for a small z, with a number of fraction digits.
+     */
+    private static BigDecimal atanh(BigDecimal z, int digits) {
+        int work = digits + 2;
+        BigDecimal z2 = HighPrecisionMath.multiply(z, z).setScale(work, RoundingMode.HALF_EVEN);
+        BigDecimal power = z.setScale(work, RoundingMode.HALF_EVEN);
+        BigDecimal sum = power;
+        for (int i = 3; ; i += 2) {
+            power = HighPrecisionMath.multiply(power, z2).setScale(work, RoundingMode.HALF_EVEN);
+            BigDecimal term = power.divide(BigDecimal.valueOf(i), work, RoundingMode.HALF_EVEN);
+            if (term.signum() == 0) break;
+            sum = sum.add(term);
+        }
+        return sum;
+    }
+
+    /**
+     * Get e with a number of fraction digits.
+     */
+    private static synchronized BigDecimal getE(int digits) {
+        if (e == null || e.scale() < digits) {
+            e = expSeries(BigDecimal.ONE, digits + GUARD_DIGITS);
+        }
+        return e.setScale(digits, RoundingMode.HALF_EVEN);
+    }
+
+    /**
+     * Get ln 2 with a number of fraction digits, computed as 2 × atanh(1/3).
+     */
+    private static synchronized BigDecimal getLn2(int digits) {
+        if (ln2 == null || ln2.scale() < digits) {
+            int work = digits + GUARD_DIGITS;
+            BigDecimal third = BigDecimal.ONE.divide(THREE, work, RoundingMode.HALF_EVEN);
+            ln2 = atanh(third, work).multiply(BigDecimal.valueOf(2));
+        }
+        return ln2.setScale(digits, RoundingMode.HALF_EVEN);
+    }
+
+    /**
+     * Get ln 10 with a number of fraction digits, computed as 3 × ln 2 + ln 1.25,
+     * where ln 1.25 = 2 × atanh(1/9).
+     */
+    private static synchronized BigDecimal getLn10(int digits) {
+        if (ln10 == null || ln10.scale() < digits) {
+            int work = digits + GUARD_DIGITS;
+            BigDecimal ninth = BigDecimal.ONE.divide(NINE, work, RoundingMode.HALF_EVEN);
+            ln10 = getLn2(work).multiply(THREE)
+                    .add(atanh(ninth, work).multiply(BigDecimal.valueOf(2)));
+        }
+        return ln10.setScale(digits, RoundingMode.HALF_EVEN);
+    }
+
+    /**
+     * Get an approximation of the base 10 logarithm of the absolute value of a number,
+     * which must not be zero. Works for numbers too large or too small for a double.
+     */
+    private static double getLog10(BigDecimal x) {
+        int precision = x.precision();
+        double leading = new BigDecimal(x.unscaledValue().abs(), precision - 1).doubleValue();
+        return Math.log10(leading) + precision - x.scale() - 1;
+    }
+
+    /**
+     * Integer square root of a non-negative integer, rounded down.
+     */
+    private static BigInteger isqrt(BigInteger n) {
+        if (n.signum() == 0) {
+            return BigInteger.ZERO;
+        }
+
+        // Start with an estimate from a double, then use Newton's method. After the first
+        // iteration, the estimate is never below the root and decreases until it's reached.
+        int shift = Math.max(0, n.bitLength() - 100) & ~1;
+        double root = Math.sqrt(n.shiftRight(shift).doubleValue());
+        BigInteger x = BigDecimal.valueOf(root).toBigInteger().add(BigInteger.ONE).shiftLeft(shift / 2);
+        x = x.add(HighPrecisionMath.divideAndRemainder(n, x)[0]).shiftRight(1);
+        while (true) {
+            BigInteger y = x.add(HighPrecisionMath.divideAndRemainder(n, x)[0]).shiftRight(1);
+            if (y.compareTo(x) >= 0) {
+                return x;
+            }
+            x = y;
+        }
+    }
+
+    private static int getDigitCount(int n) {
+        return String.valueOf(Math.abs((long) n)).length();
+    }
+
+}
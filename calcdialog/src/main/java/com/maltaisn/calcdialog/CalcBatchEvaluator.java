@@ -0,0 +1,606 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Evaluates a UTF-8 text input with one expression per line, and writes the result of each
+ * line in order, one per line, formatted with the number format. Expressions are evaluated
+ * like with the equal button. Input is read in large chunks, or memory-mapped for files,
+ * and chunks are parsed and evaluated in parallel, without creating strings for the lines.
+ * <p>
+ * Expressions are numbers separated by operators: {@code +}, {@code -} or {@code −},
+ * {@code *}, {@code x} or {@code ×}, {@code /} or {@code ÷}, and {@code ^}. Numbers use {@code .}
+ * as decimal separator and can have a sign. Spaces are ignored and empty lines give empty lines.
+ * Lines that can't be evaluated give {@link #ERROR_SYNTAX}, {@link #ERROR_DIV_ZERO}
+ * or {@link #ERROR_INVALID}.
+ * <p>
+ * Can also be run from the command line, reading from a file or the standard input:
+ * <pre>java com.maltaisn.calcdialog.CalcBatchEvaluator [--exact] [--no-priority]
+ *     [--pattern PATTERN] [--threads N] [INPUT [OUTPUT]]</pre>
+ */
+public final class CalcBatchEvaluator {
+
+    /** Result written for a line that isn't a valid expression. */
+    public static final String ERROR_SYNTAX = "error: syntax";
+
+    /** Result written for a line where a division by zero occurred. */
+    public static final String ERROR_DIV_ZERO = "error: division by zero";
+
+    /** Result written for a line with an invalid power, or a result too large. */
+    public static final String ERROR_INVALID = "error: invalid operation";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Default size of the chunks of input processed by a task. */
+    private static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+
+    /** Maximum number of digits of a number parsed to a long, more are parsed to a BigDecimal. */
+    private static final int MAX_LONG_DIGITS = 18;
+
+    @NonNull
+    private final NumberFormat nbFormat;
+    private final boolean priority;
+    private final boolean exact;
+    private final int scale;
+    @NonNull
+    private final RoundingMode roundingMode;
+
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Create an evaluator using the number format, order of operations and exact evaluation
+     * settings of calculator settings.
+     */
+    public CalcBatchEvaluator(@NonNull CalcSettings settings) {
+        this(settings.getNumberFormat(), settings.isOrderOfOperationsApplied,
+                settings.isEvaluatedExactly);
+    }
+
+    CalcBatchEvaluator(@NonNull NumberFormat nbFormat, boolean priority, boolean exact) {
+        this.nbFormat = NumberFormatCache.copy(nbFormat);
+        this.priority = priority;
+        this.exact = exact;
+        this.scale = nbFormat.getMaximumFractionDigits();
+        this.roundingMode = nbFormat.getRoundingMode();
+    }
+
+    /**
+     * Set the number of threads evaluating chunks of input.
+     * By default, the number of available processors is used.
+     * @return The evaluator
+     */
+    @NonNull
+    public CalcBatchEvaluator setThreadCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        }
+        threadCount = count;
+        return this;
+    }
+
+    /**
+     * Set the size of the chunks of input, in bytes. Only changed for testing.
+     */
+    void setChunkSize(int size) {
+        chunkSize = size;
+    }
+
+    /**
+     * Evaluate a file, which is memory-mapped.
+     * @param input  The file to read expressions from.
+     * @param output The channel to write results to, not closed.
+     * @return The number of lines evaluated.
+     * @throws IOException If an error occurs while reading or writing.
+     */
+    public long evaluate(@NonNull File input, @NonNull WritableByteChannel output) throws IOException {
+        FileInputStream in = new FileInputStream(input);
+        try {
+            return evaluate(new MappedChunkReader(in.getChannel(), chunkSize), output);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Evaluate all expressions of a channel, until its end.
+     * @param input  The channel to read expressions from, not closed.
+     * @param output The channel to write results to, not closed.
+     * @return The number of lines evaluated.
+     * @throws IOException If an error occurs while reading or writing.
+     */
+    public long evaluate(@NonNull ReadableByteChannel input,
+                         @NonNull WritableByteChannel output) throws IOException {
+        return evaluate(new BufferedChunkReader(input, chunkSize), output);
+    }
+
+    private long evaluate(ChunkReader reader, WritableByteChannel output) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, "CalcBatchEvaluator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Results are written in order, limiting the number of chunks in memory.
+        ArrayDeque<Future<ChunkResult>> pending = new ArrayDeque<>();
+        long lineCount = 0;
+        try {
+            ByteBuffer chunk;
+            while ((chunk = reader.next()) != null) {
+                final ByteBuffer input = chunk;
+                pending.add(executor.submit(new Callable<ChunkResult>() {
+                    @Override
+                    public ChunkResult call() {
+                        return new ChunkEvaluator().evaluate(input);
+                    }
+                }));
+                if (pending.size() >= threadCount * 2) {
+                    lineCount += writeResult(pending.remove(), output);
+                }
+            }
+            while (!pending.isEmpty()) {
+                lineCount += writeResult(pending.remove(), output);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return lineCount;
+    }
+
+    private static int writeResult(Future<ChunkResult> future,
+                                   WritableByteChannel output) throws IOException {
+        ChunkResult result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Evaluation interrupted.");
+        } catch (ExecutionException e) {
+            throw new IOException("Evaluation failed.", e.getCause());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(result.bytes, 0, result.length);
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+        return result.lineCount;
+    }
+
+    /**
+     * State used to evaluate a chunk, owned by a single thread.
+     */
+    private final class ChunkEvaluator {
+
+        private final NumberFormat format;
+        private final Expression expression = new Expression();
+        private final ChunkResult result = new ChunkResult();
+
+        ChunkEvaluator() {
+            // Formats aren't thread-safe, each chunk uses its own copy.
+            format = NumberFormatCache.copy(nbFormat);
+        }
+
+        ChunkResult evaluate(ByteBuffer input) {
+            result.bytes = new byte[Math.max(64, input.remaining() / 2)];
+            int pos = input.position();
+            int end = input.limit();
+            while (pos < end) {
+                int lineEnd = pos;
+                while (lineEnd < end && input.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                evaluateLine(input, pos, lineEnd);
+                result.append((byte) '\n');
+                result.lineCount++;
+                pos = lineEnd + 1;
+            }
+            return result;
+        }
+
+        private void evaluateLine(ByteBuffer input, int start, int end) {
+            expression.clear();
+            boolean expectNumber = true;
+            int pos = start;
+            while (true) {
+                // Skip whitespace.
+                while (pos < end && isSpace(input.get(pos))) {
+                    pos++;
+                }
+                if (pos == end) {
+                    break;
+                }
+
+                if (expectNumber) {
+                    pos = parseNumber(input, pos, end);
+                    if (pos < 0) {
+                        result.append(ERROR_SYNTAX);
+                        return;
+                    }
+                    expectNumber = false;
+                } else {
+                    Expression.Operator op;
+                    byte b = input.get(pos);
+                    if (b == '+') {
+                        op = Expression.Operator.ADD;
+                    } else if (b == '-') {
+                        op = Expression.Operator.SUBTRACT;
+                    } else if (b == '*' || b == 'x') {
+                        op = Expression.Operator.MULTIPLY;
+                    } else if (b == '/') {
+                        op = Expression.Operator.DIVIDE;
+                    } else if (b == '^') {
+                        op = Expression.Operator.POWER;
+                    } else if (matches(input, pos, end, 0xE2, 0x88, 0x92)) {
+                        op = Expression.Operator.SUBTRACT;  // U+2212 −
+                        pos += 2;
+                    } else if (matches(input, pos, end, 0xC3, 0x97, -1)) {
+                        op = Expression.Operator.MULTIPLY;  // U+00D7 ×
+                        pos += 1;
+                    } else if (matches(input, pos, end, 0xC3, 0xB7, -1)) {
+                        op = Expression.Operator.DIVIDE;  // U+00F7 ÷
+                        pos += 1;
+                    } else {
+                        result.append(ERROR_SYNTAX);
+                        return;
+                    }
+                    pos++;
+                    expression.addOperator(op);
+                    expectNumber = true;
+                }
+            }
+
+            if (expression.getNumberCount() == 0 && expression.getOperatorCount() == 0) {
+                // Empty line.
+                return;
+            } else if (expectNumber) {
+                // Expression ends with an operator.
+                result.append(ERROR_SYNTAX);
+                return;
+            }
+
+            BigDecimal value;
+            try {
+                if (exact) {
+                    value = expression.evaluateExact(priority, scale, roundingMode);
+                } else {
+                    value = expression.evaluate(priority, scale, roundingMode);
+                }
+            } catch (BigDecimalMath.DomainException e) {
+                result.append(ERROR_INVALID);
+                return;
+            } catch (ArithmeticException e) {
+                result.append(ERROR_DIV_ZERO);
+                return;
+            }
+            result.append(format.format(value));
+        }
+
+        /**
+         * Parse a number and add it to the expression.
+         * @return The position after the number, or -1 if there's no valid number.
+         */
+        private int parseNumber(ByteBuffer input, int start, int end) {
+            int pos = start;
+            boolean negative = false;
+            byte b = input.get(pos);
+            if (b == '-' || b == '+') {
+                negative = (b == '-');
+                pos++;
+            } else if (matches(input, pos, end, 0xE2, 0x88, 0x92)) {
+                negative = true;
+                pos += 3;
+            }
+
+            long unscaled = 0;
+            int digits = 0;
+            int scale = 0;
+            boolean hasPoint = false;
+            int digitsStart = pos;
+            while (pos < end) {
+                b = input.get(pos);
+                if (b >= '0' && b <= '9') {
+                    if (digits > 0 || b != '0') {
+                        digits++;
+                    }
+                    unscaled = unscaled * 10 + (b - '0');
+                    if (hasPoint) {
+                        scale++;
+                    }
+                } else if (b == '.' && !hasPoint) {
+                    hasPoint = true;
+                } else {
+                    break;
+                }
+                pos++;
+            }
+            int length = pos - digitsStart - (hasPoint ? 1 : 0);
+            if (length == 0) {
+                return -1;
+            }
+
+            if (digits <= MAX_LONG_DIGITS) {
+                expression.addNumber(negative ? -unscaled : unscaled, scale);
+            } else {
+                // Too many digits for a long, rare enough to create a string.
+                byte[] bytes = new byte[pos - digitsStart];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = input.get(digitsStart + i);
+                }
+                BigDecimal number = new BigDecimal(new String(bytes, UTF_8));
+                expression.addNumber(negative ? number.negate() : number);
+            }
+            return pos;
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Returns whether the bytes at a position match two or three bytes, -1 for none.
+     */
+    private static boolean matches(ByteBuffer input, int pos, int end, int b1, int b2, int b3) {
+        int length = b3 == -1 ? 2 : 3;
+        return pos + length <= end && input.get(pos) == (byte) b1
+                && input.get(pos + 1) == (byte) b2
+                && (b3 == -1 || input.get(pos + 2) == (byte) b3);
+    }
+
+    /**
+     * Results of a chunk, as UTF-8 bytes.
+     */
+    private static final class ChunkResult {
+
+        byte[] bytes;
+        int length;
+        int lineCount;
+
+        void append(byte b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = b;
+        }
+
+        void append(String str) {
+            int strLength = str.length();
+            if (length + strLength > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + strLength));
+            }
+            for (int i = 0; i < strLength; i++) {
+                char c = str.charAt(i);
+                if (c >= 0x80) {
+                    // Not ASCII, encode the rest of the string.
+                    byte[] encoded = str.substring(i).getBytes(UTF_8);
+                    if (length + encoded.length > bytes.length) {
+                        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + encoded.length));
+                    }
+                    System.arraycopy(encoded, 0, bytes, length, encoded.length);
+                    length += encoded.length;
+                    return;
+                }
+                bytes[length++] = (byte) c;
+            }
+        }
+    }
+
+    /**
+     * Splits an input into chunks of complete lines.
+     */
+    private interface ChunkReader {
+        /**
+         * @return The next chunk, or null if the end of input was reached.
+         */
+        ByteBuffer next() throws IOException;
+    }
+
+    /**
+     * Reads chunks of a file by memory-mapping them.
+     */
+    private static final class MappedChunkReader implements ChunkReader {
+
+        private final FileChannel channel;
+        private final int chunkSize;
+        private final long size;
+        private long position;
+
+        MappedChunkReader(FileChannel channel, int chunkSize) throws IOException {
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.size = channel.size();
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (position >= size) {
+                return null;
+            }
+            long length = Math.min(chunkSize, size - position);
+            while (true) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                if (position + length == size) {
+                    position = size;
+                    return buffer;
+                }
+                // End the chunk after the last complete line.
+                for (int i = (int) length - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        buffer.limit(i + 1);
+                        position += i + 1;
+                        return buffer;
+                    }
+                }
+                // Line longer than the chunk.
+                length = Math.min(length * 2, size - position);
+            }
+        }
+    }
+
+    /**
+     * Reads chunks of a channel into large buffers.
+     */
+    private static final class BufferedChunkReader implements ChunkReader {
+
+        private final ReadableByteChannel channel;
+        private final int chunkSize;
+
+        /** Start of the next chunk, an incomplete line read with the previous chunk. */
+        private byte[] remaining = new byte[0];
+        private boolean ended;
+
+        BufferedChunkReader(ReadableByteChannel channel, int chunkSize) {
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (ended && remaining.length == 0) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(chunkSize, remaining.length * 2));
+            buffer.put(remaining);
+            while (true) {
+                while (buffer.hasRemaining() && !ended) {
+                    if (channel.read(buffer) == -1) {
+                        ended = true;
+                    }
+                }
+                int length = buffer.position();
+                if (ended) {
+                    remaining = new byte[0];
+                    buffer.flip();
+                    return length == 0 ? null : buffer;
+                }
+
+                // End the chunk after the last complete line, keep the rest for the next one.
+                for (int i = length - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        remaining = Arrays.copyOfRange(buffer.array(), i + 1, length);
+                        buffer.position(0);
+                        buffer.limit(i + 1);
+                        return buffer;
+                    }
+                }
+                // Line longer than the buffer.
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+    }
+
+    /**
+     * Evaluate a file or the standard input from the command line. Results are written to a
+     * file or to the standard output. The number format is the default one for the locale,
+     * unless a decimal format pattern is given.
+     */
+    public static void main(String[] args) throws IOException {
+        boolean exact = false;
+        boolean priority = true;
+        String pattern = null;
+        int threads = 0;
+        String inputPath = null;
+        String outputPath = null;
+
+        PrintStream err = System.err;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--exact")) {
+                exact = true;
+            } else if (arg.equals("--no-priority")) {
+                priority = false;
+            } else if (arg.equals("--pattern") && i + 1 < args.length) {
+                pattern = args[++i];
+            } else if (arg.equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (arg.startsWith("--")) {
+                err.println("Unknown option: " + arg);
+                System.exit(2);
+                return;
+            } else if (inputPath == null) {
+                inputPath = arg;
+            } else {
+                outputPath = arg;
+            }
+        }
+
+        NumberFormat format;
+        if (pattern == null) {
+            format = NumberFormatCache.getDefault(Locale.getDefault());
+        } else {
+            format = new DecimalFormat(pattern, new DecimalFormatSymbols(Locale.getDefault()));
+        }
+        CalcBatchEvaluator evaluator = new CalcBatchEvaluator(format, priority, exact);
+        if (threads > 0) {
+            evaluator.setThreadCount(threads);
+        }
+
+        FileOutputStream fileOut = outputPath != null ? new FileOutputStream(outputPath) : null;
+        WritableByteChannel output = Channels.newChannel(fileOut != null ? fileOut : System.out);
+        long startTime = System.nanoTime();
+        long lines;
+        try {
+            if (inputPath != null) {
+                lines = evaluator.evaluate(new File(inputPath), output);
+            } else {
+                lines = evaluator.evaluate(Channels.newChannel(System.in), output);
+            }
+        } finally {
+            if (fileOut != null) {
+                fileOut.close();
+            } else {
+                System.out.flush();
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        err.printf(Locale.ROOT, "%d lines in %.2f s (%.0f lines/s)%n", lines, seconds, lines / seconds);
+    }
+
+}
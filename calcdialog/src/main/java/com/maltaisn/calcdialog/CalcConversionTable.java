@@ -0,0 +1,537 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Table of conversion rates between units or currencies, read from a local file or asset.
+ * Each line of the file gives a rate, {@code FROM TO RATE} meaning that one {@code FROM}
+ * is worth {@code RATE} {@code TO}, for example {@code USD EUR 0.92} or {@code ft m 0.3048}.
+ * Blank lines and text after {@code #} are ignored.
+ * <p>
+ * The table is read the first time it's used, and compiled to a matrix of the factors between
+ * all pairs of units, including inverse rates and cross rates derived through other units.
+ * A conversion is then a lookup in the matrix and a single multiplication. Factors are
+ * rounded to 34 significant digits, and the memory used grows with the square of the number
+ * of units. Tables are shared: the same instance is returned for a file or an asset.
+ * <p>
+ * A table is set with {@link CalcDialog#setConversionTable(CalcConversionTable)} or
+ * {@link CalcView#setConversionTable(CalcConversionTable)}, and the units converted with
+ * {@link CalcSettings#setConversionUnits(String, String)}.
+ */
+public final class CalcConversionTable {
+
+    /**
+     * Value set in the result for a fixed-point value whose conversion doesn't fit in a long,
+     * or needs rounding with {@link RoundingMode#UNNECESSARY}.
+     */
+    public static final long ERROR_VALUE = CalcFormula.ERROR_VALUE;
+
+    /** Maximum number of units in a table. */
+    public static final int MAX_UNITS = 1024;
+
+    /** Precision of the factors in the matrix. */
+    private static final MathContext FACTOR_CONTEXT = MathContext.DECIMAL128;
+
+    /** Precision used to derive cross rates, with guard digits. */
+    private static final MathContext WORK_CONTEXT = new MathContext(FACTOR_CONTEXT.getPrecision() + 8);
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /** Tables by source, so that they're read only once. */
+    private static final Map<String, CalcConversionTable> TABLES = new HashMap<>();
+
+    /** Executor shared by all tables to read them in background. */
+    private static ExecutorService loadExecutor;
+
+    @NonNull
+    private final Source source;
+
+    /** The compiled table, null until read. */
+    @Nullable
+    private volatile Matrix matrix;
+
+    /** The error that occurred when reading the table, null for none. */
+    @Nullable
+    private IOException loadError;
+
+    private CalcConversionTable(@NonNull Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Get the table read from a file.
+     * @param file The file, for example in {@link Context#getFilesDir()}.
+     */
+    @NonNull
+    public static CalcConversionTable fromFile(@NonNull final File file) {
+        return get("file:" + file.getAbsolutePath(), new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        });
+    }
+
+    /**
+     * Get the table read from an asset of the application.
+     * @param name The asset name.
+     */
+    @NonNull
+    public static CalcConversionTable fromAsset(@NonNull Context context, @NonNull final String name) {
+        final Context appContext = context.getApplicationContext();
+        return get("asset:" + name, new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return appContext.getAssets().open(name);
+            }
+        });
+    }
+
+    private static CalcConversionTable get(String key, Source source) {
+        synchronized (TABLES) {
+            CalcConversionTable table = TABLES.get(key);
+            if (table == null) {
+                table = new CalcConversionTable(source);
+                TABLES.put(key, table);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Read the table if not read yet, waiting until it's done.
+     * Other methods read the table when first needed, this can be used to check it for errors.
+     * @throws IOException If the table couldn't be read or has an invalid line.
+     * A table that couldn't be read has no units.
+     */
+    public void load() throws IOException {
+        getMatrix();
+        synchronized (this) {
+            if (loadError != null) {
+                throw loadError;
+            }
+        }
+    }
+
+    /**
+     * Start reading the table in background if not read yet, so that the first
+     * conversion doesn't wait for it.
+     */
+    void preload() {
+        if (matrix != null) {
+            return;
+        }
+        getLoadExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                getMatrix();
+            }
+        });
+    }
+
+    /**
+     * @return the units of the table, in the order they first appear.
+     */
+    @NonNull
+    public List<String> getUnits() {
+        return Collections.unmodifiableList(Arrays.asList(getMatrix().units));
+    }
+
+    /**
+     * @return the index of a unit, or -1 if the table doesn't have it.
+     */
+    public int getUnitIndex(@NonNull String unit) {
+        Integer index = getMatrix().indexes.get(unit);
+        return (index != null) ? index : -1;
+    }
+
+    /**
+     * Get the factor by which values are multiplied to convert them.
+     * @param from Index of the unit converted from.
+     * @param to   Index of the unit converted to.
+     * @return The factor, or null if there's no rate between the units, even through others.
+     */
+    @Nullable
+    public BigDecimal getFactor(int from, int to) {
+        Matrix m = getMatrix();
+        return m.factors[m.getIndex(from, to)];
+    }
+
+    /**
+     * Convert a value.
+     * @param value        The value to convert.
+     * @param from         Index of the unit converted from.
+     * @param to           Index of the unit converted to.
+     * @param scale        Number of fraction digits of the result.
+     * @param roundingMode Rounding mode of the result.
+     * @return The converted value, rounded to the scale.
+     * @throws IllegalArgumentException If there's no rate between the units.
+     */
+    @NonNull
+    public BigDecimal convert(@NonNull BigDecimal value, int from, int to,
+                              int scale, @NonNull RoundingMode roundingMode) {
+        return value.multiply(getFactorOrThrow(from, to)).setScale(scale, roundingMode);
+    }
+
+    /**
+     * Convert fixed-point values, giving exactly the same results as
+     * {@link #convert(BigDecimal, int, int, int, RoundingMode)}. Factors with at most 18 digits
+     * are also stored as longs, so most values are converted with long arithmetic only.
+     * @param values       The unscaled values to convert.
+     * @param scale        The scale of the values.
+     * @param from         Index of the unit converted from.
+     * @param to           Index of the unit converted to.
+     * @param result       Array in which the unscaled converted values are set, at least as
+     *                     large as the values. Values that can't be converted are set to
+     *                     {@link #ERROR_VALUE}.
+     * @param resultScale  The scale of the converted values.
+     * @param roundingMode Rounding mode of the converted values.
+     * @return The number of values that couldn't be converted.
+     * @throws IllegalArgumentException If there's no rate between the units.
+     */
+    public int convert(@NonNull long[] values, int scale, int from, int to,
+                       @NonNull long[] result, int resultScale, @NonNull RoundingMode roundingMode) {
+        if (result.length < values.length) {
+            throw new IllegalArgumentException("Result array is too small.");
+        }
+        Matrix m = getMatrix();
+        BigDecimal factor = getFactorOrThrow(from, to);
+        int index = m.getIndex(from, to);
+
+        // Find the power of ten by which the product of the unscaled values is divided, or
+        // multiplied if the shift is negative. If none fits in a long, use BigDecimal only.
+        long f = m.longFactors[index];
+        long shift = (long) scale + m.longScales[index] - resultScale;
+        long pow = 0;
+        if (f != 0 && Math.abs(shift) < POWERS_OF_TEN.length) {
+            pow = POWERS_OF_TEN[(int) Math.abs(shift)];
+        }
+
+        int errors = 0;
+        for (int i = 0; i < values.length; i++) {
+            long v = values[i];
+            long r = Long.MIN_VALUE;
+            if (pow != 0 && v != Long.MIN_VALUE) {
+                long p = v * f;
+                if (((Math.abs(v) | f) >>> 31) == 0 || p / f == v) {
+                    if (shift >= 0) {
+                        r = divideRounded(p, pow, roundingMode);
+                    } else {
+                        r = p * pow;
+                        if (r / pow != p) {
+                            r = Long.MIN_VALUE;
+                        }
+                    }
+                }
+            }
+            if (r == Long.MIN_VALUE) {
+                // Overflow, convert with BigDecimal.
+                r = convertBig(v, scale, factor, resultScale, roundingMode);
+                if (r == ERROR_VALUE) {
+                    errors++;
+                }
+            }
+            result[i] = r;
+        }
+        return errors;
+    }
+
+    @NonNull
+    private BigDecimal getFactorOrThrow(int from, int to) {
+        BigDecimal factor = getFactor(from, to);
+        if (factor == null) {
+            Matrix m = getMatrix();
+            throw new IllegalArgumentException("No conversion rate from "
+                    + m.units[from] + " to " + m.units[to] + ".");
+        }
+        return factor;
+    }
+
+    private static long convertBig(long value, int scale, BigDecimal factor,
+                                   int resultScale, RoundingMode roundingMode) {
+        try {
+            BigDecimal r = BigDecimal.valueOf(value, scale).multiply(factor)
+                    .setScale(resultScale, roundingMode);
+            if (r.unscaledValue().bitLength() < Long.SIZE) {
+                long unscaled = r.unscaledValue().longValue();
+                if (unscaled != ERROR_VALUE) {
+                    return unscaled;
+                }
+            }
+        } catch (ArithmeticException e) {
+            // Rounding necessary with RoundingMode.UNNECESSARY.
+        }
+        return ERROR_VALUE;
+    }
+
+    /**
+     * Divide a long by a positive power of ten and round the quotient like BigDecimal does.
+     * @return The quotient, or {@link Long#MIN_VALUE} if it can't be computed.
+     */
+    private static long divideRounded(long a, long b, RoundingMode roundingMode) {
+        if (a == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        long q = a / b;
+        long r = a % b;
+        if (r == 0) {
+            return q;
+        }
+
+        boolean negative = a < 0;
+        long absR = Math.abs(r);
+        long halfCmp = absR - (b - absR);  // Sign of 2|r| - b, without overflow.
+        boolean increment;
+        switch (roundingMode) {
+            case UP:
+                increment = true;
+                break;
+            case DOWN:
+                increment = false;
+                break;
+            case CEILING:
+                increment = !negative;
+                break;
+            case FLOOR:
+                increment = negative;
+                break;
+            case HALF_UP:
+                increment = halfCmp >= 0;
+                break;
+            case HALF_DOWN:
+                increment = halfCmp > 0;
+                break;
+            case HALF_EVEN:
+                increment = halfCmp > 0 || halfCmp == 0 && (q & 1) != 0;
+                break;
+            default:
+                // Rounding is needed with RoundingMode.UNNECESSARY.
+                return Long.MIN_VALUE;
+        }
+        return increment ? (negative ? q - 1 : q + 1) : q;
+    }
+
+    @NonNull
+    private Matrix getMatrix() {
+        Matrix m = matrix;
+        if (m != null) {
+            return m;
+        }
+        synchronized (this) {
+            if (matrix == null) {
+                try {
+                    matrix = read();
+                } catch (IOException e) {
+                    loadError = e;
+                    matrix = new Matrix(new String[0], new HashMap<String, Integer>(),
+                            new ArrayList<List<Rate>>());
+                }
+            }
+            return matrix;
+        }
+    }
+
+    private Matrix read() throws IOException {
+        List<String> units = new ArrayList<>();
+        Map<String, Integer> indexes = new HashMap<>();
+        List<List<Rate>> rates = new ArrayList<>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(source.open(), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment != -1) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) continue;
+
+                String[] parts = line.split("\\s+");
+                BigDecimal rate = null;
+                if (parts.length == 3) {
+                    try {
+                        rate = new BigDecimal(parts[2]);
+                    } catch (NumberFormatException e) {
+                        // Invalid line.
+                    }
+                }
+                if (rate == null || rate.signum() <= 0 || parts[0].equals(parts[1])) {
+                    throw new IOException("Invalid conversion rate at line " + lineNumber + ".");
+                }
+
+                int from = getOrAddUnit(parts[0], units, indexes, rates);
+                int to = getOrAddUnit(parts[1], units, indexes, rates);
+                rates.get(from).add(new Rate(to, rate, false));
+                rates.get(to).add(new Rate(from, rate, true));
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new Matrix(units.toArray(new String[0]), indexes, rates);
+    }
+
+    private static int getOrAddUnit(String unit, List<String> units, Map<String, Integer> indexes,
+                                    List<List<Rate>> rates) throws IOException {
+        Integer index = indexes.get(unit);
+        if (index == null) {
+            if (units.size() == MAX_UNITS) {
+                throw new IOException("Conversion table has more than " + MAX_UNITS + " units.");
+            }
+            index = units.size();
+            units.add(unit);
+            indexes.put(unit, index);
+            rates.add(new ArrayList<Rate>());
+        }
+        return index;
+    }
+
+    private static synchronized ExecutorService getLoadExecutor() {
+        if (loadExecutor == null) {
+            loadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "CalcConversion");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return loadExecutor;
+    }
+
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * A rate from a unit to another, or its inverse.
+     */
+    private static final class Rate {
+
+        final int to;
+        @NonNull final BigDecimal rate;
+        final boolean inverse;
+
+        Rate(int to, @NonNull BigDecimal rate, boolean inverse) {
+            this.to = to;
+            this.rate = rate;
+            this.inverse = inverse;
+        }
+    }
+
+    /**
+     * The compiled table. The factor from unit {@code i} to unit {@code j} is at
+     * index {@code i × n + j}, where {@code n} is the number of units.
+     */
+    private static final class Matrix {
+
+        @NonNull final String[] units;
+        @NonNull final Map<String, Integer> indexes;
+        @NonNull final BigDecimal[] factors;
+
+        /** Unscaled factors if they fit in a long, otherwise zero. */
+        @NonNull final long[] longFactors;
+        @NonNull final int[] longScales;
+
+        Matrix(@NonNull String[] units, @NonNull Map<String, Integer> indexes,
+               @NonNull List<List<Rate>> rates) {
+            this.units = units;
+            this.indexes = indexes;
+
+            int n = units.length;
+            factors = new BigDecimal[n * n];
+            longFactors = new long[n * n];
+            longScales = new int[n * n];
+
+            // Find the factors from each unit with a breadth-first search, so that cross
+            // rates go through as few other units as possible.
+            BigDecimal[] row = new BigDecimal[n];
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int i = 0; i < n; i++) {
+                Arrays.fill(row, null);
+                row[i] = BigDecimal.ONE;
+                queue.add(i);
+                while (!queue.isEmpty()) {
+                    int u = queue.remove();
+                    for (Rate rate : rates.get(u)) {
+                        if (row[rate.to] == null) {
+                            row[rate.to] = rate.inverse
+                                    ? row[u].divide(rate.rate, WORK_CONTEXT)
+                                    : row[u].multiply(rate.rate, WORK_CONTEXT);
+                            queue.add(rate.to);
+                        }
+                    }
+                }
+
+                for (int j = 0; j < n; j++) {
+                    if (row[j] == null) continue;
+                    BigDecimal factor = row[j].round(FACTOR_CONTEXT).stripTrailingZeros();
+                    factors[i * n + j] = factor;
+                    if (factor.unscaledValue().bitLength() < Long.SIZE) {
+                        longFactors[i * n + j] = factor.unscaledValue().longValue();
+                        longScales[i * n + j] = factor.scale();
+                    }
+                }
+            }
+        }
+
+        int getIndex(int from, int to) {
+            int n = units.length;
+            if (from < 0 || from >= n || to < 0 || to >= n) {
+                throw new IndexOutOfBoundsException("Invalid unit index.");
+            }
+            return from * n + to;
+        }
+    }
+
+}
@@ -17,7 +17,6 @@
 package com.maltaisn.calcdialog;
 
 
-import android.annotation.SuppressLint;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -25,14 +24,9 @@ import android.content.res.TypedArray;
 import android.graphics.Rect;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
-import android.view.ContextThemeWrapper;
-import android.view.LayoutInflater;
-import android.view.View;
+import android.view.KeyEvent;
 import android.view.ViewGroup;
 import android.view.Window;
-import android.widget.Button;
-import android.widget.HorizontalScrollView;
-import android.widget.TextView;
 
 import java.math.BigDecimal;
 
@@ -49,30 +43,19 @@ public class CalcDialog extends AppCompatDialogFragment {
 
     private static final String TAG = CalcDialog.class.getSimpleName();
 
-    // Indexes of text elements in R.array.calc_dialog_btn_texts
-    private static final int TEXT_INDEX_ADD = 10;
-    private static final int TEXT_INDEX_SUB = 11;
-    private static final int TEXT_INDEX_MUL = 12;
-    private static final int TEXT_INDEX_DIV = 13;
-    private static final int TEXT_INDEX_SIGN = 14;
-    private static final int TEXT_INDEX_DEC_SEP = 15;
-    private static final int TEXT_INDEX_EQUAL = 16;
-
     private Context context;
-    private CalcPresenter presenter;
+    private CalcView calcView;
 
     private CalcSettings settings = new CalcSettings();
 
-    private HorizontalScrollView expressionHsv;
-    private TextView expressionTxv;
-    private TextView valueTxv;
-    private TextView decimalSepBtn;
-    private TextView equalBtn;
-    private TextView answerBtn;
-    private TextView signBtn;
+    private final CalcStateStream stateStream = new CalcStateStream();
+
+    @Nullable
+    private CalcHistory history;
+
+    @Nullable
+    private CalcConversionTable conversionTable;
 
-    private CharSequence[] btnTexts;
-    private CharSequence[] errorMessages;
     private int[] maxDialogDimensions;
 
 
@@ -81,21 +64,15 @@ public class CalcDialog extends AppCompatDialogFragment {
     public void onAttach(Context context) {
         super.onAttach(context);
 
-        // Wrap calculator dialog's theme to context
-        TypedArray ta = context.obtainStyledAttributes(new int[]{R.attr.calcDialogStyle});
-        int style = ta.getResourceId(0, R.style.CalcDialogStyle);
-        ta.recycle();
-        this.context = new ContextThemeWrapper(context, style);
+        // Wrap calculator dialog's theme to context, the view won't wrap it again.
+        this.context = CalcView.wrapContext(context);
     }
 
     @Override
     public void onCreate(Bundle state) {
         super.onCreate(state);
 
-        // Get strings
         TypedArray ta = context.obtainStyledAttributes(R.styleable.CalcDialog);
-        btnTexts = ta.getTextArray(R.styleable.CalcDialog_calcButtonTexts);
-        errorMessages = ta.getTextArray(R.styleable.CalcDialog_calcErrors);
         maxDialogDimensions = new int[]{
                 ta.getDimensionPixelSize(R.styleable.CalcDialog_calcDialogMaxWidth, -1),
                 ta.getDimensionPixelSize(R.styleable.CalcDialog_calcDialogMaxHeight, -1)
@@ -103,150 +80,39 @@ public class CalcDialog extends AppCompatDialogFragment {
         ta.recycle();
     }
 
-    @SuppressLint("InflateParams")
     @Override
     @NonNull
     public Dialog onCreateDialog(final Bundle state) {
-        LayoutInflater inflater = LayoutInflater.from(context);
-        final View view = inflater.inflate(R.layout.dialog_calc, null);
-
-        // Value and expression views
-        valueTxv = view.findViewById(R.id.calc_txv_value);
-
-        expressionHsv = view.findViewById(R.id.calc_hsv_expression);
-        expressionTxv = view.findViewById(R.id.calc_txv_expression);
-
-        // Erase button
-        CalcEraseButton eraseBtn = view.findViewById(R.id.calc_btn_erase);
-        eraseBtn.setOnEraseListener(new CalcEraseButton.EraseListener() {
+        calcView = new CalcView(context);
+        calcView.setStateStream(stateStream);
+        calcView.setHistory(history);
+        calcView.setConversionTable(conversionTable);
+        calcView.setCallback(new CalcDialogCallback() {
             @Override
-            public void onErase() {
-                presenter.onErasedOnce();
-            }
-
-            @Override
-            public void onEraseAll() {
-                presenter.onErasedAll();
-            }
-        });
-
-        // Digit buttons
-        for (int i = 0; i < 10; i++) {
-            TextView digitBtn = view.findViewById(settings.numpadLayout.buttonIds[i]);
-            digitBtn.setText(btnTexts[i]);
-
-            final int digit = i;
-            digitBtn.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    presenter.onDigitBtnClicked(digit);
+            public void onValueEntered(int requestCode, @Nullable BigDecimal value) {
+                CalcDialogCallback cb = getCallback();
+                if (cb != null) {
+                    cb.onValueEntered(requestCode, value);
                 }
-            });
-        }
-
-        // Operator buttons
-        final TextView addBtn = view.findViewById(R.id.calc_btn_add);
-        final TextView subBtn = view.findViewById(R.id.calc_btn_sub);
-        final TextView mulBtn = view.findViewById(R.id.calc_btn_mul);
-        final TextView divBtn = view.findViewById(R.id.calc_btn_div);
-
-        addBtn.setText(btnTexts[TEXT_INDEX_ADD]);
-        subBtn.setText(btnTexts[TEXT_INDEX_SUB]);
-        mulBtn.setText(btnTexts[TEXT_INDEX_MUL]);
-        divBtn.setText(btnTexts[TEXT_INDEX_DIV]);
-
-        addBtn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                presenter.onOperatorBtnClicked(Expression.Operator.ADD);
-            }
-        });
-        subBtn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                presenter.onOperatorBtnClicked(Expression.Operator.SUBTRACT);
-            }
-        });
-        mulBtn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                presenter.onOperatorBtnClicked(Expression.Operator.MULTIPLY);
-            }
-        });
-        divBtn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                presenter.onOperatorBtnClicked(Expression.Operator.DIVIDE);
-            }
-        });
-
-        // Sign button: +/-
-        signBtn = view.findViewById(R.id.calc_btn_sign);
-        signBtn.setText(btnTexts[TEXT_INDEX_SIGN]);
-        signBtn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                presenter.onSignBtnClicked();
-            }
-        });
-
-        // Decimal separator button
-        decimalSepBtn = view.findViewById(R.id.calc_btn_decimal);
-        decimalSepBtn.setText(btnTexts[TEXT_INDEX_DEC_SEP]);
-        decimalSepBtn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                presenter.onDecimalSepBtnClicked();
-            }
-        });
-
-        // Equal button
-        equalBtn = view.findViewById(R.id.calc_btn_equal);
-        equalBtn.setText(btnTexts[TEXT_INDEX_EQUAL]);
-        equalBtn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                presenter.onEqualBtnClicked();
             }
         });
-
-        // Answer button
-        answerBtn = view.findViewById(R.id.calc_btn_answer);
-        answerBtn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                presenter.onAnswerBtnClicked();
-            }
-        });
-
-        // Dialog buttons
-        Button clearBtn = view.findViewById(R.id.calc_btn_clear);
-        clearBtn.setOnClickListener(new View.OnClickListener() {
+        calcView.setOnExitListener(new CalcView.OnExitListener() {
             @Override
-            public void onClick(View v) {
-                presenter.onClearBtnClicked();
-            }
-        });
-
-        Button cancelBtn = view.findViewById(R.id.calc_btn_cancel);
-        cancelBtn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                presenter.onCancelBtnClicked();
-            }
-        });
-
-        Button okBtn = view.findViewById(R.id.calc_btn_ok);
-        okBtn.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                presenter.onOkBtnClicked();
+            public void onExit(@NonNull CalcView view) {
+                dismissAllowingStateLoss();
             }
         });
 
         // Set up dialog
         final Dialog dialog = new Dialog(context);
         dialog.requestWindowFeature(Window.FEATURE_NO_TITLE);
+        dialog.setOnKeyListener(new DialogInterface.OnKeyListener() {
+            @Override
+            public boolean onKey(DialogInterface dialogInterface, int keyCode, KeyEvent event) {
+                // Forward hardware keyboard input to the calculator.
+                return calcView.handleKeyEvent(event);
+            }
+        });
         dialog.setOnShowListener(new DialogInterface.OnShowListener() {
             @SuppressWarnings("ConstantConditions")
             @Override
@@ -263,13 +129,10 @@ public class CalcDialog extends AppCompatDialogFragment {
                 if (height > maxDialogDimensions[1]) height = maxDialogDimensions[1];
                 dialog.getWindow().setLayout(width, height);
 
-                // Set dialog's content
-                view.setLayoutParams(new ViewGroup.LayoutParams(width, height));
-                dialog.setContentView(view);
-
-                // Presenter
-                presenter = new CalcPresenter();
-                presenter.attach(CalcDialog.this, state);
+                // Set dialog's content, the presenter is attached when settings are set.
+                calcView.setSettings(settings, state);
+                calcView.setLayoutParams(new ViewGroup.LayoutParams(width, height));
+                dialog.setContentView(calcView);
             }
         });
 
@@ -283,27 +146,27 @@ public class CalcDialog extends AppCompatDialogFragment {
     @Override
     public void onDismiss(DialogInterface dialog) {
         super.onDismiss(dialog);
-        if (presenter != null) {
-            // On config change, presenter is detached before this is called
-            presenter.onDismissed();
+        if (calcView != null) {
+            // On config change, view is detached before this is called
+            calcView.onDismissed();
         }
     }
 
     @Override
     public void onSaveInstanceState(@NonNull Bundle state) {
         super.onSaveInstanceState(state);
-        presenter.writeStateToBundle(state);
+        calcView.writeStateToBundle(state);
         state.putParcelable("settings", settings);
     }
 
     @Override
     public void onDetach() {
         super.onDetach();
-        if (presenter != null) {
-            presenter.detach();
+        if (calcView != null) {
+            calcView.detach();
         }
 
-        presenter = null;
+        calcView = null;
         context = null;
     }
 
@@ -340,57 +203,51 @@ public class CalcDialog extends AppCompatDialogFragment {
         return settings;
     }
 
-    ////////// VIEW METHODS //////////
-    void exit() {
-        dismissAllowingStateLoss();
-    }
-
-    void sendValueResult(BigDecimal value) {
-        CalcDialogCallback cb = getCallback();
-        if (cb != null) {
-            cb.onValueEntered(settings.requestCode, value);
-        }
-    }
-
-    void setExpressionVisible(boolean visible) {
-        expressionHsv.setVisibility(visible ? View.VISIBLE : View.GONE);
-    }
-
-    void setAnswerBtnVisible(boolean visible) {
-        answerBtn.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
-        equalBtn.setVisibility(visible ? View.INVISIBLE : View.VISIBLE);
-    }
-
-    void setSignBtnVisible(boolean visible) {
-        signBtn.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
+    /**
+     * @return the log of keys pressed since the dialog was shown, or null if the dialog
+     * isn't shown or if {@link CalcSettings#isKeyLogRecorded()} is false.
+     */
+    @Nullable
+    public CalcKeyLog getKeyLog() {
+        return calcView != null ? calcView.getKeyLog() : null;
     }
 
-    void setDecimalSepBtnEnabled(boolean enabled) {
-        decimalSepBtn.setEnabled(enabled);
+    /**
+     * @return the stream of states of the calculator, to follow the value while it's typed.
+     * Subscriptions are kept when the dialog is dismissed and shown again.
+     */
+    @NonNull
+    public CalcStateStream getStateStream() {
+        return stateStream;
     }
 
-    void updateExpression(@NonNull String text) {
-        expressionTxv.setText(text);
-
-        // Scroll to the end.
-        expressionHsv.post(new Runnable() {
-            @Override
-            public void run() {
-                expressionHsv.fullScroll(View.FOCUS_RIGHT);
-            }
-        });
+    /**
+     * Set the history to which calculations done with the equal button are added.
+     * The last result of the history is available with the answer button if shown.
+     * Must be set before the dialog is shown.
+     * @param history The history, null for none.
+     */
+    public void setHistory(@Nullable CalcHistory history) {
+        this.history = history;
     }
 
-    void updateCurrentValue(@Nullable String text) {
-        valueTxv.setText(text);
+    @Nullable
+    public CalcHistory getHistory() {
+        return history;
     }
 
-    void showErrorText(int error) {
-        valueTxv.setText(errorMessages[error]);
+    /**
+     * Set the table of rates used to convert the current value between the units set with
+     * {@link CalcSettings#setConversionUnits(String, String)}. Must be set before the dialog is shown.
+     * @param table The table, null for none.
+     */
+    public void setConversionTable(@Nullable CalcConversionTable table) {
+        conversionTable = table;
     }
 
-    void showAnswerText() {
-        valueTxv.setText(R.string.calc_answer);
+    @Nullable
+    public CalcConversionTable getConversionTable() {
+        return conversionTable;
     }
 
     public interface CalcDialogCallback {
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Runs sequences of key presses through the calculator logic without any user interface,
+ * for example to replay recorded input for testing. The result is the same as if the
+ * buttons of {@link CalcDialog} were clicked in the same order, with the same settings.
+ * The expression is always evaluated on the calling thread and nothing is formatted.
+ * A driver can be reused for many runs but isn't thread-safe.
+ */
+public class CalcDriver implements CalcPresenterView {
+
+    // Keys that can be passed to run(int[]), digits are 0 to 9.
+    public static final int KEY_ADD = CalcPresenter.KEY_ADD;
+    public static final int KEY_SUBTRACT = CalcPresenter.KEY_SUBTRACT;
+    public static final int KEY_MULTIPLY = CalcPresenter.KEY_MULTIPLY;
+    public static final int KEY_DIVIDE = CalcPresenter.KEY_DIVIDE;
+    public static final int KEY_SIGN = CalcPresenter.KEY_SIGN;
+    public static final int KEY_DECIMAL_SEP = CalcPresenter.KEY_DECIMAL_SEP;
+    public static final int KEY_EQUAL = CalcPresenter.KEY_EQUAL;
+    public static final int KEY_ANSWER = CalcPresenter.KEY_ANSWER;
+    public static final int KEY_ERASE = CalcPresenter.KEY_ERASE;
+    public static final int KEY_CLEAR = CalcPresenter.KEY_CLEAR;
+    public static final int KEY_OK = CalcPresenter.KEY_OK;
+    public static final int KEY_CANCEL = CalcPresenter.KEY_CANCEL;
+    public static final int KEY_POWER = CalcPresenter.KEY_POWER;
+    public static final int KEY_SQRT = CalcPresenter.KEY_SQRT;
+    public static final int KEY_EXP = CalcPresenter.KEY_EXP;
+    public static final int KEY_LN = CalcPresenter.KEY_LN;
+    public static final int KEY_LOG = CalcPresenter.KEY_LOG;
+    public static final int KEY_CONVERT = CalcPresenter.KEY_CONVERT;
+
+    // Errors of a result
+    public static final int ERROR_NONE = CalcPresenter.ERROR_NONE;
+    public static final int ERROR_DIV_ZERO = CalcPresenter.ERROR_DIV_ZERO;
+    public static final int ERROR_OUT_OF_BOUNDS = CalcPresenter.ERROR_OUT_OF_BOUNDS;
+    public static final int ERROR_WRONG_SIGN_POS = CalcPresenter.ERROR_WRONG_SIGN_POS;
+    public static final int ERROR_WRONG_SIGN_NEG = CalcPresenter.ERROR_WRONG_SIGN_NEG;
+    public static final int ERROR_INVALID = CalcPresenter.ERROR_INVALID;
+
+    private final CalcPresenter presenter = new CalcPresenter();
+
+    @NonNull
+    private final CalcSettings settings;
+
+    private boolean attached;
+    private boolean exited;
+    private boolean valueEntered;
+
+    @Nullable
+    private BigDecimal enteredValue;
+
+    /**
+     * Create a driver for the calculator with settings.
+     * The settings must not be changed while the driver is used.
+     * @param settings The settings.
+     */
+    public CalcDriver(@NonNull CalcSettings settings) {
+        this.settings = settings;
+        presenter.setHeadless(true);
+    }
+
+    /**
+     * Run a sequence of key presses on a new calculator input.
+     * Supported characters are digits, operators ({@code + - − * × / ÷ ^}), the square
+     * root ({@code √}), the conversion ({@code →}), the decimal separator ({@code .} or {@code ,}), the sign button
+     * ({@code ±}) and the equal button ({@code =}). Whitespace is ignored.
+     * For example, {@code "12.5×3="}.
+     * @param keys The key sequence.
+     * @return The result after the last key.
+     * @throws IllegalArgumentException if a character isn't supported.
+     */
+    @NonNull
+    public Result run(@NonNull CharSequence keys) {
+        start();
+        for (int i = 0; i < keys.length() && !exited; i++) {
+            char c = keys.charAt(i);
+            if (Character.isWhitespace(c)) continue;
+
+            int key = CalcPresenter.getKeyForChar(c);
+            if (key == -1) {
+                throw new IllegalArgumentException("Unsupported key character: '" + c + "'");
+            }
+            presenter.onKey(key);
+        }
+        return getResult();
+    }
+
+    /**
+     * Run a sequence of key presses on a new calculator input.
+     * Keys after the calculator exits, after the cancel key or the OK key
+     * with a valid value, are ignored.
+     * @param keys The keys, either digits from 0 to 9 or one of the {@code KEY_*} constants.
+     * @return The result after the last key.
+     * @throws IllegalArgumentException if a key is invalid.
+     */
+    @NonNull
+    public Result run(@NonNull int[] keys) {
+        start();
+        for (int i = 0; i < keys.length && !exited; i++) {
+            presenter.onKey(keys[i]);
+        }
+        return getResult();
+    }
+
+    /**
+     * Replay the keys of a log on a new calculator input.
+     * @param log The key log.
+     * @return The result after the last key.
+     * @see #run(int[])
+     */
+    @NonNull
+    public Result run(@NonNull CalcKeyLog log) {
+        return run(log.getKeys());
+    }
+
+    /**
+     * Set the table of rates used by the conversion key, see
+     * {@link CalcView#setConversionTable(CalcConversionTable)}.
+     * @param table The table, null for none.
+     */
+    public void setConversionTable(@Nullable CalcConversionTable table) {
+        presenter.setConversionTable(table);
+    }
+
+    /**
+     * @return the log of keys of the last run, or null if
+     * {@link CalcSettings#isKeyLogRecorded()} is false.
+     */
+    @Nullable
+    public CalcKeyLog getKeyLog() {
+        return presenter.getKeyLog();
+    }
+
+    private void start() {
+        if (attached) {
+            presenter.detach();
+        }
+        exited = false;
+        valueEntered = false;
+        enteredValue = null;
+
+        presenter.attach(this, null);
+        attached = true;
+    }
+
+    @NonNull
+    private Result getResult() {
+        if (valueEntered) {
+            return new Result(enteredValue, ERROR_NONE, true);
+        } else {
+            return new Result(presenter.getCurrentValue(), presenter.getErrorCode(), false);
+        }
+    }
+
+    ////////// VIEW METHODS //////////
+    @NonNull
+    @Override
+    public CalcSettings getSettings() {
+        return settings;
+    }
+
+    @Override
+    public void exit() {
+        exited = true;
+    }
+
+    @Override
+    public void sendValueResult(@Nullable BigDecimal value) {
+        valueEntered = true;
+        enteredValue = value;
+    }
+
+    @Override
+    public void setExpressionVisible(boolean visible) {
+        // No view
+    }
+
+    @Override
+    public void setAnswerBtnVisible(boolean visible) {
+        // No view
+    }
+
+    @Override
+    public void setSignBtnVisible(boolean visible) {
+        // No view
+    }
+
+    @Override
+    public void setFunctionBtnsVisible(boolean functionsVisible, boolean convertVisible) {
+        // No view
+    }
+
+    @Override
+    public void setDecimalSepBtnEnabled(boolean enabled) {
+        // No view
+    }
+
+    @Override
+    public void updateExpression(@NonNull String text) {
+        // No view
+    }
+
+    @Override
+    public void showStatisticCount(long count) {
+        // No view
+    }
+
+    @Override
+    public void updateCurrentValue(@Nullable String text) {
+        // No view
+    }
+
+    @Override
+    public void setPreviewVisible(boolean visible) {
+        // No view
+    }
+
+    @Override
+    public void updatePreview(@Nullable String text) {
+        // No view
+    }
+
+    @Override
+    public void showErrorText(int error) {
+        // No view
+    }
+
+    @Override
+    public void showAnswerText() {
+        // No view
+    }
+
+    @Override
+    public void showPendingText() {
+        // No view
+    }
+
+    /**
+     * The result of a key sequence run by a {@link CalcDriver}.
+     */
+    public static class Result {
+
+        @Nullable
+        private final BigDecimal value;
+        private final int error;
+        private final boolean isEntered;
+
+        Result(@Nullable BigDecimal value, int error, boolean isEntered) {
+            this.value = value;
+            this.error = error;
+            this.isEntered = isEntered;
+        }
+
+        /**
+         * @return the value entered with the OK key if {@link #isEntered()}, otherwise the
+         * value displayed after the last key. Null if there's no value or if there's an error.
+         */
+        @Nullable
+        public BigDecimal getValue() {
+            return value;
+        }
+
+        /**
+         * @return the error displayed after the last key, one of the {@code ERROR_*} constants.
+         */
+        public int getError() {
+            return error;
+        }
+
+        /**
+         * @return whether the value was entered with the OK key, in which case
+         * {@link CalcDialog.CalcDialogCallback} would have been called.
+         */
+        public boolean isEntered() {
+            return isEntered;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Result[value=" + value + ", error=" + error + ", entered=" + isEntered + "]";
+        }
+    }
+
+}
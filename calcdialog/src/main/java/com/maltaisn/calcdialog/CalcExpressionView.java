@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.text.Editable;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.appcompat.widget.AppCompatTextView;
+
+/**
+ * TextView showing the expression, updated incrementally: only the part of the text after
+ * the first changed character is replaced, so the layout of the rest is kept.
+ * Long expressions are collapsed to their end, with a "…" prefix, so that the text laid out
+ * stays short. Clicking the view expands it to show the whole expression, or collapses it.
+ * Attributes:
+ * - calcExpressionWindowSize: Maximum number of characters shown when collapsed.
+ * Default value is 256. Use 0 to always show the whole expression.
+ */
+class CalcExpressionView extends AppCompatTextView {
+
+    private static final String COLLAPSED_PREFIX = "… ";
+
+    private int windowSize;
+
+    /** The whole expression text. */
+    @NonNull
+    private String fullText = "";
+
+    /** Index in the expression text of the first character shown, 0 if not collapsed. */
+    private int windowStart;
+
+    private boolean expanded;
+
+    public CalcExpressionView(Context context) {
+        this(context, null, 0);
+    }
+
+    public CalcExpressionView(Context context, @Nullable AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public CalcExpressionView(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+
+        TypedArray ta = getContext().obtainStyledAttributes(attrs, R.styleable.CalcExpressionView);
+        windowSize = ta.getInt(R.styleable.CalcExpressionView_calcExpressionWindowSize, 256);
+        ta.recycle();
+
+        // An editable buffer is laid out with a DynamicLayout, which only
+        // measures again the lines that were changed.
+        setText("", BufferType.EDITABLE);
+
+        setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (windowStart > 0 || expanded) {
+                    expanded = !expanded;
+                    windowStart = 0;
+                    updateText();
+                }
+            }
+        });
+    }
+
+    /**
+     * Set the expression text shown.
+     */
+    void setExpression(@NonNull String text) {
+        if (text.isEmpty()) {
+            // Expression was cleared, collapse it again.
+            expanded = false;
+        }
+        fullText = text;
+        updateText();
+    }
+
+    private void updateText() {
+        int length = fullText.length();
+        if (expanded || windowSize <= 0 || length <= windowSize) {
+            windowStart = 0;
+        } else if (length - windowStart > windowSize) {
+            // Move the window by half its size at once, so that the text shown is only
+            // replaced completely every few terms instead of on every key.
+            windowStart = getTermStart(length - windowSize / 2);
+        } else if (length - windowStart < windowSize / 2) {
+            // Text was erased, show a whole window again.
+            windowStart = getTermStart(length - windowSize);
+        }
+
+        String shown = fullText;
+        if (windowStart > 0) {
+            shown = COLLAPSED_PREFIX + fullText.substring(windowStart);
+        }
+
+        // Replace only the changed tail.
+        Editable editable = getEditableText();
+        int oldLength = editable.length();
+        int maxCommon = Math.min(oldLength, shown.length());
+        int common = 0;
+        while (common < maxCommon && editable.charAt(common) == shown.charAt(common)) {
+            common++;
+        }
+        if (common < oldLength || common < shown.length()) {
+            editable.replace(common, oldLength, shown, common, shown.length());
+        }
+    }
+
+    /**
+     * Get the index of the first term starting at or after an index, so that numbers aren't cut.
+     */
+    private int getTermStart(int index) {
+        if (index == 0 || fullText.charAt(index - 1) == ' ') {
+            return index;
+        }
+        int space = fullText.indexOf(' ', index);
+        return (space == -1 || space == fullText.length() - 1) ? index : space + 1;
+    }
+
+}
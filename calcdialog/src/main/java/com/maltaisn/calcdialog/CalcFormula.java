@@ -0,0 +1,644 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import com.maltaisn.calcdialog.Expression.Operator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+
+/**
+ * An expression where some numbers are slots, evaluated for every row of columns of values.
+ * Slots are written {@code {0}}, {@code {1}}, etc., the index being the column used.
+ * For example, {@code {0} × 1.05 + {1}} adds 5% to the first column and the second column.
+ * Other numbers and operators are written like for {@link CalcBatchEvaluator}.
+ * <p>
+ * Columns of fixed-point values are evaluated with long arithmetic, one operation at a time
+ * for a block of rows, giving exactly the same results as the calculator. Rows where an
+ * intermediate value doesn't fit in a long are evaluated again with {@link BigDecimal},
+ * like all rows of formulas with powers.
+ * Columns of doubles are evaluated the same way with double arithmetic, which is faster
+ * but not exact. Formulas are immutable and can be evaluated on many threads at once.
+ */
+public final class CalcFormula {
+
+    /**
+     * Value set in the result for a row that can't be evaluated, because a division by zero
+     * occurred or because the result doesn't fit in a long.
+     */
+    public static final long ERROR_VALUE = Long.MIN_VALUE;
+
+    /** Number of rows evaluated at once, small enough for the work arrays to stay in cache. */
+    private static final int BLOCK_SIZE = 256;
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final boolean priority;
+    private final boolean exact;
+    private final int scale;
+    @NonNull
+    private final RoundingMode roundingMode;
+
+    /**
+     * Operands of the formula. The slot is the column index, or -1 for a constant.
+     * The operator at index {@code i} is the one before the operand {@code i}, the first is unused.
+     */
+    private final Operator[] operators;
+    private final int[] slots;
+    private final BigDecimal[] constants;
+    private final int slotCount;
+
+    /** Whether the formula can be evaluated with long arithmetic, otherwise rows use BigDecimal. */
+    private final boolean longSupported;
+
+    /**
+     * Create a formula evaluated with the order of operations and exact evaluation settings
+     * of calculator settings. Quotients are rounded to the maximum fraction digits of the
+     * settings number format, with its rounding mode.
+     * @param formula The formula text.
+     * @throws IllegalArgumentException If the formula isn't valid.
+     */
+    public CalcFormula(@NonNull String formula, @NonNull CalcSettings settings) {
+        this(formula, settings.isOrderOfOperationsApplied, settings.isEvaluatedExactly,
+                settings.getNumberFormat().getMaximumFractionDigits(),
+                settings.getNumberFormat().getRoundingMode());
+    }
+
+    CalcFormula(@NonNull String formula, boolean priority, boolean exact,
+                int scale, @NonNull RoundingMode roundingMode) {
+        this.priority = priority;
+        this.exact = exact;
+        this.scale = scale;
+        this.roundingMode = roundingMode;
+
+        // Parse the formula.
+        Operator[] ops = new Operator[8];
+        int[] slts = new int[8];
+        BigDecimal[] consts = new BigDecimal[8];
+        int count = 0;
+        int maxSlot = -1;
+        boolean expectOperand = true;
+        int pos = 0;
+        int length = formula.length();
+        while (true) {
+            while (pos < length && Character.isWhitespace(formula.charAt(pos))) {
+                pos++;
+            }
+            if (pos == length) {
+                break;
+            }
+
+            if (count == slts.length) {
+                ops = Arrays.copyOf(ops, count * 2);
+                slts = Arrays.copyOf(slts, count * 2);
+                consts = Arrays.copyOf(consts, count * 2);
+            }
+            char c = formula.charAt(pos);
+            if (expectOperand) {
+                int end;
+                if (c == '{') {
+                    end = formula.indexOf('}', pos);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unclosed slot at " + pos + ".");
+                    }
+                    int slot;
+                    try {
+                        slot = Integer.parseInt(formula.substring(pos + 1, end));
+                    } catch (NumberFormatException e) {
+                        slot = -1;
+                    }
+                    if (slot < 0) {
+                        throw new IllegalArgumentException("Invalid slot at " + pos + ".");
+                    }
+                    slts[count] = slot;
+                    maxSlot = Math.max(maxSlot, slot);
+                    end++;
+                } else {
+                    end = pos;
+                    if (c == '-' || c == '+' || c == '\u2212') {
+                        end++;
+                    }
+                    while (end < length && (Character.isDigit(formula.charAt(end))
+                            || formula.charAt(end) == '.')) {
+                        end++;
+                    }
+                    try {
+                        consts[count] = new BigDecimal(formula.substring(pos, end)
+                                .replace('\u2212', '-'));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid number at " + pos + ".");
+                    }
+                    slts[count] = -1;
+                }
+                count++;
+                pos = end;
+                expectOperand = false;
+
+            } else {
+                Operator op;
+                if (c == '+') {
+                    op = Operator.ADD;
+                } else if (c == '-' || c == '\u2212') {  // U+2212 −
+                    op = Operator.SUBTRACT;
+                } else if (c == '*' || c == 'x' || c == '\u00D7') {  // U+00D7 ×
+                    op = Operator.MULTIPLY;
+                } else if (c == '/' || c == '\u00F7') {  // U+00F7 ÷
+                    op = Operator.DIVIDE;
+                } else if (c == '^') {
+                    op = Operator.POWER;
+                } else {
+                    throw new IllegalArgumentException("Invalid operator at " + pos + ".");
+                }
+                ops[count] = op;
+                pos++;
+                expectOperand = true;
+            }
+        }
+        if (expectOperand) {
+            throw new IllegalArgumentException("Formula must end with a number or a slot.");
+        }
+
+        operators = Arrays.copyOf(ops, count);
+        slots = Arrays.copyOf(slts, count);
+        constants = Arrays.copyOf(consts, count);
+        slotCount = maxSlot + 1;
+
+        // Exact quotients and powers can't be computed with longs,
+        // and constants must fit in a long.
+        boolean supported = true;
+        for (int i = 0; i < count; i++) {
+            if ((exact && operators[i] == Operator.DIVIDE) || operators[i] == Operator.POWER
+                    || constants[i] != null && constants[i].unscaledValue().bitLength() >= Long.SIZE) {
+                supported = false;
+                break;
+            }
+        }
+        longSupported = supported;
+    }
+
+    /**
+     * Returns the number of columns needed to evaluate the formula,
+     * which is the highest slot index plus one.
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Evaluate the formula for columns of fixed-point values.
+     * @param columns     The columns, at least {@link #getSlotCount()}, each with at least
+     *                    as many values as the result array. Values are unscaled.
+     * @param scale       The scale of the column values, the number of fraction digits.
+     * @param result      The array where the unscaled results are set, one per row.
+     * @param resultScale The scale of the results. Results are rounded with the rounding mode.
+     * @return The number of rows that couldn't be evaluated, set to {@link #ERROR_VALUE}.
+     */
+    public int evaluate(@NonNull long[][] columns, int scale,
+                        @NonNull long[] result, int resultScale) {
+        checkColumns(columns.length);
+        for (int i = 0; i < slotCount; i++) {
+            checkColumnSize(columns[i].length, result.length);
+        }
+        if (scale < 0 || resultScale < 0) {
+            throw new IllegalArgumentException("Scale must be positive.");
+        }
+
+        LongBlock block = new LongBlock();
+        Expression expression = new Expression();
+        int errors = 0;
+        for (int from = 0; from < result.length; from += BLOCK_SIZE) {
+            int to = Math.min(result.length, from + BLOCK_SIZE);
+            boolean[] overflow = block.overflow;
+            if (longSupported) {
+                block.evaluate(columns, scale, result, resultScale, from, to);
+            } else {
+                Arrays.fill(overflow, true);
+            }
+
+            // Evaluate rows that overflowed with BigDecimal.
+            for (int row = from; row < to; row++) {
+                if (overflow[row - from]) {
+                    result[row] = evaluateRow(expression, columns, scale, resultScale, row);
+                }
+                if (result[row] == ERROR_VALUE) {
+                    errors++;
+                }
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Evaluate the formula for columns of doubles, with double arithmetic.
+     * @param columns The columns, at least {@link #getSlotCount()}, each with at least
+     *                as many values as the result array.
+     * @param result  The array where the results are set, one per row.
+     *                Rows where a division by zero occurred are set to {@link Double#NaN}.
+     */
+    public void evaluate(@NonNull double[][] columns, @NonNull double[] result) {
+        checkColumns(columns.length);
+        for (int i = 0; i < slotCount; i++) {
+            checkColumnSize(columns[i].length, result.length);
+        }
+
+        double[] sum = new double[BLOCK_SIZE];
+        double[] term = new double[BLOCK_SIZE];
+        double[] operand = new double[BLOCK_SIZE];
+        double[] exponent = new double[BLOCK_SIZE];
+        for (int from = 0; from < result.length; from += BLOCK_SIZE) {
+            int n = Math.min(result.length - from, BLOCK_SIZE);
+            Arrays.fill(sum, 0, n, 0.0);
+            boolean negative = false;
+
+            for (int i = 0; i < operators.length; i++) {
+                Operator op = operators[i];
+                boolean first = (i == 0);
+                double[] x = getOperand(columns, i, from, n, operand);
+                int xOff = getOperandOffset(i, from);
+                if (priority) {
+                    // Powers are evaluated first, from left to right.
+                    while (i + 1 < operators.length && operators[i + 1] == Operator.POWER) {
+                        if (x != operand) {
+                            System.arraycopy(x, xOff, operand, 0, n);
+                            x = operand;
+                            xOff = 0;
+                        }
+                        i++;
+                        power(operand, getOperand(columns, i, from, n, exponent),
+                                getOperandOffset(i, from), n);
+                    }
+                }
+
+                if (first) {
+                    System.arraycopy(x, xOff, term, 0, n);
+                } else if (op == Operator.MULTIPLY) {
+                    for (int j = 0; j < n; j++) {
+                        term[j] *= x[xOff + j];
+                    }
+                } else if (op == Operator.DIVIDE) {
+                    for (int j = 0; j < n; j++) {
+                        double d = x[xOff + j];
+                        term[j] = (d == 0.0) ? Double.NaN : term[j] / d;
+                    }
+                } else if (op == Operator.POWER) {
+                    power(term, x, xOff, n);
+                } else if (priority) {
+                    // End of term, add it to the sum.
+                    addTo(sum, term, n, negative);
+                    System.arraycopy(x, xOff, term, 0, n);
+                    negative = (op == Operator.SUBTRACT);
+                } else {
+                    for (int j = 0; j < n; j++) {
+                        term[j] = (op == Operator.ADD) ? term[j] + x[xOff + j] : term[j] - x[xOff + j];
+                    }
+                }
+            }
+            addTo(sum, term, n, negative);
+            System.arraycopy(sum, 0, result, from, n);
+        }
+    }
+
+    /**
+     * Get the values of an operand for a block of rows, either the column of a slot or
+     * a work array filled with a constant. See {@link #getOperandOffset(int, int)}.
+     */
+    private double[] getOperand(double[][] columns, int index, int from, int n, double[] work) {
+        if (slots[index] >= 0) {
+            return columns[slots[index]];
+        }
+        Arrays.fill(work, 0, n, constants[index].doubleValue());
+        return work;
+    }
+
+    /**
+     * Returns the index of the first row of a block in the array of an operand.
+     */
+    private int getOperandOffset(int index, int from) {
+        return (slots[index] >= 0) ? from : 0;
+    }
+
+    /**
+     * Raise values to a power. Like with division, zero to a negative power gives NaN.
+     */
+    private static void power(double[] a, double[] x, int xOff, int n) {
+        for (int j = 0; j < n; j++) {
+            double b = a[j];
+            double e = x[xOff + j];
+            a[j] = (b == 0.0 && e < 0.0) ? Double.NaN : Math.pow(b, e);
+        }
+    }
+
+    private static void addTo(double[] sum, double[] term, int n, boolean negative) {
+        if (negative) {
+            for (int j = 0; j < n; j++) {
+                sum[j] -= term[j];
+            }
+        } else {
+            for (int j = 0; j < n; j++) {
+                sum[j] += term[j];
+            }
+        }
+    }
+
+    /**
+     * Evaluate a row with the calculator expression.
+     * @return The unscaled result, or {@link #ERROR_VALUE} if there's none.
+     */
+    private long evaluateRow(Expression expression, long[][] columns,
+                             int scale, int resultScale, int row) {
+        expression.clear();
+        for (int i = 0; i < operators.length; i++) {
+            if (i > 0) {
+                expression.addOperator(operators[i]);
+            }
+            if (slots[i] >= 0) {
+                expression.addNumber(columns[slots[i]][row], scale);
+            } else {
+                expression.addNumber(constants[i]);
+            }
+        }
+
+        try {
+            BigDecimal value;
+            if (exact) {
+                value = expression.evaluateExact(priority, this.scale, roundingMode);
+            } else {
+                value = expression.evaluate(priority, this.scale, roundingMode);
+            }
+            BigInteger unscaled = value.setScale(resultScale, roundingMode).unscaledValue();
+            if (unscaled.bitLength() < Long.SIZE) {
+                return unscaled.longValue();
+            }
+        } catch (ArithmeticException e) {
+            // Division by zero, or rounding needed with RoundingMode.UNNECESSARY.
+        }
+        return ERROR_VALUE;
+    }
+
+    private void checkColumns(int columnCount) {
+        if (columnCount < slotCount) {
+            throw new IllegalArgumentException("Formula needs " + slotCount
+                    + " columns, but only " + columnCount + " were given.");
+        }
+    }
+
+    private static void checkColumnSize(int columnSize, int rowCount) {
+        if (columnSize < rowCount) {
+            throw new IllegalArgumentException("Column has less values than the result.");
+        }
+    }
+
+    /**
+     * Work arrays to evaluate a block of rows with long arithmetic. Values of the sum and of
+     * the term all have the same scale, which depends only on the formula and on the column
+     * scale. Rows where a value doesn't fit in a long, where a division by zero occurs or
+     * where rounding fails are marked as overflowed, to be evaluated with BigDecimal.
+     */
+    private final class LongBlock {
+
+        final long[] sum = new long[BLOCK_SIZE];
+        final long[] term = new long[BLOCK_SIZE];
+        final long[] operand = new long[BLOCK_SIZE];
+        final boolean[] overflow = new boolean[BLOCK_SIZE];
+
+        void evaluate(long[][] columns, int columnScale, long[] result,
+                      int resultScale, int from, int to) {
+            int n = to - from;
+            Arrays.fill(overflow, false);
+            Arrays.fill(sum, 0, n, 0);
+            int sumScale = 0;
+            int termScale = 0;
+            boolean negative = false;
+
+            for (int i = 0; i < operators.length; i++) {
+                // Get the operand values for the block.
+                long[] x;
+                int xOff;
+                int xScale;
+                if (slots[i] >= 0) {
+                    x = columns[slots[i]];
+                    xOff = from;
+                    xScale = columnScale;
+                } else {
+                    Arrays.fill(operand, 0, n, constants[i].unscaledValue().longValue());
+                    x = operand;
+                    xOff = 0;
+                    xScale = constants[i].scale();
+                }
+
+                Operator op = operators[i];
+                if (i == 0) {
+                    System.arraycopy(x, xOff, term, 0, n);
+                    termScale = xScale;
+                } else if (op == Operator.MULTIPLY) {
+                    multiply(x, xOff, n);
+                    termScale += xScale;
+                } else if (op == Operator.DIVIDE) {
+                    divide(x, xOff, n, scale - termScale + xScale);
+                    termScale = scale;
+                } else if (priority) {
+                    // End of term, add it to the sum.
+                    sumScale = add(sum, sumScale, term, 0, termScale, n, negative);
+                    System.arraycopy(x, xOff, term, 0, n);
+                    termScale = xScale;
+                    negative = (op == Operator.SUBTRACT);
+                } else {
+                    termScale = add(term, termScale, x, xOff, xScale, n, op == Operator.SUBTRACT);
+                }
+            }
+            sumScale = add(sum, sumScale, term, 0, termScale, n, negative);
+
+            // Round or extend the sum to the result scale.
+            if (resultScale >= sumScale) {
+                rescale(sum, n, resultScale - sumScale);
+            } else if (sumScale - resultScale < POWERS_OF_TEN.length) {
+                long divisor = POWERS_OF_TEN[sumScale - resultScale];
+                for (int j = 0; j < n; j++) {
+                    sum[j] = divideRounded(sum[j], divisor, j);
+                }
+            } else {
+                Arrays.fill(overflow, true);
+            }
+            for (int j = 0; j < n; j++) {
+                result[from + j] = overflow[j] ? ERROR_VALUE : sum[j];
+            }
+        }
+
+        /**
+         * Multiply the term by the operand, exactly.
+         */
+        private void multiply(long[] x, int xOff, int n) {
+            for (int j = 0; j < n; j++) {
+                long a = term[j];
+                long b = x[xOff + j];
+                long r = a * b;
+                if (((Math.abs(a) | Math.abs(b)) >>> 31) != 0
+                        && (b != 0 && r / b != a || a == Long.MIN_VALUE && b == -1)) {
+                    overflow[j] = true;
+                }
+                term[j] = r;
+            }
+        }
+
+        /**
+         * Divide the term by the operand, rounding the quotient like BigDecimal does.
+         * @param shift Power of ten by which the term must be multiplied before the division,
+         *              so that the quotient has the right scale. If negative, the operand is
+         *              multiplied instead.
+         */
+        private void divide(long[] x, int xOff, int n, int shift) {
+            if (Math.abs(shift) >= POWERS_OF_TEN.length) {
+                Arrays.fill(overflow, true);
+                return;
+            }
+            if (shift >= 0) {
+                rescale(term, n, shift);
+            }
+            long factor = POWERS_OF_TEN[Math.max(0, -shift)];
+            for (int j = 0; j < n; j++) {
+                long b = x[xOff + j];
+                long d = b * factor;
+                if (b == 0 || factor != 1 && d / factor != b) {
+                    overflow[j] = true;
+                } else {
+                    term[j] = divideRounded(term[j], d, j);
+                }
+            }
+        }
+
+        /**
+         * Add or subtract values to others, aligning them to the highest scale.
+         * @return The scale of the result.
+         */
+        private int add(long[] a, int aScale, long[] x, int xOff, int xScale,
+                        int n, boolean subtract) {
+            if (aScale < xScale) {
+                rescale(a, n, xScale - aScale);
+                aScale = xScale;
+            }
+            int shift = aScale - xScale;
+            if (shift >= POWERS_OF_TEN.length) {
+                Arrays.fill(overflow, true);
+                return aScale;
+            }
+            long factor = POWERS_OF_TEN[shift];
+            for (int j = 0; j < n; j++) {
+                long v = x[xOff + j];
+                long b = v * factor;
+                if (factor != 1 && b / factor != v) {
+                    overflow[j] = true;
+                }
+                long r;
+                if (subtract) {
+                    r = a[j] - b;
+                    if (((a[j] ^ b) & (a[j] ^ r)) < 0) {
+                        overflow[j] = true;
+                    }
+                } else {
+                    r = a[j] + b;
+                    if (((a[j] ^ r) & (b ^ r)) < 0) {
+                        overflow[j] = true;
+                    }
+                }
+                a[j] = r;
+            }
+            return aScale;
+        }
+
+        /**
+         * Multiply values by a power of ten.
+         */
+        private void rescale(long[] a, int n, int shift) {
+            if (shift == 0) {
+                return;
+            } else if (shift >= POWERS_OF_TEN.length) {
+                Arrays.fill(overflow, true);
+                return;
+            }
+            long factor = POWERS_OF_TEN[shift];
+            for (int j = 0; j < n; j++) {
+                long v = a[j];
+                long r = v * factor;
+                if (r / factor != v) {
+                    overflow[j] = true;
+                }
+                a[j] = r;
+            }
+        }
+
+        /**
+         * Divide two longs and round the quotient with the rounding mode.
+         * The divisor must not be zero.
+         */
+        private long divideRounded(long a, long b, int j) {
+            if (b == Long.MIN_VALUE || a == Long.MIN_VALUE) {
+                overflow[j] = true;
+                return 0;
+            }
+            long q = a / b;
+            long r = a % b;
+            if (r == 0) {
+                return q;
+            }
+
+            boolean negative = (a ^ b) < 0;
+            long absR = Math.abs(r);
+            long halfCmp = absR - (Math.abs(b) - absR);  // Sign of 2|r| - |b|, without overflow.
+            boolean increment;
+            switch (roundingMode) {
+                case UP:
+                    increment = true;
+                    break;
+                case DOWN:
+                    increment = false;
+                    break;
+                case CEILING:
+                    increment = !negative;
+                    break;
+                case FLOOR:
+                    increment = negative;
+                    break;
+                case HALF_UP:
+                    increment = halfCmp >= 0;
+                    break;
+                case HALF_DOWN:
+                    increment = halfCmp > 0;
+                    break;
+                case HALF_EVEN:
+                    increment = halfCmp > 0 || halfCmp == 0 && (q & 1) != 0;
+                    break;
+                default:
+                    // Rounding is needed with RoundingMode.UNNECESSARY.
+                    overflow[j] = true;
+                    return 0;
+            }
+            return increment ? (negative ? q - 1 : q + 1) : q;
+        }
+    }
+
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.content.Context;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.NumberFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * History of the last calculations, kept across application restarts.
+ * Calculations are appended to a journal file, a sequence of length-prefixed records.
+ * The journal is read the first time the history is accessed, and is compacted once it holds
+ * twice the maximum number of entries. All disk access is done on a background thread.
+ * <p>
+ * A history is set with {@link CalcDialog#setHistory(CalcHistory)} or
+ * {@link CalcView#setHistory(CalcHistory)}. Calculations done with the equal button are added,
+ * and the last result is available with the answer button when the calculator is opened.
+ * The same instance should be used for a file.
+ */
+public final class CalcHistory {
+
+    private static final byte[] MAGIC = {'C', 'H', 'S', 1};
+
+    /** Default maximum number of entries kept. */
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+
+    /** Executor shared by all histories for disk access, in order. */
+    private static ExecutorService diskExecutor;
+
+    @NonNull
+    private final File file;
+
+    private final int maxEntries;
+
+    /** The entries, oldest first. Null until the journal is read. */
+    @Nullable
+    private ArrayDeque<Entry> entries;
+
+    /** Number of records in the journal file. Only used on the disk thread. */
+    private int recordCount;
+
+    /** Journal output stream, opened when first needed. Only used on the disk thread. */
+    @Nullable
+    private DataOutputStream out;
+
+    /** Number of writes submitted but not done yet, the output is flushed when none are left. */
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    private boolean loadRequested;
+
+    /**
+     * Create a history with the default maximum number of entries.
+     * @param file The journal file, usually in {@link Context#getFilesDir()}.
+     */
+    public CalcHistory(@NonNull File file) {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create a history.
+     * @param file       The journal file, usually in {@link Context#getFilesDir()}.
+     * @param maxEntries The maximum number of entries kept.
+     */
+    public CalcHistory(@NonNull File file, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("History must keep at least one entry.");
+        }
+        this.file = file;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Create a history in the application's private files, named "calc_history".
+     */
+    @NonNull
+    public static CalcHistory create(@NonNull Context context) {
+        return new CalcHistory(new File(context.getFilesDir(), "calc_history"));
+    }
+
+    /**
+     * @return the entries, oldest first, or null if the journal wasn't read yet.
+     * In that case, it starts being read, use {@link #load(LoadCallback, Executor)}
+     * to be notified when done.
+     */
+    @Nullable
+    public List<Entry> getEntries() {
+        synchronized (this) {
+            if (entries != null) {
+                return Collections.unmodifiableList(new ArrayList<>(entries));
+            }
+            if (loadRequested) {
+                return null;
+            }
+            loadRequested = true;
+        }
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                readIfNeeded();
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Read the journal if not read yet, and notify a callback when done.
+     * The entries passed to the callback include all entries added before this call.
+     * @param callback The callback.
+     * @param executor The executor on which the callback is called.
+     */
+    public void load(@NonNull final LoadCallback callback, @NonNull final Executor executor) {
+        synchronized (this) {
+            loadRequested = true;
+        }
+
+        // Done on the disk thread even if already read, so that entries added before are included.
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                readIfNeeded();
+                final List<Entry> list;
+                synchronized (CalcHistory.this) {
+                    //noinspection ConstantConditions
+                    list = Collections.unmodifiableList(new ArrayList<>(entries));
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onLoaded(list);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Add a calculation to the history.
+     * @param expression The expression evaluated.
+     * @param result     The result.
+     */
+    void add(@NonNull ExpressionSnapshot expression, @NonNull BigDecimal result) {
+        final Entry entry = new Entry(System.currentTimeMillis(), expression, result);
+        pendingWrites.incrementAndGet();
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                readIfNeeded();
+                synchronized (CalcHistory.this) {
+                    //noinspection ConstantConditions
+                    entries.addLast(entry);
+                    if (entries.size() > maxEntries) {
+                        entries.removeFirst();
+                    }
+                }
+                try {
+                    if (recordCount >= maxEntries * 2) {
+                        compact();
+                    } else {
+                        write(entry);
+                    }
+                } catch (IOException e) {
+                    // History is lost, not worth crashing for.
+                    closeOutput();
+                } finally {
+                    // Records are only flushed once no more are about to be written.
+                    if (pendingWrites.decrementAndGet() == 0) {
+                        flushOutput();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove all entries and delete the journal.
+     */
+    public void clear() {
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                recordCount = 0;
+                synchronized (CalcHistory.this) {
+                    entries = new ArrayDeque<>();
+                }
+            }
+        });
+    }
+
+    /**
+     * Write pending entries and close the journal. It's opened again if entries are added.
+     */
+    public void close() {
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+            }
+        });
+    }
+
+    private void readIfNeeded() {
+        synchronized (this) {
+            if (entries != null) {
+                return;
+            }
+        }
+
+        ArrayDeque<Entry> read = new ArrayDeque<>();
+        boolean valid = true;
+        if (file.length() > 0) {
+            try {
+                valid = read(read);
+            } catch (IOException e) {
+                // Unreadable journal, start over.
+                read.clear();
+                valid = false;
+            }
+        }
+        synchronized (this) {
+            entries = read;
+        }
+
+        if (!valid) {
+            // Rewrite the valid entries only, without the corrupted or truncated part.
+            try {
+                compact();
+            } catch (IOException e) {
+                closeOutput();
+            }
+        }
+    }
+
+    /**
+     * Read the journal file, keeping only the last entries.
+     * @return False if the journal is corrupted or ends with a truncated record.
+     */
+    private boolean read(ArrayDeque<Entry> read) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            for (byte b : MAGIC) {
+                if (buffer.remaining() == 0 || buffer.get() != b) {
+                    return false;
+                }
+            }
+
+            recordCount = 0;
+            while (buffer.remaining() > 0) {
+                if (buffer.remaining() < 4) {
+                    return false;
+                }
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    return false;
+                }
+                int end = buffer.position() + length;
+                try {
+                    read.addLast(readEntry(buffer));
+                } catch (RuntimeException e) {
+                    // Corrupted record.
+                    return false;
+                }
+                if (buffer.position() != end) {
+                    return false;
+                }
+                if (read.size() > maxEntries) {
+                    read.removeFirst();
+                }
+                recordCount++;
+            }
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Rewrite the journal with the current entries only.
+     */
+    private void compact() throws IOException {
+        closeOutput();
+        List<Entry> list;
+        synchronized (this) {
+            //noinspection ConstantConditions
+            list = new ArrayList<>(entries);
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream tempOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            tempOut.write(MAGIC);
+            for (Entry entry : list) {
+                writeRecord(tempOut, entry);
+            }
+        } finally {
+            tempOut.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Couldn't replace history journal.");
+        }
+        recordCount = list.size();
+    }
+
+    private void write(Entry entry) throws IOException {
+        if (out == null) {
+            boolean isNew = file.length() == 0;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            if (isNew) {
+                out.write(MAGIC);
+            }
+        }
+        writeRecord(out, entry);
+        recordCount++;
+    }
+
+    private void flushOutput() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                closeOutput();
+            }
+        }
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+            out = null;
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, Entry entry) throws IOException {
+        // Encode the record first to know its length.
+        ByteBuffer buffer = ByteBuffer.allocate(getRecordLength(entry));
+        buffer.putLong(entry.time);
+        putNumber(buffer, entry.result);
+        ExpressionSnapshot expr = entry.expression;
+        buffer.putInt(expr.getNumberCount());
+        for (int i = 0; i < expr.getNumberCount(); i++) {
+            putNumber(buffer, expr.getNumber(i));
+        }
+        buffer.putInt(expr.getOperatorCount());
+        for (int i = 0; i < expr.getOperatorCount(); i++) {
+            buffer.put((byte) expr.getOperator(i).ordinal());
+        }
+        out.writeInt(buffer.position());
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    private static int getRecordLength(Entry entry) {
+        ExpressionSnapshot expr = entry.expression;
+        int length = 8 + getNumberLength(entry.result) + 8 + expr.getOperatorCount();
+        for (int i = 0; i < expr.getNumberCount(); i++) {
+            length += getNumberLength(expr.getNumber(i));
+        }
+        return length;
+    }
+
+    private static int getNumberLength(BigDecimal n) {
+        return 8 + n.unscaledValue().bitLength() / 8 + 1;
+    }
+
+    private static void putNumber(ByteBuffer buffer, BigDecimal n) {
+        byte[] unscaled = n.unscaledValue().toByteArray();
+        buffer.putInt(n.scale());
+        buffer.putInt(unscaled.length);
+        buffer.put(unscaled);
+    }
+
+    private static BigDecimal getNumber(ByteBuffer buffer) {
+        int scale = buffer.getInt();
+        int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid number length.");
+        }
+        byte[] unscaled = new byte[length];
+        buffer.get(unscaled);
+        return BigDecimalCache.intern(new BigDecimal(new BigInteger(unscaled), scale));
+    }
+
+    private static Entry readEntry(ByteBuffer buffer) {
+        long time = buffer.getLong();
+        BigDecimal result = getNumber(buffer);
+        Expression expr = new Expression();
+        int numberCount = buffer.getInt();
+        for (int i = 0; i < numberCount; i++) {
+            expr.addNumber(getNumber(buffer));
+        }
+        int operatorCount = buffer.getInt();
+        for (int i = 0; i < operatorCount; i++) {
+            expr.addOperator(Expression.OPERATORS[buffer.get()]);
+        }
+        return new Entry(time, expr.snapshot(), result);
+    }
+
+    private static synchronized ExecutorService getDiskExecutor() {
+        if (diskExecutor == null) {
+            diskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "CalcHistory");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return diskExecutor;
+    }
+
+    public interface LoadCallback {
+        /**
+         * Called when the history was read.
+         * @param entries The entries, oldest first.
+         */
+        void onLoaded(@NonNull List<Entry> entries);
+    }
+
+    /**
+     * A calculation of the history.
+     */
+    public static final class Entry {
+
+        private final long time;
+
+        @NonNull
+        private final ExpressionSnapshot expression;
+
+        @NonNull
+        private final BigDecimal result;
+
+        Entry(long time, @NonNull ExpressionSnapshot expression, @NonNull BigDecimal result) {
+            this.time = time;
+            this.expression = expression;
+            this.result = result;
+        }
+
+        /**
+         * @return the time at which the calculation was done, in milliseconds since epoch.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the expression evaluated, formatted with a number format.
+         */
+        @NonNull
+        public String getExpression(@NonNull NumberFormat nbFormat) {
+            return expression.format(nbFormat);
+        }
+
+        @NonNull
+        ExpressionSnapshot getExpressionSnapshot() {
+            return expression;
+        }
+
+        /**
+         * @return the result of the calculation.
+         */
+        @NonNull
+        public BigDecimal getResult() {
+            return result;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Entry[expression=" + expression + ", result=" + result + "]";
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+/**
+ * Counters of the internal caches used by the calculator, shared by all calculators
+ * of the process. These can be used to tune the cache sizes for an application.
+ */
+public final class CalcInstrumentation {
+
+    private CalcInstrumentation() {
+        // Utility class
+    }
+
+    /**
+     * Get the number of times a formatted value was found in the format cache,
+     * since the counters were last reset.
+     */
+    public static long getFormatCacheHitCount() {
+        return FormattedValueCache.getHitCount();
+    }
+
+    /**
+     * Get the number of times a value had to be formatted because it wasn't in the
+     * format cache, since the counters were last reset.
+     */
+    public static long getFormatCacheMissCount() {
+        return FormattedValueCache.getMissCount();
+    }
+
+    /**
+     * Get the ratio of format cache lookups which were hits, 0 if there were no lookups.
+     */
+    public static float getFormatCacheHitRate() {
+        long hits = FormattedValueCache.getHitCount();
+        long total = hits + FormattedValueCache.getMissCount();
+        return total == 0 ? 0f : (float) hits / total;
+    }
+
+    /**
+     * Reset the format cache hit and miss counters to zero.
+     */
+    public static void resetFormatCacheCounters() {
+        FormattedValueCache.resetCounters();
+    }
+
+    /**
+     * Get the maximum number of formatted values cached.
+     */
+    public static int getFormatCacheSize() {
+        return FormattedValueCache.getMaxSize();
+    }
+
+    /**
+     * Set the maximum number of formatted values cached, {@value FormattedValueCache#DEFAULT_MAX_SIZE}
+     * by default. Zero disables the cache.
+     */
+    public static void setFormatCacheSize(int size) {
+        FormattedValueCache.setMaxSize(size);
+    }
+
+}
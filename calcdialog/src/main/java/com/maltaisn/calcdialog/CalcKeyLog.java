@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Compact append-only log of the keys pressed on a calculator, with their timing.
+ * Each entry is one byte for the key followed by the time elapsed since the previous key,
+ * in milliseconds, encoded as a variable length integer (usually one or two bytes).
+ * A log can be saved to a file and replayed with {@link CalcDriver#run(CalcKeyLog)}.
+ * @see CalcSettings#setKeyLogRecorded(boolean)
+ */
+public final class CalcKeyLog {
+
+    private static final byte[] MAGIC = {'C', 'K', 'L', 1};
+
+    private byte[] data;
+    private int length;
+    private int size;
+
+    public CalcKeyLog() {
+        data = new byte[64];
+    }
+
+    private CalcKeyLog(byte[] data, int offset, int length) {
+        this.data = Arrays.copyOfRange(data, offset, offset + length);
+        this.length = length;
+
+        // Count and validate entries.
+        int pos = 0;
+        while (pos < length) {
+            pos = skipVarLong(pos + 1);
+            size++;
+        }
+        if (pos != length) {
+            throw new IllegalArgumentException("Truncated key log.");
+        }
+    }
+
+    /**
+     * Append a key to the log.
+     * @param key       The key.
+     * @param timeDelta Time since the previous key, in milliseconds.
+     */
+    void append(int key, long timeDelta) {
+        if (length + 11 > data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[length++] = (byte) key;
+
+        // Unsigned LEB128, 7 bits per byte, high bit set if more bytes follow.
+        long v = Math.max(0, timeDelta);
+        while ((v & ~0x7FL) != 0) {
+            data[length++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        data[length++] = (byte) v;
+        size++;
+    }
+
+    private int skipVarLong(int pos) {
+        while (pos < length && (data[pos] & 0x80) != 0) {
+            pos++;
+        }
+        return pos + 1;
+    }
+
+    /**
+     * @return the number of keys in the log.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the keys in the log, in the same format as {@link CalcDriver#run(int[])}.
+     */
+    @NonNull
+    public int[] getKeys() {
+        int[] keys = new int[size];
+        int pos = 0;
+        for (int i = 0; i < size; i++) {
+            keys[i] = data[pos];
+            pos = skipVarLong(pos + 1);
+        }
+        return keys;
+    }
+
+    /**
+     * @return the time elapsed before each key was pressed, in milliseconds.
+     * The time for the first key is since the log was started.
+     */
+    @NonNull
+    public long[] getTimeDeltas() {
+        long[] times = new long[size];
+        int pos = 0;
+        for (int i = 0; i < size; i++) {
+            pos++;
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            times[i] = v;
+        }
+        return times;
+    }
+
+    /**
+     * @return the log encoded as bytes, which can be decoded with {@link #fromByteArray(byte[])}.
+     */
+    @NonNull
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[MAGIC.length + length];
+        System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+        System.arraycopy(data, 0, bytes, MAGIC.length, length);
+        return bytes;
+    }
+
+    /**
+     * Write the log to a stream, for example to export it to a file.
+     * @param out The output stream, not closed.
+     * @throws IOException If an error occurs while writing.
+     */
+    public void writeTo(@NonNull OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(data, 0, length);
+    }
+
+    /**
+     * Decode a log encoded with {@link #toByteArray()}.
+     * @param bytes The encoded log.
+     * @return The log.
+     * @throws IllegalArgumentException If the bytes aren't a valid key log.
+     */
+    @NonNull
+    public static CalcKeyLog fromByteArray(@NonNull byte[] bytes) {
+        if (bytes.length < MAGIC.length || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)) {
+            throw new IllegalArgumentException("Not a key log.");
+        }
+        return new CalcKeyLog(bytes, MAGIC.length, bytes.length - MAGIC.length);
+    }
+
+    /**
+     * Read a log written with {@link #writeTo(OutputStream)}, until the end of the stream.
+     * @param in The input stream, not closed.
+     * @return The log.
+     * @throws IOException If an error occurs while reading.
+     * @throws IllegalArgumentException If the stream doesn't contain a valid key log.
+     */
+    @NonNull
+    public static CalcKeyLog readFrom(@NonNull InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return fromByteArray(out.toByteArray());
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+/**
+ * Notation used to display values with too many integer digits.
+ * @see CalcSettings#setNotation(CalcNotation)
+ */
+public enum CalcNotation {
+
+    /**
+     * All digits are shown, e.g. {@code 123,456,789,000}.
+     */
+    PLAIN,
+
+    /**
+     * Values are shown with one integer digit and an exponent, e.g. {@code 1.23456789E11}.
+     */
+    SCIENTIFIC,
+
+    /**
+     * Values are shown with one to three integer digits and an exponent
+     * that is a multiple of 3, e.g. {@code 123.456789E9}.
+     */
+    ENGINEERING
+
+}
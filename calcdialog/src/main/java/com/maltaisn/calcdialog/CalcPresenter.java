@@ -17,27 +17,139 @@
 package com.maltaisn.calcdialog;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 class CalcPresenter {
 
-    private static final int ERROR_NONE = -1;
-    private static final int ERROR_DIV_ZERO = 0;
-    private static final int ERROR_OUT_OF_BOUNDS = 1;
-    private static final int ERROR_WRONG_SIGN_POS = 2;
-    private static final int ERROR_WRONG_SIGN_NEG = 3;
+    static final int ERROR_NONE = -1;
+    static final int ERROR_DIV_ZERO = 0;
+    static final int ERROR_OUT_OF_BOUNDS = 1;
+    static final int ERROR_WRONG_SIGN_POS = 2;
+    static final int ERROR_WRONG_SIGN_NEG = 3;
+    static final int ERROR_INVALID = 4;
+
+    // Keys that can be processed with onKey(int). The first 17 match
+    // indexes of text elements in R.array.calc_dialog_btn_texts.
+    static final int KEY_ADD = 10;
+    static final int KEY_SUBTRACT = 11;
+    static final int KEY_MULTIPLY = 12;
+    static final int KEY_DIVIDE = 13;
+    static final int KEY_SIGN = 14;
+    static final int KEY_DECIMAL_SEP = 15;
+    static final int KEY_EQUAL = 16;
+    static final int KEY_ANSWER = 17;
+    static final int KEY_ERASE = 18;
+    static final int KEY_CLEAR = 19;
+    static final int KEY_OK = 20;
+    static final int KEY_CANCEL = 21;
+    static final int KEY_POWER = 22;
+    static final int KEY_SQRT = 23;
+    static final int KEY_EXP = 24;
+    static final int KEY_LN = 25;
+    static final int KEY_LOG = 26;
+    static final int KEY_CONVERT = 27;
+
+    /** Result returned by evaluation if an operation is invalid, compared by identity. */
+    private static final BigDecimal INVALID_RESULT = new BigDecimal(0);
+
+
+    /** Executor shared by all presenters to evaluate expressions in background, in order. */
+    private static ExecutorService sharedEvalExecutor;
+
+    /** Handler used to apply the results of background evaluations on the main thread. */
+    private static Handler mainHandler;
+
+    /** Executor running tasks on the main thread. */
+    private static final Executor MAIN_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            getMainHandler().post(command);
+        }
+    };
+
+    /** Executor evaluating expressions in background, null to use the shared one. */
+    @Nullable
+    private Executor evalExecutor;
 
-    private CalcDialog view;
+    /** Executor applying the results of background evaluations, on the main thread by default. */
+    private Executor mainExecutor = MAIN_EXECUTOR;
+
+    private CalcPresenterView view;
     private CalcSettings settings;
     private NumberFormat nbFormat;
 
+    /** View used while replaying keys, only provides the settings. */
+    private final CalcPresenterView replayView = new CalcPresenterView() {
+        @NonNull
+        @Override
+        public CalcSettings getSettings() {
+            return settings;
+        }
+
+        @Override
+        public void exit() {}
+
+        @Override
+        public void sendValueResult(@Nullable BigDecimal value) {}
+
+        @Override
+        public void setExpressionVisible(boolean visible) {}
+
+        @Override
+        public void setAnswerBtnVisible(boolean visible) {}
+
+        @Override
+        public void setSignBtnVisible(boolean visible) {}
+
+        @Override
+        public void setFunctionBtnsVisible(boolean functionsVisible, boolean convertVisible) {}
+
+        @Override
+        public void setDecimalSepBtnEnabled(boolean enabled) {}
+
+        @Override
+        public void updateExpression(@NonNull String text) {}
+
+        @Override
+        public void showStatisticCount(long count) {}
+
+        @Override
+        public void updateCurrentValue(@Nullable String text) {}
+
+        @Override
+        public void setPreviewVisible(boolean visible) {}
+
+        @Override
+        public void updatePreview(@Nullable String text) {}
+
+        @Override
+        public void showErrorText(int error) {}
+
+        @Override
+        public void showAnswerText() {}
+
+        @Override
+        public void showPendingText() {}
+    };
+
     /** The typed expression. */
     @NonNull
     private Expression expression = new Expression();
@@ -53,6 +165,13 @@ class CalcPresenter {
     @Nullable
     private BigDecimal resultValue;
 
+    /**
+     * The last result restored from history at the start of the input, null for none.
+     * Kept to be available again to the answer button when the key log is replayed.
+     */
+    @Nullable
+    private BigDecimal initialResultValue;
+
     /**
      * The number of digits shown after the decimal separator in {@link #currentValue}.
      * If -1, there's no fractional part. If 0, only the decimal separator is shown.
@@ -66,9 +185,22 @@ class CalcPresenter {
     /** Whether {@link #currentValue} is from the answer button. */
     private boolean currentIsAnswer;
 
+    /**
+     * Whether {@link #currentValue} is the result of a function or a conversion.
+     * Like the answer, it can't be edited but it's the operand of the next operator.
+     */
+    private boolean currentIsFunctionResult;
+
     /** Whether {@link #currentValue} is the result from the equal button. */
     private boolean currentIsResult;
 
+    /** Whether {@link #currentValue} is the statistic shown in statistics mode. */
+    private boolean currentIsStatistic;
+
+    /** Statistics of the values entered, null if statistics mode is disabled. */
+    @Nullable
+    private StatisticsAccumulator statistics;
+
     /**
      * Whether user can edit {@link #currentValue} or not.
      * If not editable, a button press clears the current value.
@@ -81,38 +213,194 @@ class CalcPresenter {
      */
     private boolean canEditExpression;
 
+    /** Log of the keys pressed, null if not recorded. */
+    @Nullable
+    private CalcKeyLog keyLog;
+
+    /** Time of the last key added to {@link #keyLog}, in milliseconds. */
+    private long lastKeyTime;
+
+    /** Stream to which states are published, null for none. */
+    @Nullable
+    private CalcStateStream stateStream;
+
+    /** History to which calculations are added, null for none. */
+    @Nullable
+    private CalcHistory history;
+
+    /** Table of the rates used by the conversion key, null for none. */
+    @Nullable
+    private CalcConversionTable conversionTable;
+
+    /**
+     * Whether the presenter has no view to render to. If so, nothing is displayed
+     * and the expression is always evaluated on the calling thread.
+     */
+    private boolean isHeadless;
+
+    /** Whether input is being processed in batch, see {@link #beginBatch()}. */
+    private boolean inBatch;
 
-    void attach(CalcDialog v, Bundle state) {
+    /** Whether the value display must be updated at the end of the batch. */
+    private boolean valueUpdatedInBatch;
+
+    /** Whether the value display must show the error at the end of the batch. */
+    private boolean errorShownInBatch;
+
+    /** Whether the expression display must be updated at the end of the batch. */
+    private boolean expressionUpdatedInBatch;
+
+    /** Whether to evaluate the expression in background, see {@link CalcSettings#isEvaluatedInBackground}. */
+    private boolean evalInBackground;
+
+    /**
+     * Generation of the last evaluation started, incremented when an evaluation is
+     * started or cancelled so that results of stale evaluations are discarded.
+     */
+    private int evalGeneration;
+
+    /** The background evaluation in progress, null for none. */
+    @Nullable
+    private Future<?> pendingEval;
+
+    /** Snapshot of the expression evaluated by {@link #pendingEval}. */
+    @Nullable
+    private ExpressionSnapshot pendingExpression;
+
+    /** Called after the result of {@link #pendingEval} is applied. */
+    @Nullable
+    private Runnable pendingOnEvaluated;
+
+    /**
+     * Whether the result of {@link #pendingEval} is needed by the following input,
+     * in which case input is deferred until it's applied instead of cancelling the evaluation.
+     */
+    private boolean pendingEvalIsFinal;
+
+    /** Keys received while waiting for the result of an evaluation, in order. */
+    private final Queue<Integer> deferredKeys = new ArrayDeque<>();
+
+    /** Called after the expression is evaluated when an operator button is clicked. */
+    private final Runnable onOperatorEvaluated = new Runnable() {
+        @Override
+        public void run() {
+            if (!settings.shouldEvaluateOnOperation) {
+                currentValue = null;
+            }
+            updateCurrentValue();
+        }
+    };
+
+    /** Called after the expression is evaluated when the equal button is clicked. */
+    private final Runnable onEqualEvaluated = new Runnable() {
+        @Override
+        public void run() {
+            if (errorCode == ERROR_NONE) {
+                if (history != null && !isHeadless && currentValue != null
+                        && expression.getNumberCount() > 1) {
+                    history.add(expression.snapshot(), currentValue);
+                }
+                if (statistics != null && currentValue != null) {
+                    // Add the value entered and show the statistic instead.
+                    statistics.add(currentValue);
+                    currentValue = getStatistic();
+                    currentIsStatistic = true;
+                }
+
+                resultValue = currentValue;
+                currentIsResult = true;
+                currentValueScale = -1;
+                updateCurrentValue();
+            }
+
+            canEditExpression = false;
+            updateExpression();
+        }
+    };
+
+    /** Called after the expression is evaluated when the OK button is clicked. */
+    private final Runnable onOkEvaluated = new Runnable() {
+        @Override
+        public void run() {
+            onEqualEvaluated.run();
+
+            if (expression.getNumberCount() > 1) {
+                // If the expression still has more than 1 number it means it was just calculated.
+                // Don't dismiss already to let user see the result.
+                return;
+            }
+
+            enterResult();
+        }
+    };
+
+
+    void attach(CalcPresenterView v, @Nullable Bundle state) {
         view = v;
 
         settings = view.getSettings();
         settings.validate();
 
-        nbFormat = settings.nbFormat;
+        nbFormat = settings.getNumberFormat();
+        evalInBackground = settings.isEvaluatedInBackground && !isHeadless;
+        statistics = (settings.statistic != null) ? new StatisticsAccumulator() : null;
 
         if (state == null) {
             reset();
             currentValue = settings.initialValue;
+            keyLog = null;
+            if (settings.isKeyLogRecorded) {
+                keyLog = new CalcKeyLog();
+                lastKeyTime = System.nanoTime() / 1000000;
+            }
+            initialResultValue = null;
+            restoreLastResult();
 
         } else {
             readStateFromBundle(state);
         }
 
-        view.setExpressionVisible(settings.isExpressionShown);
+        // In statistics mode, the number of values is shown in place of the expression.
+        view.setExpressionVisible(settings.isExpressionShown || statistics != null);
         view.setDecimalSepBtnEnabled(nbFormat.getMaximumFractionDigits() > 0);
         view.setAnswerBtnVisible(settings.isAnswerBtnShown && resultValue != null);
         view.setSignBtnVisible(settings.isSignBtnShown);
+        view.setFunctionBtnsVisible(settings.isFunctionBtnsShown, hasConversion());
+        view.setPreviewVisible(settings.isResultPreviewShown);
+
+        if (hasConversion() && !isHeadless) {
+            // Read the table now so that the conversion key doesn't wait for it.
+            conversionTable.preload();
+        }
 
         updateCurrentValue();
         updateExpression();
+        updatePreview();
+        publishState();
     }
 
     void detach() {
+        cancelEvaluation();
+        deferredKeys.clear();
+        inBatch = false;
+        valueUpdatedInBatch = false;
+        expressionUpdatedInBatch = false;
         view = null;
         settings = null;
     }
 
     void writeStateToBundle(Bundle bundle) {
+        finishEvaluation();
+
+        if (keyLog != null) {
+            // State is restored by replaying the keys.
+            bundle.putByteArray("keyLog", keyLog.toByteArray());
+            if (initialResultValue != null) {
+                bundle.putSerializable("initialResultValue", initialResultValue);
+            }
+            return;
+        }
+
         bundle.putParcelable("expression", expression);
         if (currentValue != null) {
             bundle.putSerializable("currentValue", currentValue);
@@ -123,34 +411,329 @@ class CalcPresenter {
         bundle.putInt("currentValueScale", currentValueScale);
         bundle.putInt("errorCode", errorCode);
         bundle.putBoolean("currentIsAnswer", currentIsAnswer);
+        bundle.putBoolean("currentIsFunctionResult", currentIsFunctionResult);
         bundle.putBoolean("currentIsResult", currentIsResult);
+        bundle.putBoolean("currentIsStatistic", currentIsStatistic);
         bundle.putBoolean("canEditCurrentValue", canEditCurrentValue);
         bundle.putBoolean("canEditExpression", canEditExpression);
+        if (statistics != null) {
+            bundle.putParcelable("statistics", statistics);
+        }
     }
 
     private void readStateFromBundle(Bundle bundle) {
+        if (bundle.containsKey("keyLog")) {
+            //noinspection ConstantConditions
+            keyLog = CalcKeyLog.fromByteArray(bundle.getByteArray("keyLog"));
+            lastKeyTime = System.nanoTime() / 1000000;
+            if (bundle.containsKey("initialResultValue")) {
+                initialResultValue = BigDecimalCache.intern(
+                        (BigDecimal) bundle.getSerializable("initialResultValue"));
+            }
+            replayKeyLog(keyLog);
+            return;
+        }
+
         //noinspection ConstantConditions
         expression = bundle.getParcelable("expression");
         if (bundle.containsKey("currentValue")) {
-            currentValue = (BigDecimal) bundle.getSerializable("currentValue");
+            currentValue = BigDecimalCache.intern((BigDecimal) bundle.getSerializable("currentValue"));
         }
         if (bundle.containsKey("resultValue")) {
-            resultValue = (BigDecimal) bundle.getSerializable("resultValue");
+            resultValue = BigDecimalCache.intern((BigDecimal) bundle.getSerializable("resultValue"));
         }
         currentValueScale = bundle.getInt("currentValueScale");
         errorCode = bundle.getInt("errorCode");
         currentIsAnswer = bundle.getBoolean("currentIsAnswer");
+        currentIsFunctionResult = bundle.getBoolean("currentIsFunctionResult");
         currentIsResult = bundle.getBoolean("currentIsResult");
+        currentIsStatistic = bundle.getBoolean("currentIsStatistic");
         canEditCurrentValue = bundle.getBoolean("canEditCurrentValue");
         canEditExpression = bundle.getBoolean("canEditExpression");
+        if (statistics != null && bundle.containsKey("statistics")) {
+            statistics = bundle.getParcelable("statistics");
+        }
+    }
+
+    /**
+     * Restore the state from the start of an input by processing all keys from a log,
+     * without updating the view and evaluating on the calling thread.
+     */
+    private void replayKeyLog(@NonNull CalcKeyLog log) {
+        CalcPresenterView attachedView = view;
+        boolean wasHeadless = isHeadless;
+        view = replayView;
+        isHeadless = true;
+        evalInBackground = false;
+
+        reset();
+        currentValue = settings.initialValue;
+        resultValue = initialResultValue;
+        for (int key : log.getKeys()) {
+            dispatchKey(key);
+        }
+
+        view = attachedView;
+        isHeadless = wasHeadless;
+        evalInBackground = settings.isEvaluatedInBackground && !isHeadless;
+    }
+
+    /**
+     * @return the log of keys pressed since the start of the input,
+     * null if {@link CalcSettings#isKeyLogRecorded()} is false.
+     */
+    @Nullable
+    CalcKeyLog getKeyLog() {
+        return keyLog;
+    }
+
+    void setStateStream(@Nullable CalcStateStream stream) {
+        stateStream = stream;
+    }
+
+    void setHistory(@Nullable CalcHistory history) {
+        this.history = history;
+    }
+
+    void setConversionTable(@Nullable CalcConversionTable table) {
+        conversionTable = table;
+    }
+
+    /**
+     * Make the last result of the history available with the answer button, once the
+     * history is read. Reading is done in background so that attaching isn't delayed.
+     */
+    private void restoreLastResult() {
+        if (history == null || isHeadless || !settings.isAnswerBtnShown) {
+            return;
+        }
+        final CalcPresenterView attachedView = view;
+        history.load(new CalcHistory.LoadCallback() {
+            @Override
+            public void onLoaded(@NonNull List<CalcHistory.Entry> entries) {
+                // Only if still attached and no result was obtained in the meantime.
+                if (view == attachedView && resultValue == null && !entries.isEmpty()) {
+                    resultValue = entries.get(entries.size() - 1).getResult();
+                    initialResultValue = resultValue;
+                    view.setAnswerBtnVisible(true);
+                }
+            }
+        }, mainExecutor);
+    }
+
+    /**
+     * Set the executors used for evaluations in background, so that tests can control when
+     * evaluations are done and when their results are applied.
+     * @param evalExecutor Executor evaluating expressions, in order.
+     * @param mainExecutor Executor applying the results on the thread the presenter is used on.
+     */
+    void setExecutors(@NonNull Executor evalExecutor, @NonNull Executor mainExecutor) {
+        this.evalExecutor = evalExecutor;
+        this.mainExecutor = mainExecutor;
+    }
+
+    /**
+     * Set whether the presenter has no view to render to, see {@link CalcDriver}.
+     * Must be called before attaching.
+     */
+    void setHeadless(boolean headless) {
+        isHeadless = headless;
+    }
+
+    /**
+     * @return the current value, null if there's none or if there's an error.
+     */
+    @Nullable
+    BigDecimal getCurrentValue() {
+        return currentValue;
+    }
+
+    /**
+     * @return the current error code, {@link #ERROR_NONE} for none.
+     */
+    int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Start processing input in batch. The value and the expression are only displayed once
+     * when {@link #endBatch()} is called, instead of after every key.
+     */
+    void beginBatch() {
+        inBatch = true;
+    }
+
+    /**
+     * End processing input in batch and update the display if needed.
+     */
+    void endBatch() {
+        if (!inBatch) return;
+        inBatch = false;
+
+        if (valueUpdatedInBatch) {
+            valueUpdatedInBatch = false;
+            if (errorShownInBatch) {
+                view.showErrorText(errorCode);
+            } else {
+                updateCurrentValue();
+            }
+        }
+        if (expressionUpdatedInBatch) {
+            expressionUpdatedInBatch = false;
+            updateExpression();
+        }
+        updatePreview();
+        publishState();
+    }
+
+    /**
+     * Get the key for a character. Supported characters are digits, operators
+     * ({@code + - − * × / ÷ ^}), the square root ({@code √}), the conversion ({@code →}),
+     * the decimal separator
+     * ({@code .} or {@code ,}), the sign button ({@code ±}) and the equal button
+     * ({@code =} or a new line).
+     * @param c The character.
+     * @return The key, or -1 if the character isn't supported.
+     */
+    static int getKeyForChar(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        switch (c) {
+            case '+':
+                return KEY_ADD;
+            case '-':
+            case '−':
+                return KEY_SUBTRACT;
+            case '*':
+            case '×':
+                return KEY_MULTIPLY;
+            case '/':
+            case '÷':
+                return KEY_DIVIDE;
+            case '.':
+            case ',':
+                return KEY_DECIMAL_SEP;
+            case '^':
+                return KEY_POWER;
+            case '√':
+                return KEY_SQRT;
+            case '→':
+                return KEY_CONVERT;
+            case '±':
+                return KEY_SIGN;
+            case '=':
+            case '\n':
+                return KEY_EQUAL;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Process a key press, like a button click. Keys for hidden or disabled buttons are ignored.
+     * If the result of a pending evaluation is needed by the key, it's processed after.
+     * @param key The key, either a digit from 0 to 9 or one of the {@code KEY_*} constants.
+     */
+    void onKey(int key) {
+        if (key == KEY_CANCEL) {
+            // Cancelling ends the input, so it's never deferred nor logged.
+            onCancelBtnClicked();
+            return;
+        }
+
+        if (keyLog != null) {
+            long time = System.nanoTime() / 1000000;
+            keyLog.append(key, time - lastKeyTime);
+            lastKeyTime = time;
+        }
+
+        // The result of the last evaluation is kept if the operator is replaced,
+        // and functions are applied to it.
+        boolean usesResult = (key >= KEY_ADD && key <= KEY_DIVIDE)
+                || (key >= KEY_POWER && key <= KEY_CONVERT);
+        if (shouldDeferInput(usesResult)) {
+            deferredKeys.add(key);
+            return;
+        }
+
+        dispatchKey(key);
+        updatePreview();
+        publishState();
     }
 
-    void onErasedOnce() {
+    private void dispatchKey(int key) {
+        switch (key) {
+            case KEY_ADD:
+                onOperatorBtnClicked(Expression.Operator.ADD);
+                break;
+            case KEY_SUBTRACT:
+                onOperatorBtnClicked(Expression.Operator.SUBTRACT);
+                break;
+            case KEY_MULTIPLY:
+                onOperatorBtnClicked(Expression.Operator.MULTIPLY);
+                break;
+            case KEY_DIVIDE:
+                onOperatorBtnClicked(Expression.Operator.DIVIDE);
+                break;
+            case KEY_POWER:
+                onOperatorBtnClicked(Expression.Operator.POWER);
+                break;
+            case KEY_SQRT:
+            case KEY_EXP:
+            case KEY_LN:
+            case KEY_LOG:
+                onFunctionBtnClicked(key);
+                break;
+            case KEY_CONVERT:
+                if (hasConversion()) {
+                    onFunctionBtnClicked(key);
+                }
+                break;
+            case KEY_SIGN:
+                if (settings.isSignBtnShown) {
+                    onSignBtnClicked();
+                }
+                break;
+            case KEY_DECIMAL_SEP:
+                if (nbFormat.getMaximumFractionDigits() > 0) {
+                    onDecimalSepBtnClicked();
+                }
+                break;
+            case KEY_EQUAL:
+                onEqualBtnClicked();
+                break;
+            case KEY_ANSWER:
+                if (settings.isAnswerBtnShown && resultValue != null) {
+                    onAnswerBtnClicked();
+                }
+                break;
+            case KEY_ERASE:
+                onErasedOnce();
+                break;
+            case KEY_CLEAR:
+                onClearBtnClicked();
+                break;
+            case KEY_OK:
+                onOkBtnClicked();
+                break;
+            default:
+                if (key >= 0 && key <= 9) {
+                    onDigitBtnClicked(key);
+                } else {
+                    throw new IllegalArgumentException("Invalid key: " + key);
+                }
+        }
+    }
+
+    private void onErasedOnce() {
         clearExpressionIfNeeded();
         if (dismissError()) return;
 
         currentIsAnswer = false;
+        currentIsFunctionResult = false;
         currentIsResult = false;
+        currentIsStatistic = false;
         view.setAnswerBtnVisible(false);
 
         if (!canEditCurrentValue) {
@@ -161,7 +744,7 @@ class CalcPresenter {
             String valueStr = getCurrentValueString();
             valueStr = valueStr.substring(0, valueStr.length() - 1);
             try {
-                currentValue = new BigDecimal(valueStr);
+                currentValue = BigDecimalCache.parse(valueStr);
                 if (currentValueScale >= 0) {
                     currentValueScale--;
                 }
@@ -171,10 +754,10 @@ class CalcPresenter {
                 currentValueScale = -1;
             }
 
-        } else if (settings.isExpressionEditable && expression.numbers.size() > 0) {
+        } else if (settings.isExpressionEditable && expression.getNumberCount() > 0) {
             // No more digits to erase: pop last expression number and operator and make it current value
-            currentValue = expression.numbers.remove(expression.numbers.size() - 1);
-            expression.operators.remove(expression.operators.size() - 1);
+            currentValue = expression.removeLastNumber();
+            expression.removeLastOperator();
 
             assert currentValue != null;
             currentValueScale = currentValue.scale();
@@ -186,11 +769,7 @@ class CalcPresenter {
         updateCurrentValue();
     }
 
-    void onErasedAll() {
-        onClearBtnClicked();
-    }
-
-    void onDigitBtnClicked(int digit) {
+    private void onDigitBtnClicked(int digit) {
         clearExpressionIfNeeded();
         dismissOldValue();
 
@@ -209,41 +788,38 @@ class CalcPresenter {
             currentValueScale++;
         }
 
-        currentValue = new BigDecimal(valueStr + digit);
+        currentValue = BigDecimalCache.parse(valueStr + digit);
         updateCurrentValue();
     }
 
-    void onOperatorBtnClicked(@NonNull Expression.Operator operator) {
+    private void onOperatorBtnClicked(@NonNull Expression.Operator operator) {
         clearExpressionIfNeeded();
         if (dismissError()) return;
 
         currentIsResult = false;
+        currentIsStatistic = false;
         currentValueScale = -1;
 
-        if (!currentIsAnswer && !canEditCurrentValue && !expression.operators.isEmpty()) {
+        if (!isCurrentValueOperand() && expression.getOperatorCount() > 0) {
             // Undo previous operator button click if the current value is the
             // result of the expression calculated on the last button click.
-            expression.operators.set(expression.operators.size() - 1, operator);
+            expression.setLastOperator(operator);
+            updateCurrentValue();
 
         } else {
             if (currentValue == null) {
                 currentValue = BigDecimal.ZERO;
             }
-            expression.numbers.add(currentValue);
-            calculate();
-            expression.operators.add(operator);
-
-            if (!settings.shouldEvaluateOnOperation) {
-                currentValue = null;
-            }
+            expression.addNumber(currentValue);
+            calculate(false, onOperatorEvaluated);
+            expression.addOperator(operator);
         }
 
         view.setAnswerBtnVisible(settings.isAnswerBtnShown && resultValue != null);
-        updateCurrentValue();
         updateExpression();
     }
 
-    void onDecimalSepBtnClicked() {
+    private void onDecimalSepBtnClicked() {
         clearExpressionIfNeeded();
         dismissOldValue();
 
@@ -257,10 +833,12 @@ class CalcPresenter {
         }
     }
 
-    void onSignBtnClicked() {
+    private void onSignBtnClicked() {
         dismissError();
 
         currentIsAnswer = false;
+        currentIsFunctionResult = false;
+        currentIsStatistic = false;
         view.setAnswerBtnVisible(false);
 
         if (!canEditCurrentValue && !currentIsResult) {
@@ -271,32 +849,95 @@ class CalcPresenter {
         }
 
         // Negate value if there's one and it's not zero.
-        if (currentValue != null && currentValue.compareTo(BigDecimal.ZERO) != 0) {
-            currentValue = currentValue.negate();
+        if (currentValue != null && !BigDecimalCache.isZero(currentValue)) {
+            currentValue = BigDecimalCache.intern(currentValue.negate());
         }
 
         updateCurrentValue();
     }
 
-    void onEqualBtnClicked() {
+    /**
+     * Replace the current value by the result of a function applied to it, or by its conversion.
+     */
+    private void onFunctionBtnClicked(int key) {
+        if (dismissError()) return;
+
+        BigDecimal value = (currentValue != null) ? currentValue : BigDecimal.ZERO;
+        int scale = nbFormat.getMaximumFractionDigits();
+        RoundingMode roundingMode = nbFormat.getRoundingMode();
+        BigDecimal result;
+        try {
+            if (key == KEY_SQRT) {
+                result = BigDecimalMath.sqrt(value, scale, roundingMode);
+            } else if (key == KEY_EXP) {
+                result = BigDecimalMath.exp(value, scale, roundingMode);
+            } else if (key == KEY_LN) {
+                result = BigDecimalMath.ln(value, scale, roundingMode);
+            } else if (key == KEY_CONVERT) {
+                result = convert(value, scale, roundingMode);
+            } else {
+                result = BigDecimalMath.log10(value, scale, roundingMode);
+            }
+        } catch (ArithmeticException e) {
+            setError(ERROR_INVALID);
+            return;
+        }
+
+        // The result can't be edited, like the result of an evaluation.
+        currentValue = BigDecimalCache.intern(result.stripTrailingZeros());
+        currentValueScale = -1;
+        currentIsAnswer = false;
+        currentIsFunctionResult = true;
+        currentIsStatistic = false;
+        canEditCurrentValue = false;
+        view.setAnswerBtnVisible(false);
+        updateCurrentValue();
+    }
+
+    /**
+     * Convert a value with the conversion table and units.
+     * @throws ArithmeticException If the table has no rate between the units.
+     */
+    private BigDecimal convert(BigDecimal value, int scale, RoundingMode roundingMode) {
+        assert conversionTable != null && settings.conversionFrom != null && settings.conversionTo != null;
+        int from = conversionTable.getUnitIndex(settings.conversionFrom);
+        int to = conversionTable.getUnitIndex(settings.conversionTo);
+        if (from == -1 || to == -1 || conversionTable.getFactor(from, to) == null) {
+            throw new ArithmeticException("No conversion rate.");
+        }
+        return conversionTable.convert(value, from, to, scale, roundingMode);
+    }
+
+    private boolean hasConversion() {
+        return conversionTable != null && settings.conversionFrom != null
+                && settings.conversionTo != null;
+    }
+
+    private void onEqualBtnClicked() {
         clearExpressionIfNeeded();
         if (dismissError()) return;
-        equal();
+        if (currentIsStatistic) {
+            // The statistic isn't a value entered, don't add it.
+            return;
+        }
+        equal(onEqualEvaluated);
     }
 
-    void onAnswerBtnClicked() {
+    private void onAnswerBtnClicked() {
         assert resultValue != null;
 
         currentValue = resultValue;
         currentValueScale = -1;
         currentIsAnswer = true;
+        currentIsFunctionResult = false;
+        currentIsStatistic = false;
         canEditCurrentValue = false;
 
         view.setAnswerBtnVisible(false);
         updateCurrentValue();
     }
 
-    void onClearBtnClicked() {
+    private void onClearBtnClicked() {
         clearExpressionIfNeeded();
         if (dismissError()) return;
 
@@ -307,34 +948,40 @@ class CalcPresenter {
         updateExpression();
     }
 
-    void onCancelBtnClicked() {
+    private void onCancelBtnClicked() {
+        cancelEvaluation();
+        deferredKeys.clear();
         view.exit();
     }
 
-    void onOkBtnClicked() {
+    private void onOkBtnClicked() {
         clearExpressionIfNeeded();
         if (dismissError()) return;
 
-        equal();
-
-        if (expression.numbers.size() > 1) {
-            // If the expression still has more than 1 number it means it was just calculated.
-            // Don't dismiss already to let user see the result.
-            return;
+        if (currentIsStatistic) {
+            // The statistic was just shown, enter it without adding it to the statistics.
+            enterResult();
+        } else {
+            equal(onOkEvaluated);
         }
+    }
 
+    /**
+     * Send the result to the view and exit, or show an error if it's out of bounds.
+     */
+    private void enterResult() {
         if (resultValue != null) {
             // Check if value is out of bounds and if so, show an error.
             // Show special error messages if minimum or maximum is 0.
-            if (settings.maxValue != null && resultValue.compareTo(settings.maxValue) > 0) {
-                if (settings.maxValue.compareTo(BigDecimal.ZERO) == 0) {
+            if (settings.maxValue != null && BigDecimalCache.compare(resultValue, settings.maxValue) > 0) {
+                if (BigDecimalCache.isZero(settings.maxValue)) {
                     setError(ERROR_WRONG_SIGN_NEG);
                 } else {
                     setError(ERROR_OUT_OF_BOUNDS);
                 }
                 return;
-            } else if (settings.minValue != null && resultValue.compareTo(settings.minValue) < 0) {
-                if (settings.minValue.compareTo(BigDecimal.ZERO) == 0) {
+            } else if (settings.minValue != null && BigDecimalCache.compare(resultValue, settings.minValue) < 0) {
+                if (BigDecimalCache.isZero(settings.minValue)) {
                     setError(ERROR_WRONG_SIGN_POS);
                 } else {
                     setError(ERROR_OUT_OF_BOUNDS);
@@ -350,6 +997,8 @@ class CalcPresenter {
     }
 
     void onDismissed() {
+        cancelEvaluation();
+        deferredKeys.clear();
         reset();
     }
 
@@ -366,6 +1015,8 @@ class CalcPresenter {
         dismissError();
 
         currentIsAnswer = false;
+        currentIsFunctionResult = false;
+        currentIsStatistic = false;
 
         view.setAnswerBtnVisible(false);
 
@@ -387,50 +1038,237 @@ class CalcPresenter {
         errorCode = ERROR_NONE;
 
         currentIsAnswer = false;
+        currentIsFunctionResult = false;
         currentIsResult = false;
+        currentIsStatistic = false;
         canEditCurrentValue = false;
         canEditExpression = true;
 
+        if (statistics != null) {
+            statistics.clear();
+        }
+
         view.setAnswerBtnVisible(false);
     }
 
-    private void calculate() {
+    /**
+     * Evaluate the expression and set the current value to the result, or show an error.
+     * If evaluation in background is enabled, the expression is evaluated on another
+     * thread and the result is applied later on the main thread, otherwise it's applied now.
+     * @param isFinal     Whether the result is needed by the following input. If so, input
+     *                    received before the result is deferred, otherwise the evaluation is
+     *                    cancelled by the next input.
+     * @param onEvaluated Called after the result or the error is applied.
+     */
+    private void calculate(boolean isFinal, @NonNull Runnable onEvaluated) {
+        currentValueScale = -1;
+        currentIsAnswer = false;
+        currentIsFunctionResult = false;
+        canEditCurrentValue = false;
+
+        if (!evalInBackground) {
+            applyEvaluationResult(evaluate(expression.snapshot()));
+            onEvaluated.run();
+            return;
+        }
+
+        final ExpressionSnapshot expr = expression.snapshot();
+        final int generation = ++evalGeneration;
+        final boolean priority = settings.isOrderOfOperationsApplied;
+        final boolean exact = settings.isEvaluatedExactly;
+        final int scale = nbFormat.getMaximumFractionDigits();
+        final RoundingMode roundingMode = nbFormat.getRoundingMode();
+
+        final Executor resultExecutor = mainExecutor;
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                final BigDecimal result = evaluate(expr, priority, exact, scale, roundingMode);
+                resultExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == evalGeneration && view != null) {
+                            onEvaluationDone(result);
+                        }
+                    }
+                });
+            }
+        }, null);
+
+        pendingExpression = expr;
+        pendingOnEvaluated = onEvaluated;
+        pendingEvalIsFinal = isFinal;
+        pendingEval = task;
+        (evalExecutor != null ? evalExecutor : getSharedEvalExecutor()).execute(task);
+
+        // Show that the value is being evaluated until the result is applied.
+        updateCurrentValue();
+    }
+
+    private static synchronized Executor getSharedEvalExecutor() {
+        if (sharedEvalExecutor == null) {
+            sharedEvalExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "CalcEvaluation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sharedEvalExecutor;
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+
+    /**
+     * Evaluate an expression with the current settings.
+     * @return The result, or null if a division by zero occurred.
+     */
+    @Nullable
+    private BigDecimal evaluate(ExpressionSnapshot expr) {
+        return evaluate(expr, settings.isOrderOfOperationsApplied, settings.isEvaluatedExactly,
+                nbFormat.getMaximumFractionDigits(), nbFormat.getRoundingMode());
+    }
+
+    /**
+     * Evaluate an expression. Can be called from any thread.
+     * @return The result, null if a division by zero occurred, or {@link #INVALID_RESULT}
+     * if a power is invalid.
+     * @see ExpressionSnapshot#evaluate(boolean, int, RoundingMode)
+     * @see ExpressionSnapshot#evaluateExact(boolean, int, RoundingMode)
+     */
+    @Nullable
+    private static BigDecimal evaluate(ExpressionSnapshot expr, boolean priority, boolean exact,
+                                       int scale, RoundingMode roundingMode) {
         try {
-            currentValue = expression.evaluate(settings.isOrderOfOperationsApplied,
-                    settings.nbFormat.getMaximumFractionDigits(), nbFormat.getRoundingMode());
+            if (exact) {
+                return expr.evaluateExact(priority, scale, roundingMode);
+            }
+            return expr.evaluate(priority, scale, roundingMode);
+        } catch (BigDecimalMath.DomainException e) {
+            return INVALID_RESULT;
         } catch (ArithmeticException e) {
             // Division by zero occurred.
+            return null;
+        }
+    }
+
+    private void applyEvaluationResult(@Nullable BigDecimal result) {
+        if (result == null) {
             setError(ERROR_DIV_ZERO);
+        } else if (result == INVALID_RESULT) {
+            setError(ERROR_INVALID);
+        } else {
+            currentValue = BigDecimalCache.intern(result);
+        }
+    }
+
+    /**
+     * Apply the result of the pending evaluation, then process input that was deferred.
+     */
+    private void onEvaluationDone(@Nullable BigDecimal result) {
+        Runnable onEvaluated = pendingOnEvaluated;
+        pendingEval = null;
+        pendingExpression = null;
+        pendingOnEvaluated = null;
+
+        applyEvaluationResult(result);
+        assert onEvaluated != null;
+        onEvaluated.run();
+
+        // Process deferred keys until another evaluation is started.
+        while (pendingEval == null && !deferredKeys.isEmpty()) {
+            dispatchKey(deferredKeys.remove());
+        }
+        updatePreview();
+        publishState();
+    }
+
+    /**
+     * Publish the current state to the state stream, if there's one with subscribers.
+     * Nothing is published while input is processed in batch or the value is pending.
+     */
+    private void publishState() {
+        if (stateStream == null || !stateStream.hasSubscribers()
+                || inBatch || pendingEval != null || settings == null) {
             return;
         }
+        stateStream.publish(currentValue, expression.snapshot(),
+                currentIsResult, errorCode, nbFormat);
+    }
 
-        currentValueScale = -1;
-        currentIsAnswer = false;
-        canEditCurrentValue = false;
+    /**
+     * Must be called before processing input. If an evaluation is pending and its result
+     * isn't needed, it's cancelled. If its result is needed, input must be deferred.
+     * @param usesResult Whether the input may use the result of any pending evaluation.
+     * @return Whether the input must be deferred until the evaluation is done.
+     */
+    private boolean shouldDeferInput(boolean usesResult) {
+        if (pendingEval == null) {
+            return false;
+        } else if (pendingEvalIsFinal || usesResult || !deferredKeys.isEmpty()) {
+            return true;
+        } else {
+            cancelEvaluation();
+            return false;
+        }
     }
 
-    private void equal() {
-        if (!currentIsAnswer && !canEditCurrentValue && !expression.operators.isEmpty()) {
+    /**
+     * Cancel the pending evaluation if there's one.
+     */
+    private void cancelEvaluation() {
+        if (pendingEval != null) {
+            pendingEval.cancel(true);
+            pendingEval = null;
+            pendingExpression = null;
+            pendingOnEvaluated = null;
+            evalGeneration++;
+        }
+    }
+
+    /**
+     * If an evaluation is pending, cancel it and evaluate on the calling thread instead.
+     * Deferred input is then processed, also evaluating on the calling thread.
+     */
+    private void finishEvaluation() {
+        if (pendingEval != null) {
+            pendingEval.cancel(true);
+            evalGeneration++;
+
+            evalInBackground = false;
+            assert pendingExpression != null;
+            onEvaluationDone(evaluate(pendingExpression));
+            evalInBackground = settings.isEvaluatedInBackground && !isHeadless;
+        }
+    }
+
+    private void equal(@NonNull Runnable onEvaluated) {
+        if (!isCurrentValueOperand() && expression.getOperatorCount() > 0) {
             // Remove unused last operator
-            expression.operators.remove(expression.operators.size() - 1);
+            expression.removeLastOperator();
         } else {
             if (currentValue == null) {
                 currentValue = BigDecimal.ZERO;
             }
-            expression.numbers.add(currentValue);
+            expression.addNumber(currentValue);
         }
 
-        calculate();
-
-        if (errorCode == ERROR_NONE) {
-            resultValue = currentValue;
-            currentIsResult = true;
-            currentValueScale = -1;
-            updateCurrentValue();
-        }
+        calculate(true, onEvaluated);
+    }
 
-        canEditExpression = false;
-        updateExpression();
+    /**
+     * Returns whether the current value is the operand of the next operator or of the equal
+     * button. Otherwise it's the result of the expression, and the last operator is replaced.
+     */
+    private boolean isCurrentValueOperand() {
+        return currentIsAnswer || currentIsFunctionResult || canEditCurrentValue;
     }
 
     private void setError(int error) {
@@ -441,10 +1279,17 @@ class CalcPresenter {
         resultValue = null;
         currentValueScale = -1;
         currentIsAnswer = false;
+        currentIsFunctionResult = false;
+        currentIsStatistic = false;
         canEditCurrentValue = false;
         canEditExpression = false;
 
-        view.showErrorText(error);
+        if (inBatch) {
+            valueUpdatedInBatch = true;
+            errorShownInBatch = true;
+        } else if (!isHeadless) {
+            view.showErrorText(error);
+        }
     }
 
     private boolean dismissError() {
@@ -457,9 +1302,21 @@ class CalcPresenter {
     }
 
     private void updateCurrentValue() {
+        if (isHeadless) {
+            return;
+        } else if (inBatch) {
+            valueUpdatedInBatch = true;
+            errorShownInBatch = false;
+            return;
+        }
+
         if (currentIsAnswer) {
             view.showAnswerText();
             return;
+        } else if (pendingEval != null && (pendingEvalIsFinal || settings.shouldEvaluateOnOperation)) {
+            // The value displayed will be the result of the evaluation.
+            view.showPendingText();
+            return;
         }
 
         BigDecimal value = currentValue;
@@ -469,41 +1326,80 @@ class CalcPresenter {
 
         String text = null;
         if (value != null) {
-            if (currentValueScale > 0 && nbFormat.getMinimumFractionDigits() < currentValueScale) {
-                // Set a minimum number of fraction digits so that trailing zeroes are shown.
-                int minFracBefore = nbFormat.getMinimumFractionDigits();
-                nbFormat.setMinimumFractionDigits(currentValueScale);
+            text = formatValue(value);
+        }
+
+        view.updateCurrentValue(text);
+    }
+
+    /**
+     * Format the current value as displayed, with trailing zeroes for its scale,
+     * or with the decimal separator if it was just added.
+     */
+    private String formatValue(BigDecimal value) {
+        String text;
+        if (currentValueScale == -1) {
+            // Too many integer digits, use a notation. Not cached since the notation
+            // can change without the format changing.
+            text = NotationFormatter.format(value, nbFormat,
+                    settings.notation, settings.notationThreshold);
+            if (text != null) {
+                return text;
+            }
+        }
+
+        boolean trailingSep = (currentValueScale == 0);
+        text = FormattedValueCache.get(value, currentValueScale, trailingSep, nbFormat);
+        if (text != null) {
+            return text;
+        }
+
+        if (currentValueScale > 0 && nbFormat.getMinimumFractionDigits() < currentValueScale) {
+            // Set a minimum number of fraction digits so that trailing zeroes are shown.
+            int minFracBefore = nbFormat.getMinimumFractionDigits();
+            nbFormat.setMinimumFractionDigits(currentValueScale);
+            text = nbFormat.format(value);
+            nbFormat.setMinimumFractionDigits(minFracBefore);
+
+        } else if (trailingSep
+                && nbFormat.getMinimumFractionDigits() == 0
+                && nbFormat instanceof DecimalFormat) {
+            // Append the decimal separator at the end of the number.
+            DecimalFormat fmt = (DecimalFormat) nbFormat;
+            char sep = fmt.getDecimalFormatSymbols().getDecimalSeparator();
+            if (value.compareTo(BigDecimal.ZERO) >= 0) {
+                String suffixBefore = fmt.getPositiveSuffix();
+                fmt.setPositiveSuffix(sep + suffixBefore);
                 text = nbFormat.format(value);
-                nbFormat.setMinimumFractionDigits(minFracBefore);
-
-            } else if (currentValueScale == 0
-                    && nbFormat.getMinimumFractionDigits() == 0
-                    && nbFormat instanceof DecimalFormat) {
-                // Append the decimal separator at the end of the number.
-                DecimalFormat fmt = (DecimalFormat) nbFormat;
-                char sep = fmt.getDecimalFormatSymbols().getDecimalSeparator();
-                if (currentValue.compareTo(BigDecimal.ZERO) >= 0) {
-                    String suffixBefore = fmt.getPositiveSuffix();
-                    fmt.setPositiveSuffix(sep + suffixBefore);
-                    text = nbFormat.format(currentValue);
-                    fmt.setPositiveSuffix(suffixBefore);
-                } else {
-                    String suffixBefore = fmt.getNegativeSuffix();
-                    fmt.setNegativeSuffix(sep + suffixBefore);
-                    text = nbFormat.format(currentValue);
-                    fmt.setNegativeSuffix(suffixBefore);
-                }
+                fmt.setPositiveSuffix(suffixBefore);
             } else {
+                String suffixBefore = fmt.getNegativeSuffix();
+                fmt.setNegativeSuffix(sep + suffixBefore);
                 text = nbFormat.format(value);
+                fmt.setNegativeSuffix(suffixBefore);
             }
+        } else {
+            text = nbFormat.format(value);
         }
 
-        view.updateCurrentValue(text);
+        FormattedValueCache.put(value, currentValueScale, trailingSep, nbFormat, text);
+        return text;
     }
 
     private void updateExpression() {
-        if (settings.isExpressionShown) {
-            String text = expression.format(nbFormat);
+        if (isHeadless) {
+            return;
+        } else if (inBatch) {
+            expressionUpdatedInBatch = true;
+            return;
+        }
+
+        if (statistics != null && (currentIsStatistic || !settings.isExpressionShown
+                || expression.getNumberCount() == 0)) {
+            view.showStatisticCount(statistics.getCount());
+        } else if (settings.isExpressionShown) {
+            String text = expression.format(nbFormat,
+                    settings.notation, settings.notationThreshold);
             if (currentIsResult) {
                 // If current value is the result from the equal button, append = to the expression.
                 text += " =";
@@ -512,6 +1408,50 @@ class CalcPresenter {
         }
     }
 
+    /**
+     * Update the preview of the result of the expression with the current value.
+     * The expression is evaluated incrementally, see {@link Expression#evaluateWith}.
+     */
+    private void updatePreview() {
+        if (isHeadless || inBatch || view == null || !settings.isResultPreviewShown) {
+            return;
+        }
+
+        String text = null;
+        if (errorCode == ERROR_NONE && pendingEval == null && !currentIsResult
+                && expression.getNumberCount() > 0
+                && expression.getOperatorCount() == expression.getNumberCount()) {
+            // Preview what the equal button would give: if the value can't be edited,
+            // the last operator is removed, otherwise the value is appended.
+            BigDecimal value = null;
+            if (isCurrentValueOperand()) {
+                value = currentValue != null ? currentValue : BigDecimal.ZERO;
+            }
+            BigDecimal result = expression.evaluateWith(value,
+                    settings.isOrderOfOperationsApplied, settings.isEvaluatedExactly,
+                    nbFormat.getMaximumFractionDigits(), nbFormat.getRoundingMode());
+            if (result != null) {
+                text = NotationFormatter.format(result, nbFormat,
+                        settings.notation, settings.notationThreshold);
+                if (text == null) {
+                    text = nbFormat.format(result);
+                }
+            }
+        }
+        view.updatePreview(text);
+    }
+
+    /**
+     * Get the statistic of the values entered, rounded like the result of an evaluation.
+     */
+    @Nullable
+    private BigDecimal getStatistic() {
+        assert statistics != null && settings.statistic != null;
+        BigDecimal value = statistics.get(settings.statistic,
+                nbFormat.getMaximumFractionDigits(), nbFormat.getRoundingMode());
+        return BigDecimalCache.intern(value);
+    }
+
     private String getCurrentValueString() {
         if (currentValue == null) return "";
 
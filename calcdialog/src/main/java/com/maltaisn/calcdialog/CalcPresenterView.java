@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The view driven by a {@link CalcPresenter}.
+ * Implemented by {@link CalcView}, which is also used as the content of {@link CalcDialog}.
+ */
+interface CalcPresenterView {
+
+    /**
+     * @return the settings used by the presenter.
+     */
+    @NonNull
+    CalcSettings getSettings();
+
+    void exit();
+
+    void sendValueResult(@Nullable BigDecimal value);
+
+    void setExpressionVisible(boolean visible);
+
+    void setAnswerBtnVisible(boolean visible);
+
+    void setSignBtnVisible(boolean visible);
+
+    /**
+     * Show or hide the function buttons and the conversion button.
+     * @param functionsVisible Whether the power and function buttons are visible.
+     * @param convertVisible Whether the conversion button is visible.
+     */
+    void setFunctionBtnsVisible(boolean functionsVisible, boolean convertVisible);
+
+    void setDecimalSepBtnEnabled(boolean enabled);
+
+    void updateExpression(@NonNull String text);
+
+    /**
+     * Show the number of values entered in statistics mode, in place of the expression.
+     */
+    void showStatisticCount(long count);
+
+    void updateCurrentValue(@Nullable String text);
+
+    void setPreviewVisible(boolean visible);
+
+    /**
+     * Show the preview of the result.
+     * @param text The formatted result, null for no preview.
+     */
+    void updatePreview(@Nullable String text);
+
+    void showErrorText(int error);
+
+    void showAnswerText();
+
+    /**
+     * Show that the displayed value is being evaluated in background.
+     */
+    void showPendingText();
+
+}
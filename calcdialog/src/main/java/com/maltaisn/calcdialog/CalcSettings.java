@@ -23,6 +23,7 @@ import android.os.Parcelable;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.NumberFormat;
+import java.util.Locale;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -35,7 +36,7 @@ public class CalcSettings implements Parcelable {
     int requestCode = 0;
 
     // Appearance settings
-    @NonNull NumberFormat nbFormat = NumberFormat.getInstance();
+    @Nullable NumberFormat nbFormat = null;  // Created when first needed
     int maxIntDigits = 10;
 
     @NonNull CalcNumpadLayout numpadLayout = CalcNumpadLayout.CALCULATOR;
@@ -43,18 +44,32 @@ public class CalcSettings implements Parcelable {
     boolean isZeroShownWhenNoValue = true;
     boolean isAnswerBtnShown = false;
     boolean isSignBtnShown = true;
+    boolean isFunctionBtnsShown = false;
     boolean isExpressionEditable = false;
     boolean shouldEvaluateOnOperation = false;
+    boolean isResultPreviewShown = false;
+    @NonNull CalcNotation notation = CalcNotation.PLAIN;
+    int notationThreshold = 15;
 
     // Behavior settings
     @Nullable BigDecimal initialValue = null;
     @Nullable BigDecimal minValue = new BigDecimal("-1E10");
     @Nullable BigDecimal maxValue = new BigDecimal("1E10");
     boolean isOrderOfOperationsApplied = true;
+    boolean isEvaluatedInBackground = false;
+    boolean isEvaluatedExactly = false;
+    boolean isKeyLogRecorded = false;
+    @Nullable CalcStatistic statistic = null;
+    @Nullable String conversionFrom = null;
+    @Nullable String conversionTo = null;
 
-    CalcSettings() {
-        nbFormat.setMaximumIntegerDigits(Integer.MAX_VALUE);
-        nbFormat.setMaximumFractionDigits(8);
+    /**
+     * Create new settings with default values.
+     * Settings are usually obtained from {@link CalcDialog#getSettings()}, but new instances
+     * can be created for {@link CalcView#setSettings(CalcSettings)}, one for each field.
+     */
+    public CalcSettings() {
+        // Default values are set by field initializers.
     }
 
     void validate() {
@@ -105,6 +120,9 @@ public class CalcSettings implements Parcelable {
 
     @NonNull
     public NumberFormat getNumberFormat() {
+        if (nbFormat == null) {
+            nbFormat = NumberFormatCache.getDefault(Locale.getDefault());
+        }
         return nbFormat;
     }
 
@@ -201,6 +219,23 @@ public class CalcSettings implements Parcelable {
         return isSignBtnShown;
     }
 
+    /**
+     * Set whether the row of function buttons should be shown: power, square root,
+     * exponential, natural logarithm and base 10 logarithm. The conversion button in the
+     * same row is shown whenever a conversion is set, see {@link #setConversionUnits(String, String)}.
+     * By default it is not shown.
+     * @param shown Whether to show it or not.
+     * @return The settings
+     */
+    public CalcSettings setFunctionBtnsShown(boolean shown) {
+        isFunctionBtnsShown = shown;
+        return this;
+    }
+
+    public boolean isFunctionBtnsShown() {
+        return isFunctionBtnsShown;
+    }
+
     /**
      * Set whether to evaluate the expression when an operation button is pressed (+, -, * and /).
      * If not, the display will show zero or no value if {@link #isZeroShownWhenNoValue} is true.
@@ -217,6 +252,59 @@ public class CalcSettings implements Parcelable {
         return shouldEvaluateOnOperation;
     }
 
+    /**
+     * Set whether to show a preview of the result under the value while typing, which is
+     * what the equal button would give. The preview is only shown if there's an expression.
+     * By default, the preview is not shown.
+     * @param shown Whether to show it or not.
+     * @return The settings
+     */
+    public CalcSettings setResultPreviewShown(boolean shown) {
+        isResultPreviewShown = shown;
+        return this;
+    }
+
+    public boolean isResultPreviewShown() {
+        return isResultPreviewShown;
+    }
+
+    /**
+     * Set the notation used to display values with more integer digits than the
+     * {@link #setNotationThreshold(int) threshold}, for example the result of a long chain
+     * of multiplications. The mantissa is formatted with the number format.
+     * By default, all digits are shown.
+     * @param notation The notation to use.
+     * @return The settings
+     * @see CalcNotation
+     */
+    public CalcSettings setNotation(@NonNull CalcNotation notation) {
+        this.notation = notation;
+        return this;
+    }
+
+    @NonNull
+    public CalcNotation getNotation() {
+        return notation;
+    }
+
+    /**
+     * Set the maximum number of integer digits shown before switching to the
+     * {@link #setNotation(CalcNotation) notation}. Default is 15 digits.
+     * @param digits The maximum number of integer digits, at least 1.
+     * @return The settings
+     */
+    public CalcSettings setNotationThreshold(int digits) {
+        if (digits < 1) {
+            throw new IllegalArgumentException("Notation threshold must be at least 1.");
+        }
+        notationThreshold = digits;
+        return this;
+    }
+
+    public int getNotationThreshold() {
+        return notationThreshold;
+    }
+
     /**
      * Set initial value to show. It must be within minimum and maximum values.
      * If null and {@link #isZeroShownWhenNoValue} is set to false, no value will be shown.
@@ -225,7 +313,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setInitialValue(@Nullable BigDecimal value) {
-        initialValue = value;
+        initialValue = BigDecimalCache.intern(value);
         return this;
     }
 
@@ -242,7 +330,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setMinValue(@Nullable BigDecimal minValue) {
-        this.minValue = minValue;
+        this.minValue = BigDecimalCache.intern(minValue);
         return this;
     }
 
@@ -259,7 +347,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setMaxValue(@Nullable BigDecimal maxValue) {
-        this.maxValue = maxValue;
+        this.maxValue = BigDecimalCache.intern(maxValue);
         return this;
     }
 
@@ -284,6 +372,108 @@ public class CalcSettings implements Parcelable {
         return isOrderOfOperationsApplied;
     }
 
+    /**
+     * Set whether to evaluate the expression on a background thread instead of the main thread.
+     * This can be useful for long expressions or with a large number of fraction digits.
+     * The value is shown as pending until the result is available. An evaluation whose
+     * result isn't needed is cancelled by the next button click, otherwise button clicks
+     * are processed in order once the result is available.
+     * By default, the expression is evaluated on the main thread.
+     * @param inBackground Whether to evaluate in background or not.
+     * @return The settings
+     */
+    public CalcSettings setEvaluatedInBackground(boolean inBackground) {
+        isEvaluatedInBackground = inBackground;
+        return this;
+    }
+
+    public boolean isEvaluatedInBackground() {
+        return isEvaluatedInBackground;
+    }
+
+    /**
+     * Set whether to evaluate expressions exactly, as fractions, rounding only the final result
+     * to the maximum fraction digits of the number format. Otherwise, each quotient is rounded
+     * when it is computed, so rounding errors can accumulate, e.g. {@code 1 ÷ 3 × 3} gives
+     * {@code 0.99999999}. By default, quotients are rounded.
+     * @param exactly Whether to evaluate exactly or not.
+     * @return The settings
+     */
+    public CalcSettings setEvaluatedExactly(boolean exactly) {
+        isEvaluatedExactly = exactly;
+        return this;
+    }
+
+    public boolean isEvaluatedExactly() {
+        return isEvaluatedExactly;
+    }
+
+    /**
+     * Set whether to record the keys pressed in a {@link CalcKeyLog}, which can be obtained with
+     * {@link CalcDialog#getKeyLog()} or {@link CalcView#getKeyLog()}. When recorded, the state is saved as the key log only
+     * and restored by replaying it, instead of saving the complete calculator state.
+     * By default, keys are not recorded.
+     * @param recorded Whether to record keys or not.
+     * @return The settings
+     */
+    public CalcSettings setKeyLogRecorded(boolean recorded) {
+        isKeyLogRecorded = recorded;
+        return this;
+    }
+
+    public boolean isKeyLogRecorded() {
+        return isKeyLogRecorded;
+    }
+
+    /**
+     * Set the statistic computed in statistics mode, or null to disable it. In statistics mode,
+     * each value entered with the equal button is added to the statistics, without keeping a
+     * list of values, and the statistic is shown instead with the number of values entered.
+     * The OK button enters the statistic. Values can still be the result of an expression,
+     * and the clear button removes all values.
+     * By default, statistics mode is disabled.
+     * @param statistic The statistic to compute, null for none.
+     * @return The settings
+     * @see CalcStatistic
+     */
+    public CalcSettings setStatistic(@Nullable CalcStatistic statistic) {
+        this.statistic = statistic;
+        return this;
+    }
+
+    @Nullable
+    public CalcStatistic getStatistic() {
+        return statistic;
+    }
+
+    /**
+     * Set the units converted by the conversion key, with the rates of the table set with
+     * {@link CalcDialog#setConversionTable(CalcConversionTable)} or
+     * {@link CalcView#setConversionTable(CalcConversionTable)}. The current value is
+     * converted and rounded to the maximum fraction digits of the number format.
+     * An "Invalid operation" error is shown if the table has no rate between the units.
+     * By default, there's no conversion.
+     * @param from The unit converted from, null for no conversion.
+     * @param to   The unit converted to, null for no conversion.
+     * @return The settings
+     * @see CalcConversionTable
+     */
+    public CalcSettings setConversionUnits(@Nullable String from, @Nullable String to) {
+        conversionFrom = from;
+        conversionTo = to;
+        return this;
+    }
+
+    @Nullable
+    public String getConversionFromUnit() {
+        return conversionFrom;
+    }
+
+    @Nullable
+    public String getConversionToUnit() {
+        return conversionTo;
+    }
+
 
     ////////// PARCELABLE //////////
     private CalcSettings(Parcel in) {
@@ -293,22 +483,38 @@ public class CalcSettings implements Parcelable {
         requestCode = bundle.getInt("requestCode");
 
         //noinspection ConstantConditions
-        nbFormat = (NumberFormat) bundle.getSerializable("nbFormat");
+        if (bundle.containsKey("nbFormat")) {
+            nbFormat = (NumberFormat) bundle.getSerializable("nbFormat");
+        } else if (bundle.containsKey("nbFormatLocale")) {
+            // Default format, no need to deserialize it.
+            nbFormat = NumberFormatCache.getDefault((Locale) bundle.getSerializable("nbFormatLocale"));
+        }
         //noinspection ConstantConditions
         numpadLayout = (CalcNumpadLayout) bundle.getSerializable("numpadLayout");
         isExpressionShown = bundle.getBoolean("isExpressionShown");
         isZeroShownWhenNoValue = bundle.getBoolean("isZeroShownWhenNoValue");
         isAnswerBtnShown = bundle.getBoolean("isAnswerBtnShown");
         isSignBtnShown = bundle.getBoolean("isSignBtnShown");
+        isFunctionBtnsShown = bundle.getBoolean("isFunctionBtnsShown");
         shouldEvaluateOnOperation = bundle.getBoolean("shouldEvaluateOnOperation");
+        isResultPreviewShown = bundle.getBoolean("isResultPreviewShown");
+        //noinspection ConstantConditions
+        notation = (CalcNotation) bundle.getSerializable("notation");
+        notationThreshold = bundle.getInt("notationThreshold");
 
         if (bundle.containsKey("initialValue"))
-            initialValue = (BigDecimal) bundle.getSerializable("initialValue");
+            initialValue = BigDecimalCache.intern((BigDecimal) bundle.getSerializable("initialValue"));
         if (bundle.containsKey("minValue"))
-            minValue = (BigDecimal) bundle.getSerializable("minValue");
+            minValue = BigDecimalCache.intern((BigDecimal) bundle.getSerializable("minValue"));
         if (bundle.containsKey("maxValue"))
-            maxValue = (BigDecimal) bundle.getSerializable("maxValue");
+            maxValue = BigDecimalCache.intern((BigDecimal) bundle.getSerializable("maxValue"));
         isOrderOfOperationsApplied = bundle.getBoolean("isOrderOfOperationsApplied");
+        isEvaluatedInBackground = bundle.getBoolean("isEvaluatedInBackground");
+        isEvaluatedExactly = bundle.getBoolean("isEvaluatedExactly");
+        isKeyLogRecorded = bundle.getBoolean("isKeyLogRecorded");
+        statistic = (CalcStatistic) bundle.getSerializable("statistic");
+        conversionFrom = bundle.getString("conversionFrom");
+        conversionTo = bundle.getString("conversionTo");
     }
 
     @Override
@@ -318,17 +524,34 @@ public class CalcSettings implements Parcelable {
         bundle.putInt("requestCode", requestCode);
 
         bundle.putSerializable("numpadLayout", numpadLayout);
-        bundle.putSerializable("nbFormat", nbFormat);
+        if (nbFormat != null) {
+            Locale locale = Locale.getDefault();
+            if (NumberFormatCache.isDefault(nbFormat, locale)) {
+                bundle.putSerializable("nbFormatLocale", locale);
+            } else {
+                bundle.putSerializable("nbFormat", nbFormat);
+            }
+        }
         bundle.putBoolean("isExpressionShown", isExpressionShown);
         bundle.putBoolean("isZeroShownWhenNoValue", isZeroShownWhenNoValue);
         bundle.putBoolean("isAnswerBtnShown", isAnswerBtnShown);
         bundle.putBoolean("isSignBtnShown", isSignBtnShown);
+        bundle.putBoolean("isFunctionBtnsShown", isFunctionBtnsShown);
         bundle.putBoolean("shouldEvaluateOnOperation", shouldEvaluateOnOperation);
+        bundle.putBoolean("isResultPreviewShown", isResultPreviewShown);
+        bundle.putSerializable("notation", notation);
+        bundle.putInt("notationThreshold", notationThreshold);
 
         if (initialValue != null) bundle.putSerializable("initialValue", initialValue);
         if (minValue != null) bundle.putSerializable("minValue", minValue);
         if (maxValue != null) bundle.putSerializable("maxValue", maxValue);
         bundle.putBoolean("isOrderOfOperationsApplied", isOrderOfOperationsApplied);
+        bundle.putBoolean("isEvaluatedInBackground", isEvaluatedInBackground);
+        bundle.putBoolean("isEvaluatedExactly", isEvaluatedExactly);
+        bundle.putBoolean("isKeyLogRecorded", isKeyLogRecorded);
+        if (statistic != null) bundle.putSerializable("statistic", statistic);
+        bundle.putString("conversionFrom", conversionFrom);
+        bundle.putString("conversionTo", conversionTo);
 
         out.writeBundle(bundle);
     }
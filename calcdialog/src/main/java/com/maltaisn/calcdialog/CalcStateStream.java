@@ -0,0 +1,340 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Stream of the calculator states, to follow the value while the user is typing,
+ * for example to show a live total. Obtained with {@link CalcDialog#getStateStream()}
+ * or {@link CalcView#getStateStream()}.
+ *
+ * Each subscriber receives states on its own executor. States are conflated: if a
+ * subscriber is slow or delivery is delayed, only the latest state is delivered.
+ * Delivery can also be throttled or debounced. Nothing is done when the state changes
+ * if there are no subscribers.
+ */
+public final class CalcStateStream {
+
+    /**
+     * Deliver at most one state per interval. The first state is delivered immediately,
+     * then the latest state at the end of each interval.
+     */
+    public static final int MODE_THROTTLE = 0;
+
+    /** Deliver the latest state once it hasn't changed for the interval. */
+    public static final int MODE_DEBOUNCE = 1;
+
+    /** Timer shared by all streams for delayed deliveries, created when first needed. */
+    private static ScheduledExecutorService timer;
+
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /** The last state published, null if none yet. */
+    @Nullable
+    private volatile State lastState;
+
+    // Last published values, to publish only changes. Used on the main thread only.
+    @Nullable
+    private BigDecimal lastValue;
+    @Nullable
+    private ExpressionSnapshot lastExpression;
+    private boolean lastIsResult;
+    private int lastError = CalcPresenter.ERROR_NONE;
+
+    CalcStateStream() {
+        // Streams are created by the views.
+    }
+
+    /**
+     * Subscribe to the states, delivered as soon as possible.
+     * @see #subscribe(Subscriber, Executor, long, int)
+     */
+    public void subscribe(@NonNull Subscriber subscriber, @NonNull Executor executor) {
+        subscribe(subscriber, executor, 0, MODE_THROTTLE);
+    }
+
+    /**
+     * Subscribe to the states. If a state was already published, it is delivered first.
+     * @param subscriber The subscriber.
+     * @param executor   The executor on which the subscriber is called. Calls are never
+     *                   concurrent for a same subscriber.
+     * @param interval   Throttling or debouncing interval in milliseconds, 0 for none.
+     * @param mode       How the interval is applied, {@link #MODE_THROTTLE} or {@link #MODE_DEBOUNCE}.
+     */
+    public void subscribe(@NonNull Subscriber subscriber, @NonNull Executor executor,
+                          long interval, int mode) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Interval must be positive.");
+        } else if (mode != MODE_THROTTLE && mode != MODE_DEBOUNCE) {
+            throw new IllegalArgumentException("Invalid mode.");
+        }
+
+        Subscription subscription = new Subscription(subscriber, executor, interval, mode);
+        synchronized (this) {
+            Subscription[] subs = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+            subs[subs.length - 1] = subscription;
+            subscriptions = subs;
+        }
+
+        State state = lastState;
+        if (state != null) {
+            subscription.offer(state);
+        }
+    }
+
+    /**
+     * Unsubscribe from the states. A state being delivered may still be received.
+     * @param subscriber The subscriber to remove, nothing happens if not subscribed.
+     */
+    public synchronized void unsubscribe(@NonNull Subscriber subscriber) {
+        Subscription[] subs = subscriptions;
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i].subscriber == subscriber) {
+                subs[i].cancelled = true;
+                Subscription[] newSubs = new Subscription[subs.length - 1];
+                System.arraycopy(subs, 0, newSubs, 0, i);
+                System.arraycopy(subs, i + 1, newSubs, i, subs.length - i - 1);
+                subscriptions = newSubs;
+                return;
+            }
+        }
+    }
+
+    boolean hasSubscribers() {
+        return subscriptions.length > 0;
+    }
+
+    /**
+     * Publish a new state to subscribers, if there are any and if it changed.
+     * Must be called on the main thread.
+     * @param value      The current value, null for none.
+     * @param expression The current expression.
+     * @param isResult   Whether the value is the result of the expression.
+     * @param error      The error code.
+     * @param nbFormat   The format used to format the expression.
+     */
+    void publish(@Nullable BigDecimal value, @NonNull ExpressionSnapshot expression,
+                 boolean isResult, int error, @NonNull NumberFormat nbFormat) {
+        Subscription[] subs = subscriptions;
+        if (subs.length == 0) return;
+
+        if (error != CalcPresenter.ERROR_NONE) {
+            value = null;
+        }
+        if (lastState != null && error == lastError && isResult == lastIsResult
+                && (value == null ? lastValue == null : value.equals(lastValue))
+                && expression.equals(lastExpression)) {
+            // Nothing changed.
+            return;
+        }
+        lastValue = value;
+        lastExpression = expression;
+        lastIsResult = isResult;
+        lastError = error;
+
+        String text = expression.format(nbFormat);
+        if (isResult) {
+            text += " =";
+        }
+        State state = new State(value, text, error);
+        lastState = state;
+
+        for (Subscription sub : subs) {
+            sub.offer(state);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "CalcStateStream");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static class Subscription {
+
+        final Subscriber subscriber;
+        final Executor executor;
+        final long interval;
+        final int mode;
+
+        /** The state to deliver next, null if none. */
+        final AtomicReference<State> pending = new AtomicReference<>();
+
+        /** Whether a delivery is scheduled or in progress. */
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        volatile boolean cancelled;
+        volatile long lastOfferTime;
+        volatile long lastDeliveryTime = Long.MIN_VALUE / 2;
+
+        /** Delivers the pending state on the executor. */
+        final Runnable deliverTask = new Runnable() {
+            @Override
+            public void run() {
+                State state = pending.getAndSet(null);
+                if (state != null && !cancelled) {
+                    subscriber.onStateChanged(state);
+                }
+                lastDeliveryTime = now();
+                scheduled.set(false);
+
+                // A state may have been offered during delivery.
+                if (pending.get() != null && scheduled.compareAndSet(false, true)) {
+                    schedule();
+                }
+            }
+        };
+
+        /** Called by the timer when the delay is over. */
+        final Runnable timerTask = new Runnable() {
+            @Override
+            public void run() {
+                long delay = getDelay();
+                if (delay > 0) {
+                    // Debounced and a state was offered since this was scheduled.
+                    getTimer().schedule(timerTask, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    executor.execute(deliverTask);
+                }
+            }
+        };
+
+        Subscription(Subscriber subscriber, Executor executor, long interval, int mode) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.interval = interval;
+            this.mode = mode;
+        }
+
+        void offer(State state) {
+            if (interval > 0) {
+                lastOfferTime = now();
+            }
+            pending.set(state);
+            if (scheduled.compareAndSet(false, true)) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            long delay = getDelay();
+            if (delay > 0) {
+                getTimer().schedule(timerTask, delay, TimeUnit.MILLISECONDS);
+            } else {
+                executor.execute(deliverTask);
+            }
+        }
+
+        /**
+         * @return the time to wait before delivering the pending state, in milliseconds.
+         */
+        private long getDelay() {
+            if (interval == 0) {
+                return 0;
+            } else if (mode == MODE_THROTTLE) {
+                return lastDeliveryTime + interval - now();
+            } else {
+                return lastOfferTime + interval - now();
+            }
+        }
+    }
+
+    public interface Subscriber {
+        /**
+         * Called when the calculator state changed.
+         * @param state The latest state.
+         */
+        void onStateChanged(@NonNull State state);
+    }
+
+    /**
+     * Immutable state of the calculator.
+     */
+    public static final class State {
+
+        @Nullable
+        private final BigDecimal value;
+
+        @NonNull
+        private final String expression;
+
+        private final int error;
+
+        State(@Nullable BigDecimal value, @NonNull String expression, int error) {
+            this.value = value;
+            this.expression = expression;
+            this.error = error;
+        }
+
+        /**
+         * @return the value currently displayed, which can be typed or an evaluated result.
+         * Null if there's no value or if there's an error.
+         */
+        @Nullable
+        public BigDecimal getValue() {
+            return value;
+        }
+
+        /**
+         * @return the expression typed, formatted with the number format of the settings.
+         * Empty if there's none.
+         */
+        @NonNull
+        public String getExpression() {
+            return expression;
+        }
+
+        /**
+         * @return the error displayed, one of the {@code ERROR_*} constants of {@link CalcDriver}.
+         */
+        public int getError() {
+            return error;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "State[value=" + value + ", expression=" + expression + ", error=" + error + "]";
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+/**
+ * Statistic shown and returned in statistics mode, computed over all values entered.
+ * @see CalcSettings#setStatistic(CalcStatistic)
+ */
+public enum CalcStatistic {
+
+    /**
+     * Number of values entered.
+     */
+    COUNT,
+
+    /**
+     * Sum of the values, exact like a sum in an expression.
+     */
+    SUM,
+
+    /**
+     * Mean of the values, rounded like a quotient in an expression.
+     */
+    MEAN,
+
+    /**
+     * Sample variance of the values, zero if fewer than two values were entered.
+     */
+    VARIANCE,
+
+    /**
+     * Sample standard deviation of the values, zero if fewer than two values were entered.
+     */
+    STANDARD_DEVIATION,
+
+    /**
+     * Smallest value entered.
+     */
+    MIN,
+
+    /**
+     * Largest value entered.
+     */
+    MAX
+
+}
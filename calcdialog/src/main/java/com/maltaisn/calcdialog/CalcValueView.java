@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+import androidx.appcompat.widget.AppCompatTextView;
+
+/**
+ * TextView showing the value, which shrinks its text to fit its width.
+ * The text width is computed from the cached widths of its characters, measured once per
+ * typeface at the maximum text size, and the fitting size is found from the ratio
+ * of the available width to the text width, without measuring the text again.
+ * Attributes:
+ * - calcValueMinTextSize: Minimum text size, below which the text is ellipsized.
+ * Default value is 12sp. The maximum text size is the text size set on the view.
+ */
+class CalcValueView extends AppCompatTextView {
+
+    /**
+     * Glyph widths cache, by typeface and text size. Only used on the main thread.
+     */
+    private static final Map<GlyphWidths, GlyphWidths> GLYPH_WIDTHS = new HashMap<>();
+
+    private final float maxTextSize;
+    private final float minTextSize;
+
+    @Nullable
+    private GlyphWidths glyphWidths;
+
+    public CalcValueView(Context context) {
+        this(context, null, 0);
+    }
+
+    public CalcValueView(Context context, @Nullable AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public CalcValueView(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+
+        maxTextSize = getTextSize();
+
+        TypedArray ta = getContext().obtainStyledAttributes(attrs, R.styleable.CalcValueView);
+        float defaultMin = 12 * getResources().getDisplayMetrics().scaledDensity;
+        minTextSize = Math.min(maxTextSize, ta.getDimension(
+                R.styleable.CalcValueView_calcValueMinTextSize, defaultMin));
+        ta.recycle();
+
+        fitText();
+    }
+
+    @Override
+    protected void onTextChanged(CharSequence text, int start, int lengthBefore, int lengthAfter) {
+        super.onTextChanged(text, start, lengthBefore, lengthAfter);
+        fitText();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (w != oldw) {
+            fitText();
+        }
+    }
+
+    private void fitText() {
+        if (maxTextSize == 0) {
+            // Called by the TextView constructor, not initialized yet.
+            return;
+        }
+        int available = getWidth() - getCompoundPaddingLeft() - getCompoundPaddingRight();
+        if (available <= 0) {
+            // Not laid out yet, text is fitted when the size is known.
+            return;
+        }
+
+        if (glyphWidths == null || glyphWidths.typeface != getPaint().getTypeface()) {
+            glyphWidths = getGlyphWidths(getPaint(), maxTextSize);
+        }
+
+        // Text width is proportional to the text size, so the text fits at the
+        // maximum size reduced by the ratio of the available width to the text width.
+        float textWidth = glyphWidths.measure(getText());
+        float size = maxTextSize;
+        if (textWidth > available) {
+            size = Math.max(minTextSize, (float) Math.floor(maxTextSize * available / textWidth));
+        }
+        if (size != getTextSize()) {
+            setTextSize(TypedValue.COMPLEX_UNIT_PX, size);
+        }
+    }
+
+    private static GlyphWidths getGlyphWidths(Paint paint, float textSize) {
+        GlyphWidths key = new GlyphWidths(paint.getTypeface(), textSize);
+        GlyphWidths widths = GLYPH_WIDTHS.get(key);
+        if (widths == null) {
+            widths = key;
+            widths.paint = new Paint(paint);
+            widths.paint.setTextSize(textSize);
+            GLYPH_WIDTHS.put(key, widths);
+        }
+        return widths;
+    }
+
+    /**
+     * Widths of the characters for a typeface and a text size, measured when first needed.
+     * Values usually use only digits, separators, the sign and a few other characters.
+     */
+    private static final class GlyphWidths {
+
+        @Nullable
+        final Typeface typeface;
+        final float textSize;
+
+        Paint paint;
+
+        /** Widths of ASCII characters, NaN if not measured yet. */
+        private final float[] asciiWidths = new float[128];
+
+        /** Widths of other characters. */
+        private final Map<Character, Float> otherWidths = new HashMap<>();
+
+        private final char[] buffer = new char[1];
+
+        GlyphWidths(@Nullable Typeface typeface, float textSize) {
+            this.typeface = typeface;
+            this.textSize = textSize;
+            Arrays.fill(asciiWidths, Float.NaN);
+        }
+
+        float measure(CharSequence text) {
+            float width = 0;
+            for (int i = 0; i < text.length(); i++) {
+                width += getWidth(text.charAt(i));
+            }
+            return width;
+        }
+
+        private float getWidth(char c) {
+            if (c < asciiWidths.length) {
+                float w = asciiWidths[c];
+                if (Float.isNaN(w)) {
+                    w = measureChar(c);
+                    asciiWidths[c] = w;
+                }
+                return w;
+            } else {
+                Float w = otherWidths.get(c);
+                if (w == null) {
+                    w = measureChar(c);
+                    otherWidths.put(c, w);
+                }
+                return w;
+            }
+        }
+
+        private float measureChar(char c) {
+            buffer[0] = c;
+            return paint.measureText(buffer, 0, 1);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof GlyphWidths)) return false;
+            GlyphWidths widths = (GlyphWidths) obj;
+            return typeface == widths.typeface && textSize == widths.textSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(typeface) + Float.floatToIntBits(textSize);
+        }
+    }
+
+}
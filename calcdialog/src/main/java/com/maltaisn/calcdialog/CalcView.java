@@ -0,0 +1,709 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.AttributeSet;
+import android.view.ContextThemeWrapper;
+import android.view.KeyEvent;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.Button;
+import android.widget.FrameLayout;
+import android.widget.HorizontalScrollView;
+import android.widget.TextView;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Embeddable calculator view, with the same layout and behavior as {@link CalcDialog}.
+ * A single instance can be reused for many fields by calling {@link #setSettings(CalcSettings)}
+ * each time the target field changes, which avoids creating a dialog for every field.
+ * Settings must be set before the view is attached to a window. Like other views, the
+ * input is saved and restored on configuration changes only if the view has an ID.
+ */
+public class CalcView extends FrameLayout implements CalcPresenterView {
+
+    private static final String TAG = CalcView.class.getSimpleName();
+
+    private static final int NO_KEY = -1;  // Same as CalcPresenter.getKeyForChar
+
+    // Indexes of text elements in R.array.calc_dialog_btn_texts
+    private static final int TEXT_INDEX_ADD = 10;
+    private static final int TEXT_INDEX_SUB = 11;
+    private static final int TEXT_INDEX_MUL = 12;
+    private static final int TEXT_INDEX_DIV = 13;
+    private static final int TEXT_INDEX_SIGN = 14;
+    private static final int TEXT_INDEX_DEC_SEP = 15;
+    private static final int TEXT_INDEX_EQUAL = 16;
+
+    private final CalcPresenter presenter = new CalcPresenter();
+
+    @Nullable
+    private CalcStateStream stateStream;
+
+    @Nullable
+    private CalcSettings settings;
+
+    @Nullable
+    private CalcDialog.CalcDialogCallback callback;
+
+    @Nullable
+    private OnExitListener exitListener;
+
+    /** The numpad layout for which digit buttons are currently bound, null if not bound yet. */
+    @Nullable
+    private CalcNumpadLayout boundNumpadLayout;
+
+    private final View contentView;
+    private final HorizontalScrollView expressionHsv;
+    private final CalcExpressionView expressionTxv;
+    private final CalcValueView valueTxv;
+    private final TextView previewTxv;
+    private final TextView decimalSepBtn;
+    private final TextView equalBtn;
+    private final TextView answerBtn;
+    private final TextView signBtn;
+    private final View functionsLayout;
+    private final TextView[] functionBtns;
+    private final TextView convertBtn;
+
+    private final CharSequence[] btnTexts;
+    private final CharSequence[] errorMessages;
+
+    /** Keys typed with a keyboard during the current frame, not processed yet. */
+    private int[] keyQueue = new int[16];
+    private int keyQueueSize;
+
+    /** Processes all keys in the queue at once, posted on the next frame. */
+    private final Runnable keyQueueRunnable = new Runnable() {
+        @Override
+        public void run() {
+            processKeyQueue();
+        }
+    };
+
+
+    public CalcView(@NonNull Context context) {
+        this(context, null, 0);
+    }
+
+    public CalcView(@NonNull Context context, @Nullable AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public CalcView(@NonNull Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
+        super(wrapContext(context), attrs, defStyleAttr);
+
+        // Focusable to receive key events from a hardware keyboard.
+        setFocusable(true);
+        setFocusableInTouchMode(true);
+
+        // Get strings
+        TypedArray ta = getContext().obtainStyledAttributes(R.styleable.CalcDialog);
+        btnTexts = ta.getTextArray(R.styleable.CalcDialog_calcButtonTexts);
+        errorMessages = ta.getTextArray(R.styleable.CalcDialog_calcErrors);
+        ta.recycle();
+
+        contentView = LayoutInflater.from(getContext()).inflate(R.layout.dialog_calc, this, false);
+        addView(contentView);
+
+        // Value and expression views
+        valueTxv = contentView.findViewById(R.id.calc_txv_value);
+        previewTxv = contentView.findViewById(R.id.calc_txv_preview);
+
+        expressionHsv = contentView.findViewById(R.id.calc_hsv_expression);
+        expressionTxv = contentView.findViewById(R.id.calc_txv_expression);
+
+        // Erase button
+        CalcEraseButton eraseBtn = contentView.findViewById(R.id.calc_btn_erase);
+        eraseBtn.setOnEraseListener(new CalcEraseButton.EraseListener() {
+            @Override
+            public void onErase() {
+                presenter.onKey(CalcPresenter.KEY_ERASE);
+            }
+
+            @Override
+            public void onEraseAll() {
+                presenter.onKey(CalcPresenter.KEY_CLEAR);
+            }
+        });
+
+        // Operator buttons
+        final TextView addBtn = contentView.findViewById(R.id.calc_btn_add);
+        final TextView subBtn = contentView.findViewById(R.id.calc_btn_sub);
+        final TextView mulBtn = contentView.findViewById(R.id.calc_btn_mul);
+        final TextView divBtn = contentView.findViewById(R.id.calc_btn_div);
+
+        addBtn.setText(btnTexts[TEXT_INDEX_ADD]);
+        subBtn.setText(btnTexts[TEXT_INDEX_SUB]);
+        mulBtn.setText(btnTexts[TEXT_INDEX_MUL]);
+        divBtn.setText(btnTexts[TEXT_INDEX_DIV]);
+
+        addBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_ADD);
+            }
+        });
+        subBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_SUBTRACT);
+            }
+        });
+        mulBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_MULTIPLY);
+            }
+        });
+        divBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_DIVIDE);
+            }
+        });
+
+        // Sign button: +/-
+        signBtn = contentView.findViewById(R.id.calc_btn_sign);
+        signBtn.setText(btnTexts[TEXT_INDEX_SIGN]);
+        signBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_SIGN);
+            }
+        });
+
+        // Function buttons: power, square root, exp, ln and log10
+        functionsLayout = contentView.findViewById(R.id.calc_layout_functions);
+        int[] functionBtnIds = {R.id.calc_btn_power, R.id.calc_btn_sqrt,
+                R.id.calc_btn_exp, R.id.calc_btn_ln, R.id.calc_btn_log};
+        int[] functionKeys = {CalcPresenter.KEY_POWER, CalcPresenter.KEY_SQRT,
+                CalcPresenter.KEY_EXP, CalcPresenter.KEY_LN, CalcPresenter.KEY_LOG};
+        functionBtns = new TextView[functionBtnIds.length];
+        for (int i = 0; i < functionBtnIds.length; i++) {
+            functionBtns[i] = contentView.findViewById(functionBtnIds[i]);
+
+            final int key = functionKeys[i];
+            functionBtns[i].setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    presenter.onKey(key);
+                }
+            });
+        }
+
+        // Conversion button
+        convertBtn = contentView.findViewById(R.id.calc_btn_convert);
+        convertBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_CONVERT);
+            }
+        });
+
+        // Decimal separator button
+        decimalSepBtn = contentView.findViewById(R.id.calc_btn_decimal);
+        decimalSepBtn.setText(btnTexts[TEXT_INDEX_DEC_SEP]);
+        decimalSepBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_DECIMAL_SEP);
+            }
+        });
+
+        // Equal button
+        equalBtn = contentView.findViewById(R.id.calc_btn_equal);
+        equalBtn.setText(btnTexts[TEXT_INDEX_EQUAL]);
+        equalBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_EQUAL);
+            }
+        });
+
+        // Answer button
+        answerBtn = contentView.findViewById(R.id.calc_btn_answer);
+        answerBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_ANSWER);
+            }
+        });
+
+        // Dialog buttons
+        Button clearBtn = contentView.findViewById(R.id.calc_btn_clear);
+        clearBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_CLEAR);
+            }
+        });
+
+        Button cancelBtn = contentView.findViewById(R.id.calc_btn_cancel);
+        cancelBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_CANCEL);
+            }
+        });
+
+        Button okBtn = contentView.findViewById(R.id.calc_btn_ok);
+        okBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onKey(CalcPresenter.KEY_OK);
+            }
+        });
+    }
+
+    /**
+     * Wrap the calculator's theme to a context, unless it was already wrapped.
+     */
+    static Context wrapContext(Context context) {
+        if (context instanceof CalcThemeContext) {
+            return context;
+        }
+        TypedArray ta = context.obtainStyledAttributes(new int[]{R.attr.calcDialogStyle});
+        int style = ta.getResourceId(0, R.style.CalcDialogStyle);
+        ta.recycle();
+        return new CalcThemeContext(context, style);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (settings == null) {
+            throw new IllegalStateException("Calculator settings must be set before the view is shown.");
+        }
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        Bundle state = new Bundle();
+        state.putParcelable("superState", super.onSaveInstanceState());
+        if (settings != null) {
+            state.putParcelable("settings", settings);
+            presenter.writeStateToBundle(state);
+        }
+        return state;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof Bundle)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+        Bundle bundle = (Bundle) state;
+        super.onRestoreInstanceState(bundle.getParcelable("superState"));
+        if (bundle.containsKey("settings")) {
+            // Settings restored replace those set when the view was recreated.
+            CalcSettings settings = bundle.getParcelable("settings");
+            //noinspection ConstantConditions
+            setSettings(settings, bundle);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(keyQueueRunnable);
+        keyQueueSize = 0;
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        return handleKeyEvent(event) || super.onKeyDown(keyCode, event);
+    }
+
+    @Override
+    public boolean onKeyMultiple(int keyCode, int repeatCount, KeyEvent event) {
+        return handleKeyEvent(event) || super.onKeyMultiple(keyCode, repeatCount, event);
+    }
+
+    /**
+     * Handle a key event from a hardware keyboard. Digits, operators, the decimal separator,
+     * the equal sign, enter, backspace and clear are supported. Keys are queued and
+     * processed at once on the next frame, so the display is only updated once even if
+     * many keys are typed in the same frame, for example by a barcode scanner.
+     * @param event The key event.
+     * @return Whether the event was handled.
+     */
+    boolean handleKeyEvent(@NonNull KeyEvent event) {
+        int action = event.getAction();
+        if (action == KeyEvent.ACTION_MULTIPLE && event.getKeyCode() == KeyEvent.KEYCODE_UNKNOWN) {
+            // Sequence of characters.
+            String chars = event.getCharacters();
+            if (chars == null) return false;
+            boolean handled = false;
+            for (int i = 0; i < chars.length(); i++) {
+                int key = getKeyForChar(chars.charAt(i));
+                if (key != NO_KEY) {
+                    queueKey(key);
+                    handled = true;
+                }
+            }
+            return handled;
+        }
+
+        int key = getKeyForEvent(event);
+        if (key == NO_KEY) {
+            return false;
+        } else if (action == KeyEvent.ACTION_DOWN) {
+            queueKey(key);
+        } else if (action == KeyEvent.ACTION_MULTIPLE) {
+            for (int i = 0; i < event.getRepeatCount(); i++) {
+                queueKey(key);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the calculator key for a key event, or {@link #NO_KEY} if not supported.
+     */
+    private int getKeyForEvent(@NonNull KeyEvent event) {
+        switch (event.getKeyCode()) {
+            case KeyEvent.KEYCODE_DEL:
+                return CalcPresenter.KEY_ERASE;
+            case KeyEvent.KEYCODE_CLEAR:
+                return CalcPresenter.KEY_CLEAR;
+            case KeyEvent.KEYCODE_ENTER:
+            case KeyEvent.KEYCODE_NUMPAD_ENTER:
+            case KeyEvent.KEYCODE_NUMPAD_EQUALS:
+                return CalcPresenter.KEY_EQUAL;
+            case KeyEvent.KEYCODE_NUMPAD_ADD:
+                return CalcPresenter.KEY_ADD;
+            case KeyEvent.KEYCODE_NUMPAD_SUBTRACT:
+                return CalcPresenter.KEY_SUBTRACT;
+            case KeyEvent.KEYCODE_NUMPAD_MULTIPLY:
+                return CalcPresenter.KEY_MULTIPLY;
+            case KeyEvent.KEYCODE_NUMPAD_DIVIDE:
+                return CalcPresenter.KEY_DIVIDE;
+            default:
+                // Use the character to support any keyboard layout.
+                return getKeyForChar((char) event.getUnicodeChar());
+        }
+    }
+
+    /**
+     * @return the calculator key for a typed character, or {@link #NO_KEY} if not supported.
+     */
+    private int getKeyForChar(char c) {
+        if ((c == '.' || c == ',') && settings != null
+                && settings.getNumberFormat() instanceof DecimalFormat) {
+            // Period and comma are accepted as the decimal separator unless used for grouping.
+            DecimalFormatSymbols symbols = ((DecimalFormat) settings.getNumberFormat()).getDecimalFormatSymbols();
+            if (c != symbols.getDecimalSeparator() && c == symbols.getGroupingSeparator()) {
+                return NO_KEY;
+            }
+        }
+        return CalcPresenter.getKeyForChar(c);
+    }
+
+    private void queueKey(int key) {
+        if (keyQueueSize == 0) {
+            postOnAnimation(keyQueueRunnable);
+        } else if (keyQueueSize == keyQueue.length) {
+            keyQueue = Arrays.copyOf(keyQueue, keyQueueSize * 2);
+        }
+        keyQueue[keyQueueSize] = key;
+        keyQueueSize++;
+    }
+
+    private void processKeyQueue() {
+        if (settings == null) {
+            keyQueueSize = 0;
+            return;
+        }
+
+        presenter.beginBatch();
+        for (int i = 0; i < keyQueueSize; i++) {
+            presenter.onKey(keyQueue[i]);
+        }
+        keyQueueSize = 0;
+        presenter.endBatch();
+    }
+
+    /**
+     * Set the settings of the calculator and start a new input with them.
+     * This can be called at any time to retarget the view to another field, the
+     * current input is discarded. The settings must not be changed afterwards
+     * unless this method is called again.
+     * @param settings The settings, with the request code identifying the field.
+     */
+    public void setSettings(@NonNull CalcSettings settings) {
+        setSettings(settings, null);
+    }
+
+    /**
+     * Set the settings of the calculator and restore the presenter state if there's one.
+     * @param settings The settings.
+     * @param state The state to restore, or null to start a new input.
+     */
+    void setSettings(@NonNull CalcSettings settings, @Nullable Bundle state) {
+        if (this.settings != null) {
+            presenter.detach();
+        }
+        this.settings = settings;
+
+        if (settings.numpadLayout != boundNumpadLayout) {
+            // Digit buttons
+            for (int i = 0; i < 10; i++) {
+                TextView digitBtn = contentView.findViewById(settings.numpadLayout.buttonIds[i]);
+                digitBtn.setText(btnTexts[i]);
+
+                final int digit = i;
+                digitBtn.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        presenter.onKey(digit);
+                    }
+                });
+            }
+            boundNumpadLayout = settings.numpadLayout;
+        }
+
+        presenter.attach(this, state);
+    }
+
+    /**
+     * @return the calculator settings, as set by {@link #setSettings(CalcSettings)}.
+     */
+    @NonNull
+    @Override
+    public CalcSettings getSettings() {
+        if (settings == null) {
+            throw new IllegalStateException("Calculator settings weren't set.");
+        }
+        return settings;
+    }
+
+    /**
+     * @return the log of keys pressed since the settings were set, or null if
+     * {@link CalcSettings#isKeyLogRecorded()} is false.
+     */
+    @Nullable
+    public CalcKeyLog getKeyLog() {
+        return presenter.getKeyLog();
+    }
+
+    /**
+     * @return the stream of states of this view, to follow the value while it's typed.
+     */
+    @NonNull
+    public CalcStateStream getStateStream() {
+        if (stateStream == null) {
+            stateStream = new CalcStateStream();
+            presenter.setStateStream(stateStream);
+        }
+        return stateStream;
+    }
+
+    /**
+     * Set the history to which calculations done with the equal button are added.
+     * The last result of the history is available with the answer button if shown.
+     * Must be set before the settings.
+     * @param history The history, null for none.
+     */
+    public void setHistory(@Nullable CalcHistory history) {
+        presenter.setHistory(history);
+    }
+
+    /**
+     * Set the table of rates used to convert the current value between the units set with
+     * {@link CalcSettings#setConversionUnits(String, String)}. Must be set before the settings.
+     * @param table The table, null for none.
+     */
+    public void setConversionTable(@Nullable CalcConversionTable table) {
+        presenter.setConversionTable(table);
+    }
+
+    /**
+     * Set the stream to which states are published, used by the dialog so that
+     * subscriptions outlive the view.
+     */
+    void setStateStream(@NonNull CalcStateStream stream) {
+        stateStream = stream;
+        presenter.setStateStream(stream);
+    }
+
+    /**
+     * Set the callback notified when a value is entered with the OK button.
+     * The request code passed to the callback is the one of the current settings.
+     * @param callback The callback, can be null for none.
+     */
+    public void setCallback(@Nullable CalcDialog.CalcDialogCallback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Set the listener notified when the user is done with the calculator, either
+     * after a value was entered with the OK button or after the cancel button was clicked.
+     * @param listener The listener, can be null for none.
+     */
+    public void setOnExitListener(@Nullable OnExitListener listener) {
+        exitListener = listener;
+    }
+
+    void writeStateToBundle(@NonNull Bundle state) {
+        presenter.writeStateToBundle(state);
+    }
+
+    void onDismissed() {
+        presenter.onDismissed();
+    }
+
+    void detach() {
+        if (settings != null) {
+            presenter.detach();
+        }
+    }
+
+    ////////// VIEW METHODS //////////
+    @Override
+    public void exit() {
+        // Discard keys typed after the OK or cancel button.
+        keyQueueSize = 0;
+
+        if (exitListener != null) {
+            exitListener.onExit(this);
+        }
+    }
+
+    @Override
+    public void sendValueResult(@Nullable BigDecimal value) {
+        if (callback != null) {
+            callback.onValueEntered(getSettings().requestCode, value);
+        }
+    }
+
+    @Override
+    public void setExpressionVisible(boolean visible) {
+        expressionHsv.setVisibility(visible ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    public void setAnswerBtnVisible(boolean visible) {
+        answerBtn.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
+        equalBtn.setVisibility(visible ? View.INVISIBLE : View.VISIBLE);
+    }
+
+    @Override
+    public void setSignBtnVisible(boolean visible) {
+        signBtn.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
+    }
+
+    @Override
+    public void setFunctionBtnsVisible(boolean functionsVisible, boolean convertVisible) {
+        // The row is hidden completely when empty, so that the numpad takes the space.
+        functionsLayout.setVisibility(functionsVisible || convertVisible ? View.VISIBLE : View.GONE);
+        for (TextView functionBtn : functionBtns) {
+            functionBtn.setVisibility(functionsVisible ? View.VISIBLE : View.GONE);
+        }
+        convertBtn.setVisibility(convertVisible ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    public void setDecimalSepBtnEnabled(boolean enabled) {
+        decimalSepBtn.setEnabled(enabled);
+    }
+
+    @Override
+    public void updateExpression(@NonNull String text) {
+        expressionTxv.setExpression(text);
+
+        // Scroll to the end.
+        expressionHsv.post(new Runnable() {
+            @Override
+            public void run() {
+                expressionHsv.fullScroll(View.FOCUS_RIGHT);
+            }
+        });
+    }
+
+    @Override
+    public void showStatisticCount(long count) {
+        expressionTxv.setExpression(getResources().getString(R.string.calc_stat_count, count));
+    }
+
+    @Override
+    public void updateCurrentValue(@Nullable String text) {
+        valueTxv.setText(text);
+    }
+
+    @Override
+    public void setPreviewVisible(boolean visible) {
+        previewTxv.setVisibility(visible ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    public void updatePreview(@Nullable String text) {
+        previewTxv.setText(text);
+    }
+
+    @Override
+    public void showErrorText(int error) {
+        CharSequence[] messages = errorMessages;
+        if (error >= messages.length) {
+            // Error messages set by the app may predate the latest error codes.
+            messages = getResources().getTextArray(R.array.calc_dialog_errors);
+        }
+        valueTxv.setText(messages[error]);
+    }
+
+    @Override
+    public void showAnswerText() {
+        valueTxv.setText(R.string.calc_answer);
+    }
+
+    @Override
+    public void showPendingText() {
+        valueTxv.setText(R.string.calc_pending);
+    }
+
+    public interface OnExitListener {
+        /**
+         * Called when the OK button was clicked and a value was sent to the callback,
+         * or when the cancel button was clicked.
+         * @param view The calculator view.
+         */
+        void onExit(@NonNull CalcView view);
+    }
+
+    /**
+     * Context with the calculator's theme, so that it's only applied once.
+     */
+    private static final class CalcThemeContext extends ContextThemeWrapper {
+
+        CalcThemeContext(Context base, int themeResId) {
+            super(base, themeResId);
+        }
+    }
+
+}
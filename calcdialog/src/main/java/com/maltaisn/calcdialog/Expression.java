@@ -22,119 +22,325 @@ import android.os.Parcelable;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.NumberFormat;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 class Expression implements Parcelable {
 
-    final List<BigDecimal> numbers = new ArrayList<>();
-    final List<Operator> operators = new ArrayList<>();
+    /** Scale value indicating that a number is stored in {@link #bigNumbers}. */
+    static final int BIG_NUMBER = Integer.MIN_VALUE;
 
-    Expression() {}
+    private static final int INITIAL_CAPACITY = 8;
+
+    static final Operator[] OPERATORS = Operator.values();
+
+    /**
+     * Numbers of the expression. Numbers whose unscaled value fits in a long are stored
+     * in {@link #unscaled} and {@link #scales}. Others have a scale of {@link #BIG_NUMBER}
+     * and their unscaled value is the index of the number in {@link #bigNumbers}.
+     */
+    private long[] unscaled;
+    private int[] scales;
+    private int numberCount;
+    private BigDecimal[] bigNumbers;
+    private int bigCount;
+
+    /** Operators of the expression, stored by their ordinal. */
+    private byte[] operators;
+    private int operatorCount;
+
+    /**
+     * Number of elements of each array that can be seen by snapshots. Writing to one of
+     * these elements requires copying the array first. Appending never does.
+     */
+    private int sharedNumberCount;
+    private int sharedBigCount;
+    private int sharedOperatorCount;
+
+    /** Snapshot of the current state, or null if it was modified since the last snapshot. */
+    private ExpressionSnapshot lastSnapshot;
+
+    /** Partial evaluation used to preview results, null if never needed. */
+    @Nullable
+    private PrefixEvaluator prefixEvaluator;
+
+    Expression() {
+        unscaled = new long[INITIAL_CAPACITY];
+        scales = new int[INITIAL_CAPACITY];
+        bigNumbers = new BigDecimal[0];
+        operators = new byte[INITIAL_CAPACITY];
+    }
 
     void clear() {
-        numbers.clear();
-        operators.clear();
+        numberCount = 0;
+        bigCount = 0;
+        operatorCount = 0;
+        lastSnapshot = null;
+        if (prefixEvaluator != null) {
+            prefixEvaluator.truncate(0);
+        }
+    }
+
+    int getNumberCount() {
+        return numberCount;
+    }
+
+    int getOperatorCount() {
+        return operatorCount;
+    }
+
+    @NonNull
+    BigDecimal getNumber(int index) {
+        if (scales[index] == BIG_NUMBER) {
+            return bigNumbers[(int) unscaled[index]];
+        } else {
+            return BigDecimalCache.valueOf(unscaled[index], scales[index]);
+        }
+    }
+
+    @NonNull
+    Operator getOperator(int index) {
+        return OPERATORS[operators[index]];
+    }
+
+    void addNumber(@NonNull BigDecimal number) {
+        if (number.unscaledValue().bitLength() < Long.SIZE && number.scale() != BIG_NUMBER) {
+            addNumber(number.unscaledValue().longValue(), number.scale());
+            return;
+        }
+        ensureNumberCapacity();
+        if (bigCount == bigNumbers.length) {
+            bigNumbers = Arrays.copyOf(bigNumbers, Math.max(INITIAL_CAPACITY, bigCount * 2));
+            sharedBigCount = 0;
+        } else if (bigCount < sharedBigCount) {
+            bigNumbers = bigNumbers.clone();
+            sharedBigCount = 0;
+        }
+        unscaled[numberCount] = bigCount;
+        scales[numberCount] = BIG_NUMBER;
+        bigNumbers[bigCount] = number;
+        bigCount++;
+        numberCount++;
+        lastSnapshot = null;
     }
 
     /**
-     * Evaluate the expression and return the result.
-     * @param priority     Whether to apply operation priority or not.
-     * @param scale        Scale used for division.
-     * @param roundingMode Rounding mode used for division.
-     * @return The result.
-     * @throws ArithmeticException if a division by zero occurred.
+     * Add a number from its unscaled value and scale, without creating a BigDecimal.
+     */
+    void addNumber(long unscaledValue, int scale) {
+        if (scale == BIG_NUMBER) {
+            addNumber(BigDecimal.valueOf(unscaledValue, scale));
+            return;
+        }
+        ensureNumberCapacity();
+        unscaled[numberCount] = unscaledValue;
+        scales[numberCount] = scale;
+        numberCount++;
+        lastSnapshot = null;
+    }
+
+    private void ensureNumberCapacity() {
+        if (numberCount == unscaled.length) {
+            unscaled = Arrays.copyOf(unscaled, numberCount * 2);
+            scales = Arrays.copyOf(scales, numberCount * 2);
+            sharedNumberCount = 0;
+        } else if (numberCount < sharedNumberCount) {
+            // Element was removed but is still seen by a snapshot.
+            unscaled = unscaled.clone();
+            scales = scales.clone();
+            sharedNumberCount = 0;
+        }
+    }
+
+    void addOperator(@NonNull Operator operator) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount * 2);
+            sharedOperatorCount = 0;
+        } else if (operatorCount < sharedOperatorCount) {
+            operators = operators.clone();
+            sharedOperatorCount = 0;
+        }
+        operators[operatorCount] = (byte) operator.ordinal();
+        operatorCount++;
+        lastSnapshot = null;
+    }
+
+    /**
+     * Remove the last number of the expression.
+     * @return The removed number.
      */
     @NonNull
-    BigDecimal evaluate(boolean priority, int scale, RoundingMode roundingMode) {
-        if (numbers.size() != operators.size() + 1) {
-            throw new IllegalStateException("Numbers and operators aren't balanced.");
-        }
-
-        if (numbers.size() == 1) return numbers.get(0);
-
-        List<BigDecimal> nbs = new ArrayList<>(numbers);
-        List<Operator> ops = new ArrayList<>(operators);
-
-        if (priority) {
-            // Evaluate products and quotients
-            int i = 0;
-            while (i < ops.size()) {
-                Operator op = ops.get(i);
-                if (op == Operator.MULTIPLY) {
-                    ops.remove(i);
-                    BigDecimal n1 = nbs.get(i);
-                    BigDecimal n2 = nbs.remove(i + 1);
-                    nbs.set(i, n1.multiply(n2));
-                } else if (op == Operator.DIVIDE) {
-                    ops.remove(i);
-                    BigDecimal n1 = nbs.get(i);
-                    BigDecimal n2 = nbs.remove(i + 1);
-                    nbs.set(i, n1.divide(n2, scale, roundingMode));
-                } else {
-                    i++;
-                }
+    BigDecimal removeLastNumber() {
+        BigDecimal number = getNumber(numberCount - 1);
+        if (scales[numberCount - 1] == BIG_NUMBER) {
+            // Big numbers are added in order so the last one is always at the end.
+            bigCount--;
+            if (bigCount >= sharedBigCount) {
+                bigNumbers[bigCount] = null;
             }
         }
+        numberCount--;
+        lastSnapshot = null;
+        if (prefixEvaluator != null) {
+            prefixEvaluator.truncate(numberCount);
+        }
+        return number;
+    }
 
-        // Evaluate the rest
-        while (!ops.isEmpty()) {
-            Operator op = ops.remove(0);
-            BigDecimal n1 = nbs.get(0);
-            BigDecimal n2 = nbs.remove(1);
-            if (op == Operator.ADD) {
-                nbs.set(0, n1.add(n2));
-            } else if (op == Operator.SUBTRACT) {
-                nbs.set(0, n1.subtract(n2));
-            } else if (op == Operator.MULTIPLY) {
-                nbs.set(0, n1.multiply(n2));
-            } else {
-                nbs.set(0, n1.divide(n2, scale, roundingMode));
-            }
+    void removeLastOperator() {
+        operatorCount--;
+        lastSnapshot = null;
+    }
+
+    void setLastOperator(@NonNull Operator operator) {
+        if (operatorCount - 1 < sharedOperatorCount) {
+            operators = operators.clone();
+            sharedOperatorCount = 0;
         }
+        operators[operatorCount - 1] = (byte) operator.ordinal();
+        lastSnapshot = null;
+    }
 
-        return nbs.remove(0).stripTrailingZeros();
+    /**
+     * Get an immutable snapshot of the expression in its current state. Snapshots share
+     * the storage of the expression, which is only copied if it is modified in a way that
+     * would change a snapshot, so this takes constant time.
+     * @return The snapshot, which can be used on any thread.
+     */
+    @NonNull
+    ExpressionSnapshot snapshot() {
+        if (lastSnapshot == null) {
+            sharedNumberCount = Math.max(sharedNumberCount, numberCount);
+            sharedBigCount = Math.max(sharedBigCount, bigCount);
+            sharedOperatorCount = Math.max(sharedOperatorCount, operatorCount);
+            lastSnapshot = new ExpressionSnapshot(unscaled, scales, numberCount,
+                    bigNumbers, operators, operatorCount);
+        }
+        return lastSnapshot;
     }
 
     /**
-     * Format the expression to a string.
-     * @param nbFormat The format to use for formatting numbers.
-     * @return The expression string.
+     * Evaluate the expression with a number appended, without changing it. The expression
+     * is evaluated incrementally, so only the numbers added since the last call are evaluated.
+     * @param value    The number appended, the expression must end with an operator.
+     *                 If null, the expression is evaluated without its last operator.
+     * @param priority Whether to apply operation priority or not.
+     * @param exact    Whether to evaluate exactly, see {@link ExpressionSnapshot#evaluateExact}.
+     * @return The result, or null if a division by zero occurred or if a power is invalid.
      */
-    String format(NumberFormat nbFormat) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < numbers.size(); i++) {
-            sb.append(nbFormat.format(numbers.get(i)));
-            sb.append(' ');
-            if (i < operators.size()) {
-                sb.append(operators.get(i).symbol);
+    @Nullable
+    BigDecimal evaluateWith(@Nullable BigDecimal value, boolean priority, boolean exact,
+                            int scale, RoundingMode roundingMode) {
+        if (hasPower()) {
+            // Powers aren't evaluated incrementally, evaluate a copy instead.
+            return evaluateCopyWith(value, priority, exact, scale, roundingMode);
+        }
+        if (prefixEvaluator == null) {
+            prefixEvaluator = new PrefixEvaluator(this);
+        }
+        return prefixEvaluator.evaluate(value, priority, exact, scale, roundingMode);
+    }
+
+    @Nullable
+    private BigDecimal evaluateCopyWith(@Nullable BigDecimal value, boolean priority,
+                                        boolean exact, int scale, RoundingMode roundingMode) {
+        if (operatorCount != numberCount) {
+            throw new IllegalStateException("Expression must end with an operator.");
+        }
+        Expression copy = new Expression();
+        for (int i = 0; i < numberCount; i++) {
+            copy.addNumber(getNumber(i));
+            if (i < numberCount - 1 || value != null) {
+                copy.addOperator(getOperator(i));
             }
-            sb.append(' ');
         }
-        if (sb.length() != 0) {
-            sb.deleteCharAt(sb.length() - 1);
+        if (value != null) {
+            copy.addNumber(value);
+        }
+        try {
+            if (exact) {
+                return copy.evaluateExact(priority, scale, roundingMode);
+            }
+            return copy.evaluate(priority, scale, roundingMode);
+        } catch (ArithmeticException e) {
+            return null;
         }
-        return sb.toString();
+    }
+
+    private boolean hasPower() {
+        for (int i = 0; i < operatorCount; i++) {
+            if (operators[i] == Operator.POWER.ordinal()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @see ExpressionSnapshot#evaluate(boolean, int, RoundingMode)
+     */
+    @NonNull
+    BigDecimal evaluate(boolean priority, int scale, RoundingMode roundingMode) {
+        return snapshot().evaluate(priority, scale, roundingMode);
+    }
+
+    /**
+     * @see ExpressionSnapshot#evaluateExact(boolean, int, RoundingMode)
+     */
+    @NonNull
+    BigDecimal evaluateExact(boolean priority, int scale, RoundingMode roundingMode) {
+        return snapshot().evaluateExact(priority, scale, roundingMode);
+    }
+
+    /**
+     * @see ExpressionSnapshot#format(NumberFormat)
+     */
+    String format(NumberFormat nbFormat) {
+        return snapshot().format(nbFormat);
+    }
+
+    /**
+     * @see ExpressionSnapshot#format(NumberFormat, CalcNotation, int)
+     */
+    String format(NumberFormat nbFormat, CalcNotation notation, int maxDigits) {
+        return snapshot().format(nbFormat, notation, maxDigits);
     }
 
     @NonNull
     @Override
     public String toString() {
-        return format(NumberFormat.getInstance());
+        return snapshot().toString();
     }
 
     ////////// PARCELABLE //////////
     private Expression(Parcel in) {
-        in.readList(numbers, BigDecimal.class.getClassLoader());
-        in.readList(numbers, Operator.class.getClassLoader());
+        numberCount = in.readInt();
+        operatorCount = in.readInt();
+        unscaled = Arrays.copyOf(in.createLongArray(), Math.max(INITIAL_CAPACITY, numberCount));
+        scales = Arrays.copyOf(in.createIntArray(), unscaled.length);
+        operators = Arrays.copyOf(in.createByteArray(), Math.max(INITIAL_CAPACITY, operatorCount));
+
+        bigCount = in.readInt();
+        bigNumbers = new BigDecimal[bigCount];
+        for (int i = 0; i < bigCount; i++) {
+            bigNumbers[i] = new BigDecimal(in.readString());
+        }
     }
 
     @Override
     public void writeToParcel(@NonNull Parcel out, int flags) {
-        out.writeList(numbers);
-        out.writeList(operators);
+        out.writeInt(numberCount);
+        out.writeInt(operatorCount);
+        out.writeLongArray(Arrays.copyOf(unscaled, numberCount));
+        out.writeIntArray(Arrays.copyOf(scales, numberCount));
+        out.writeByteArray(operators, 0, operatorCount);
+
+        out.writeInt(bigCount);
+        for (int i = 0; i < bigCount; i++) {
+            out.writeString(bigNumbers[i].toString());
+        }
     }
 
     @Override
@@ -155,7 +361,7 @@ class Expression implements Parcelable {
     };
 
     enum Operator {
-        ADD('+'), SUBTRACT('−'), MULTIPLY('×'), DIVIDE('÷');
+        ADD('+'), SUBTRACT('−'), MULTIPLY('×'), DIVIDE('÷'), POWER('^');
 
         char symbol;
 
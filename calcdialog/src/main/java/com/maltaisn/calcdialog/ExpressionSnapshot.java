@@ -0,0 +1,655 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import com.maltaisn.calcdialog.Expression.Operator;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable snapshot of an {@link Expression}, obtained with {@link Expression#snapshot()}.
+ * The storage arrays are shared with the expression, which never modifies the elements
+ * seen by a snapshot. Since the arrays and counts are final fields, snapshots can be passed
+ * to other threads without synchronization, evaluated concurrently or used as keys.
+ * The hash code is cached in a non-final field without synchronization. This race is
+ * harmless since computing it is idempotent: a thread may only compute the same value again.
+ */
+final class ExpressionSnapshot {
+
+    /** Minimum number of numbers in the expression to evaluate it in parallel. */
+    static final int PARALLEL_THRESHOLD = 1024;
+
+    /** Minimum number of numbers evaluated by each parallel task. */
+    private static final int PARALLEL_MIN_CHUNK = 256;
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    /** Maximum absolute value that can be multiplied by each power of ten without overflow. */
+    private static final long[] RESCALE_LIMITS = new long[POWERS_OF_TEN.length];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            RESCALE_LIMITS[i] = Long.MAX_VALUE / POWERS_OF_TEN[i];
+        }
+    }
+
+    /** Executor used to evaluate long expressions in parallel, created when first needed. */
+    private static ExecutorService parallelExecutor;
+    private static int parallelism;
+
+    private final long[] unscaled;
+    private final int[] scales;
+    private final int numberCount;
+    private final BigDecimal[] bigNumbers;
+    private final byte[] operators;
+    private final int operatorCount;
+
+    /** Cached hash code, 0 if not computed yet. Not final, see the class documentation. */
+    private int hash;
+
+    ExpressionSnapshot(long[] unscaled, int[] scales, int numberCount,
+                       BigDecimal[] bigNumbers, byte[] operators, int operatorCount) {
+        this.unscaled = unscaled;
+        this.scales = scales;
+        this.numberCount = numberCount;
+        this.bigNumbers = bigNumbers;
+        this.operators = operators;
+        this.operatorCount = operatorCount;
+    }
+
+    int getNumberCount() {
+        return numberCount;
+    }
+
+    int getOperatorCount() {
+        return operatorCount;
+    }
+
+    @NonNull
+    BigDecimal getNumber(int index) {
+        if (scales[index] == Expression.BIG_NUMBER) {
+            return bigNumbers[(int) unscaled[index]];
+        } else {
+            return BigDecimalCache.valueOf(unscaled[index], scales[index]);
+        }
+    }
+
+    @NonNull
+    private Rational getRational(int index) {
+        if (scales[index] == Expression.BIG_NUMBER) {
+            return Rational.valueOf(bigNumbers[(int) unscaled[index]]);
+        } else {
+            return Rational.valueOf(unscaled[index], scales[index]);
+        }
+    }
+
+    @NonNull
+    Operator getOperator(int index) {
+        return Expression.OPERATORS[operators[index]];
+    }
+
+    /**
+     * Evaluate the expression and return the result.
+     * With operation priority, powers are evaluated first, from left to right.
+     * @param priority     Whether to apply operation priority or not.
+     * @param scale        Scale used for division and fractional powers.
+     * @param roundingMode Rounding mode used for division and fractional powers.
+     * @return The result.
+     * @throws ArithmeticException if a division by zero occurred or if a power is invalid.
+     */
+    @NonNull
+    BigDecimal evaluate(boolean priority, int scale, RoundingMode roundingMode) {
+        if (numberCount != operatorCount + 1) {
+            throw new IllegalStateException("Numbers and operators aren't balanced.");
+        }
+
+        if (numberCount == 1) return getNumber(0);
+
+        if (priority && hasPower()) {
+            return reducePowers(scale, roundingMode).evaluate(true, scale, roundingMode);
+        }
+
+        if (numberCount >= PARALLEL_THRESHOLD && (priority || !hasProductOrQuotient())) {
+            return evaluateParallel(priority, scale, roundingMode, getParallelism());
+        } else {
+            return evaluateSequential(priority, scale, roundingMode);
+        }
+    }
+
+    /**
+     * Evaluate the expression exactly using fractions, and round the result only once.
+     * Unlike {@link #evaluate(boolean, int, RoundingMode)}, quotients aren't rounded, so
+     * an expression like {@code 1 ÷ 3 × 3} evaluates to exactly 1. Fractional powers
+     * can't be exact and are still rounded to the scale.
+     * @param priority     Whether to apply operation priority or not.
+     * @param scale        Scale used to round the result.
+     * @param roundingMode Rounding mode used to round the result.
+     * @return The result.
+     * @throws ArithmeticException if a division by zero occurred or if a power is invalid.
+     */
+    @NonNull
+    BigDecimal evaluateExact(boolean priority, int scale, RoundingMode roundingMode) {
+        if (numberCount != operatorCount + 1) {
+            throw new IllegalStateException("Numbers and operators aren't balanced.");
+        }
+
+        if (priority && hasPower()) {
+            return reducePowers(scale, roundingMode).evaluateExact(true, scale, roundingMode);
+        }
+
+        if (!hasQuotient()) {
+            // Without division, evaluation with decimal numbers is already exact.
+            return evaluate(priority, scale, roundingMode);
+        }
+
+        // Terms are summed pairwise, sums of fractions grow with each added denominator,
+        // and adding sums of similar sizes is much faster than adding terms one by one.
+        Rational[] sums = new Rational[32];
+        Rational term = getRational(0);
+        boolean negative = false;
+        for (int i = 0; i < operatorCount; i++) {
+            Operator op = getOperator(i);
+            if (op == Operator.POWER) {
+                // Only without priority, powers were already evaluated otherwise.
+                term = Rational.valueOf(BigDecimalMath.pow(term.toBigDecimal(scale, roundingMode),
+                        getNumber(i + 1), scale, roundingMode));
+                continue;
+            }
+            Rational n = getRational(i + 1);
+            if (op == Operator.MULTIPLY) {
+                term = term.multiply(n);
+            } else if (op == Operator.DIVIDE) {
+                term = term.divide(n);
+            } else if (priority) {
+                // End of term, add it to the sum.
+                addTerm(sums, negative ? term.negate() : term);
+                term = n;
+                negative = (op == Operator.SUBTRACT);
+            } else {
+                // No priority, the result so far is the first operand of the next operation.
+                term = (op == Operator.ADD) ? term.add(n) : term.subtract(n);
+            }
+        }
+        addTerm(sums, negative ? term.negate() : term);
+
+        Rational sum = Rational.ZERO;
+        for (Rational partial : sums) {
+            if (partial != null) {
+                sum = sum.add(partial);
+            }
+        }
+        return sum.toBigDecimal(scale, roundingMode);
+    }
+
+    /**
+     * Add a term to partial sums, where {@code sums[i]} is null or the sum of 2<sup>i</sup>
+     * terms. Like a binary counter, partial sums of the same size are carried to the next.
+     */
+    private static void addTerm(@NonNull Rational[] sums, @NonNull Rational term) {
+        int i = 0;
+        while (sums[i] != null) {
+            term = sums[i].add(term);
+            sums[i] = null;
+            i++;
+        }
+        sums[i] = term;
+    }
+
+    /**
+     * Evaluate the expression on the calling thread, strictly from left to right.
+     * @see #evaluate(boolean, int, RoundingMode)
+     */
+    @NonNull
+    BigDecimal evaluateSequential(boolean priority, int scale, RoundingMode roundingMode) {
+        if (numberCount == 1) return getNumber(0);
+
+        if (priority) {
+            if (hasPower()) {
+                return reducePowers(scale, roundingMode).evaluateSequential(true, scale, roundingMode);
+            }
+            // Products and quotients are evaluated within each term, then terms are summed.
+            return evaluateTerms(0, numberCount, scale, roundingMode).stripTrailingZeros();
+        }
+
+        Accumulator result = new Accumulator();
+        result.setNumber(0);
+        for (int i = 0; i < operatorCount; i++) {
+            switch (getOperator(i)) {
+                case ADD:
+                    result.addNumber(i + 1, false);
+                    break;
+                case SUBTRACT:
+                    result.addNumber(i + 1, true);
+                    break;
+                case MULTIPLY:
+                    result.multiplyNumber(i + 1);
+                    break;
+                case DIVIDE:
+                    result.divideNumber(i + 1, scale, roundingMode);
+                    break;
+                case POWER:
+                    result.set(BigDecimalMath.pow(result.get(), getNumber(i + 1), scale, roundingMode));
+                    break;
+            }
+        }
+        return result.get().stripTrailingZeros();
+    }
+
+    /**
+     * Evaluate the expression by splitting it in chunks evaluated in parallel.
+     * The expression is split between terms, which are separated by additions and
+     * subtractions, so this can only be used if operation priority is applied or if there
+     * are no products and quotients. Each term is evaluated from left to right like in the
+     * sequential evaluation, and since additions are exact, the sum of the chunks is exactly
+     * the same as the sequential result.
+     * @param chunks Maximum number of chunks to split the expression in.
+     * @see #evaluate(boolean, int, RoundingMode)
+     */
+    @NonNull
+    BigDecimal evaluateParallel(final boolean priority, final int scale,
+                                final RoundingMode roundingMode, int chunks) {
+        if (!priority && hasProductOrQuotient()) {
+            throw new IllegalStateException("Expression can't be evaluated in parallel.");
+        } else if (priority && hasPower()) {
+            return reducePowers(scale, roundingMode).evaluateParallel(true, scale, roundingMode, chunks);
+        }
+
+        final int size = numberCount;
+        chunks = Math.max(1, Math.min(chunks, size / PARALLEL_MIN_CHUNK));
+
+        // Find the chunk bounds, a chunk must start after an addition or a subtraction.
+        int[] bounds = new int[chunks + 1];
+        int count = 1;
+        for (int i = 1; i < chunks; i++) {
+            int start = Math.max(i * size / chunks, bounds[count - 1] + 1);
+            while (start < size && !isTermSeparator(getOperator(start - 1))) {
+                start++;
+            }
+            if (start >= size) break;
+            bounds[count] = start;
+            count++;
+        }
+        bounds[count] = size;
+
+        // Evaluate all chunks but the first in background, then the first on this thread.
+        List<Future<BigDecimal>> futures = new ArrayList<>(count - 1);
+        ExecutorService executor = getParallelExecutor();
+        for (int i = 1; i < count; i++) {
+            final int start = bounds[i];
+            final int end = bounds[i + 1];
+            futures.add(executor.submit(new Callable<BigDecimal>() {
+                @Override
+                public BigDecimal call() {
+                    return evaluateTerms(start, end, scale, roundingMode);
+                }
+            }));
+        }
+
+        BigDecimal[] sums = new BigDecimal[count];
+        try {
+            sums[0] = evaluateTerms(0, bounds[1], scale, roundingMode);
+            for (int i = 1; i < count; i++) {
+                sums[i] = futures.get(i - 1).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Evaluation was interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ArithmeticException) {
+                // Division by zero occurred.
+                throw (ArithmeticException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<BigDecimal> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        // Reduce the partial sums as a tree.
+        for (int step = 1; step < count; step *= 2) {
+            for (int i = 0; i + step < count; i += 2 * step) {
+                sums[i] = sums[i].add(sums[i + step]);
+            }
+        }
+
+        return sums[0].stripTrailingZeros();
+    }
+
+    /**
+     * Evaluate the sum of the terms between two numbers. Products and quotients in each
+     * term are evaluated from left to right. The term starting at {@code start} is
+     * negated if preceded by a subtraction. The expression must not contain powers.
+     * @param start Index of the first number of the first term.
+     * @param end   Index after the last number of the last term.
+     * @return The sum.
+     */
+    private BigDecimal evaluateTerms(int start, int end, int scale, RoundingMode roundingMode) {
+        Accumulator sum = new Accumulator();
+        Accumulator term = new Accumulator();
+        term.setNumber(start);
+        boolean negative = start > 0 && getOperator(start - 1) == Operator.SUBTRACT;
+        for (int i = start; i < end - 1; i++) {
+            Operator op = getOperator(i);
+            if (op == Operator.MULTIPLY) {
+                term.multiplyNumber(i + 1);
+            } else if (op == Operator.DIVIDE) {
+                term.divideNumber(i + 1, scale, roundingMode);
+            } else {
+                sum.add(term, negative);
+                term.setNumber(i + 1);
+                negative = (op == Operator.SUBTRACT);
+            }
+        }
+        sum.add(term, negative);
+        return sum.get();
+    }
+
+    /**
+     * Get a copy of the expression where each power is replaced by its result,
+     * evaluated from left to right.
+     */
+    private ExpressionSnapshot reducePowers(int scale, RoundingMode roundingMode) {
+        Expression reduced = new Expression();
+        BigDecimal base = getNumber(0);
+        for (int i = 0; i < operatorCount; i++) {
+            Operator op = getOperator(i);
+            BigDecimal n = getNumber(i + 1);
+            if (op == Operator.POWER) {
+                base = BigDecimalMath.pow(base, n, scale, roundingMode);
+            } else {
+                reduced.addNumber(base);
+                reduced.addOperator(op);
+                base = n;
+            }
+        }
+        reduced.addNumber(base);
+        return reduced.snapshot();
+    }
+
+    boolean hasPower() {
+        for (int i = 0; i < operatorCount; i++) {
+            if (operators[i] == Operator.POWER.ordinal()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasProductOrQuotient() {
+        for (int i = 0; i < operatorCount; i++) {
+            if (!isTermSeparator(getOperator(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasQuotient() {
+        for (int i = 0; i < operatorCount; i++) {
+            if (operators[i] == Operator.DIVIDE.ordinal()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTermSeparator(Operator op) {
+        return op == Operator.ADD || op == Operator.SUBTRACT;
+    }
+
+    private static synchronized int getParallelism() {
+        if (parallelism == 0) {
+            parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+        }
+        return parallelism;
+    }
+
+    private static synchronized ExecutorService getParallelExecutor() {
+        if (parallelExecutor == null) {
+            parallelExecutor = Executors.newFixedThreadPool(getParallelism(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "CalcParallelEvaluation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return parallelExecutor;
+    }
+
+    /**
+     * Decimal number used during evaluation, kept as an unscaled long while it fits so that
+     * no BigDecimal is created for each operation. Operations give exactly the same value and
+     * scale as with BigDecimal. A BigDecimal is only used on overflow, for divisions and for
+     * numbers of the expression that don't fit a long.
+     */
+    private final class Accumulator {
+
+        long longValue;
+        int longScale;
+
+        /** The value if it doesn't fit in a long, null otherwise. */
+        BigDecimal big;
+
+        @NonNull
+        BigDecimal get() {
+            return (big != null) ? big : BigDecimalCache.valueOf(longValue, longScale);
+        }
+
+        /**
+         * Set the value to a BigDecimal. It's kept as is, converting it back to a long
+         * would cost more than the following operations save.
+         */
+        void set(@NonNull BigDecimal value) {
+            big = value;
+        }
+
+        /**
+         * Set the value to a number of the expression.
+         */
+        void setNumber(int index) {
+            if (scales[index] == Expression.BIG_NUMBER) {
+                big = bigNumbers[(int) unscaled[index]];
+            } else {
+                longValue = unscaled[index];
+                longScale = scales[index];
+                big = null;
+            }
+        }
+
+        void addNumber(int index, boolean subtract) {
+            if (scales[index] == Expression.BIG_NUMBER) {
+                add(0, 0, bigNumbers[(int) unscaled[index]], subtract);
+            } else {
+                add(unscaled[index], scales[index], null, subtract);
+            }
+        }
+
+        void add(@NonNull Accumulator other, boolean subtract) {
+            add(other.longValue, other.longScale, other.big, subtract);
+        }
+
+        private void add(long u, int s, BigDecimal b, boolean subtract) {
+            if (big == null && b == null) {
+                // Align both values to the highest scale, like BigDecimal.
+                long x = longValue;
+                long y = u;
+                int rs = Math.max(longScale, s);
+                if (canRescale(x, (long) rs - longScale) && canRescale(y, (long) rs - s)) {
+                    x *= POWERS_OF_TEN[rs - longScale];
+                    y *= POWERS_OF_TEN[rs - s];
+                    long r = subtract ? x - y : x + y;
+                    if ((subtract ? (x ^ y) & (x ^ r) : (x ^ r) & (y ^ r)) >= 0) {
+                        longValue = r;
+                        longScale = rs;
+                        return;
+                    }
+                }
+            }
+            BigDecimal n = (b != null) ? b : BigDecimalCache.valueOf(u, s);
+            set(subtract ? get().subtract(n) : get().add(n));
+        }
+
+        void multiplyNumber(int index) {
+            long u = unscaled[index];
+            int s = scales[index];
+            if (big == null && s != Expression.BIG_NUMBER) {
+                long r = longValue * u;
+                long rs = (long) longScale + s;
+                boolean overflow = ((Math.abs(longValue) | Math.abs(u)) >>> 31) != 0
+                        && (u != 0 && r / u != longValue || longValue == Long.MIN_VALUE && u == -1);
+                if (!overflow && rs == (int) rs) {
+                    longValue = r;
+                    longScale = (int) rs;
+                    return;
+                }
+            }
+            set(HighPrecisionMath.multiply(get(), getNumber(index)));
+        }
+
+        void divideNumber(int index, int scale, RoundingMode roundingMode) {
+            set(HighPrecisionMath.divide(get(), getNumber(index), scale, roundingMode));
+        }
+    }
+
+    /**
+     * Returns whether a long value can be multiplied by a power of ten without overflow.
+     */
+    private static boolean canRescale(long value, long shift) {
+        return shift == 0 || shift < POWERS_OF_TEN.length && value != Long.MIN_VALUE
+                && Math.abs(value) <= RESCALE_LIMITS[(int) shift];
+    }
+
+    /**
+     * Format the expression to a string.
+     * @param nbFormat The format to use for formatting numbers.
+     * @return The expression string.
+     */
+    String format(NumberFormat nbFormat) {
+        return format(nbFormat, CalcNotation.PLAIN, 0, true);
+    }
+
+    /**
+     * Format the expression to a string, using a notation for numbers with too many
+     * integer digits, see {@link NotationFormatter}.
+     * @param nbFormat  The format to use for formatting numbers.
+     * @param notation  The notation for numbers with more than {@code maxDigits} integer digits.
+     * @param maxDigits The maximum number of integer digits shown in plain notation.
+     * @return The expression string.
+     */
+    String format(NumberFormat nbFormat, CalcNotation notation, int maxDigits) {
+        return format(nbFormat, notation, maxDigits, true);
+    }
+
+    private String format(NumberFormat nbFormat, CalcNotation notation, int maxDigits, boolean cached) {
+        // If there are more numbers than the cache can hold, formatting the expression
+        // again would evict all of them before they are used, so only copies would be made.
+        boolean useCache = cached && numberCount <= FormattedValueCache.getMaxSize();
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numberCount; i++) {
+            if (!cached && scales[i] == 0) {
+                // Integer numbers can be formatted without creating a BigDecimal.
+                sb.append(nbFormat.format(unscaled[i]));
+            } else {
+                BigDecimal n = getNumber(i);
+                String text = NotationFormatter.format(n, nbFormat, notation, maxDigits);
+                if (text == null && useCache) {
+                    text = FormattedValueCache.get(n, -1, false, nbFormat);
+                    if (text == null) {
+                        text = nbFormat.format(n);
+                        FormattedValueCache.put(n, -1, false, nbFormat, text);
+                    }
+                } else if (text == null) {
+                    text = nbFormat.format(n);
+                }
+                sb.append(text);
+            }
+            sb.append(' ');
+            if (i < operatorCount) {
+                sb.append(getOperator(i).symbol);
+            }
+            sb.append(' ');
+        }
+        if (sb.length() != 0) {
+            sb.deleteCharAt(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        // The format is a new copy every time, don't fill the cache with it.
+        return format(NumberFormatCache.getDefault(Locale.getDefault()), CalcNotation.PLAIN, 0, false);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof ExpressionSnapshot)) return false;
+        ExpressionSnapshot snap = (ExpressionSnapshot) obj;
+        if (numberCount != snap.numberCount || operatorCount != snap.operatorCount
+                || hashCode() != snap.hashCode()) {
+            return false;
+        }
+        for (int i = 0; i < operatorCount; i++) {
+            if (operators[i] != snap.operators[i]) return false;
+        }
+        for (int i = 0; i < numberCount; i++) {
+            if (!getNumber(i).equals(snap.getNumber(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        // Racy single-check: all threads compute the same value.
+        int h = hash;
+        if (h == 0) {
+            h = 1;
+            for (int i = 0; i < numberCount; i++) {
+                h = 31 * h + getNumber(i).hashCode();
+                if (i < operatorCount) {
+                    h = 31 * h + operators[i];
+                }
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+}
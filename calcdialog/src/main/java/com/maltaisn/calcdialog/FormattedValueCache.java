@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Process-wide LRU cache of formatted values, since the same values are often formatted
+ * again: when an error is dismissed, when the sign is changed back, on configuration
+ * changes and for every number of the expression. Formats are compared by all their
+ * attributes, including symbols, so entries aren't used anymore once a format is modified.
+ * Entries keep a copy of the format, never the caller's format itself.
+ */
+final class FormattedValueCache {
+
+    static final int DEFAULT_MAX_SIZE = 64;
+
+    private static int maxSize = DEFAULT_MAX_SIZE;
+
+    private static final LinkedHashMap<Key, String> CACHE =
+            new LinkedHashMap<Key, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                    return size() > maxSize;
+                }
+            };
+
+    /** Key used for lookups, to avoid creating a key when the value is cached. */
+    private static final Key LOOKUP_KEY = new Key();
+
+    private static long hitCount;
+    private static long missCount;
+
+    private FormattedValueCache() {
+        // Utility class
+    }
+
+    /**
+     * Get a formatted value.
+     * @param value        The value.
+     * @param scale        The number of fraction digits displayed, -1 if not specified.
+     * @param trailingSep  Whether the decimal separator is appended to the value.
+     * @param format       The format used.
+     * @return The cached string, or null if not cached.
+     */
+    @Nullable
+    static synchronized String get(@NonNull BigDecimal value, int scale,
+                                   boolean trailingSep, @NonNull NumberFormat format) {
+        LOOKUP_KEY.set(value, scale, trailingSep, format);
+        String text = CACHE.get(LOOKUP_KEY);
+        LOOKUP_KEY.set(null, 0, false, null);
+        if (text != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return text;
+    }
+
+    /**
+     * Add a formatted value to the cache.
+     * @see #get(BigDecimal, int, boolean, NumberFormat)
+     */
+    static synchronized void put(@NonNull BigDecimal value, int scale, boolean trailingSep,
+                                 @NonNull NumberFormat format, @NonNull String text) {
+        if (maxSize > 0) {
+            Key key = new Key();
+            key.set(value, scale, trailingSep, (NumberFormat) format.clone());
+            CACHE.put(key, text);
+        }
+    }
+
+    static synchronized void setMaxSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Cache size must be positive.");
+        }
+        maxSize = size;
+        while (CACHE.size() > maxSize) {
+            CACHE.remove(CACHE.keySet().iterator().next());
+        }
+    }
+
+    static synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    static synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    static synchronized long getMissCount() {
+        return missCount;
+    }
+
+    static synchronized void resetCounters() {
+        hitCount = 0;
+        missCount = 0;
+    }
+
+    static synchronized void clear() {
+        CACHE.clear();
+    }
+
+    private static final class Key {
+
+        BigDecimal value;
+        int scale;
+        boolean trailingSep;
+
+        /**
+         * The format, a copy for keys in the cache, so that it can't change afterwards.
+         * {@link NumberFormat#equals(Object)} compares all attributes, unlike its hash code.
+         */
+        NumberFormat format;
+
+        int hash;
+
+        void set(BigDecimal value, int scale, boolean trailingSep, NumberFormat format) {
+            this.value = value;
+            this.scale = scale;
+            this.trailingSep = trailingSep;
+            this.format = format;
+            if (value != null) {
+                int h = value.hashCode();
+                h = 31 * h + scale;
+                h = 31 * h + (trailingSep ? 1 : 0);
+                hash = 31 * h + format.hashCode();
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key key = (Key) obj;
+            return scale == key.scale && trailingSep == key.trailingSep
+                    && value.equals(key.value) && format.equals(key.format);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Multiplication and division of huge numbers, used when a high number of fraction digits
+ * is set and operands grow to thousands of digits. Below the size thresholds, operations
+ * are delegated to {@link BigDecimal} and {@link BigInteger} directly.
+ * <p>
+ * Huge products are split in parts multiplied in parallel. Huge quotients are computed by
+ * multiplying with a Newton approximation of the divisor reciprocal, so they also benefit
+ * from parallel multiplication. The quotient is then corrected with the remainder, so
+ * results are always exactly the same as {@link BigDecimal#divide(BigDecimal, int, RoundingMode)}.
+ */
+final class HighPrecisionMath {
+
+    /** Minimum size in bits of both operands for a product to be computed in parallel. */
+    static final int PARALLEL_MULTIPLY_BITS = 1 << 14;
+
+    /** Minimum size in bits of the divisor and of the quotient to use Newton division. */
+    static final int NEWTON_DIVIDE_BITS = 1 << 14;
+
+    /** Precision in bits below which the reciprocal is computed by long division. */
+    private static final int NEWTON_MIN_BITS = 512;
+
+    /** Extra bits of the divisor kept when it's truncated to compute the reciprocal. */
+    private static final int GUARD_BITS = 32;
+
+    /** Maximum number of corrections of a quotient before falling back to long division. */
+    private static final int MAX_CORRECTIONS = 8;
+
+    private static int parallelism;
+    private static ExecutorService executor;
+
+    // Last reciprocal computed, since the same divisor is often used again
+    // with the same or a lower precision, for example when dividing by a constant.
+    private static BigInteger cachedDivisor;
+    private static BigInteger cachedReciprocal;
+    private static int cachedPrecision;
+
+    private HighPrecisionMath() {
+        // Utility class
+    }
+
+    /**
+     * Multiply two numbers, exactly like {@link BigDecimal#multiply(BigDecimal)}.
+     * @throws ArithmeticException If the scale of the result overflows an int.
+     */
+    @NonNull
+    static BigDecimal multiply(@NonNull BigDecimal a, @NonNull BigDecimal b) {
+        if (!isHuge(a, PARALLEL_MULTIPLY_BITS) || !isHuge(b, PARALLEL_MULTIPLY_BITS)) {
+            return a.multiply(b);
+        }
+        long scale = (long) a.scale() + b.scale();
+        if (scale > Integer.MAX_VALUE) {
+            throw new ArithmeticException("Underflow");
+        } else if (scale < Integer.MIN_VALUE) {
+            throw new ArithmeticException("Overflow");
+        }
+        return new BigDecimal(multiply(a.unscaledValue(), b.unscaledValue()), (int) scale);
+    }
+
+    /**
+     * Divide two numbers, exactly like {@link BigDecimal#divide(BigDecimal, int, RoundingMode)}.
+     * @throws ArithmeticException If the divisor is zero, or if rounding is necessary
+     *                             with {@link RoundingMode#UNNECESSARY}.
+     */
+    @NonNull
+    static BigDecimal divide(@NonNull BigDecimal a, @NonNull BigDecimal b,
+                             int scale, @NonNull RoundingMode roundingMode) {
+        if (!isHuge(b, NEWTON_DIVIDE_BITS)) {
+            return a.divide(b, scale, roundingMode);
+        }
+
+        // Find integers so that the result is n / d, with the result scale.
+        BigInteger n = a.unscaledValue();
+        BigInteger d = b.unscaledValue();
+        long shift = (long) scale - a.scale() + b.scale();
+        if (Math.abs(shift) > Integer.MAX_VALUE / 4) {
+            return a.divide(b, scale, roundingMode);
+        } else if (shift > 0) {
+            n = n.multiply(BigDecimalCache.bigPowerOfTen((int) shift));
+        } else if (shift < 0) {
+            d = d.multiply(BigDecimalCache.bigPowerOfTen((int) -shift));
+        }
+
+        BigInteger[] qr = divideAndRemainder(n, d);
+        BigInteger q = qr[0];
+        BigInteger r = qr[1];
+        if (r.signum() != 0) {
+            boolean negative = n.signum() != d.signum();
+            int half = r.abs().shiftLeft(1).compareTo(d.abs());
+            boolean increment;
+            switch (roundingMode) {
+                case UP:
+                    increment = true;
+                    break;
+                case DOWN:
+                    increment = false;
+                    break;
+                case CEILING:
+                    increment = !negative;
+                    break;
+                case FLOOR:
+                    increment = negative;
+                    break;
+                case HALF_UP:
+                    increment = half >= 0;
+                    break;
+                case HALF_DOWN:
+                    increment = half > 0;
+                    break;
+                case HALF_EVEN:
+                    increment = half > 0 || half == 0 && q.testBit(0);
+                    break;
+                default:
+                    throw new ArithmeticException("Rounding necessary");
+            }
+            if (increment) {
+                q = negative ? q.subtract(BigInteger.ONE) : q.add(BigInteger.ONE);
+            }
+        }
+        return new BigDecimal(q, scale);
+    }
+
+    /**
+     * Multiply two integers. If both are huge, the biggest is split in parts
+     * which are multiplied by the other in parallel.
+     */
+    @NonNull
+    static BigInteger multiply(@NonNull BigInteger x, @NonNull BigInteger y) {
+        if (x.bitLength() < y.bitLength()) {
+            BigInteger t = x;
+            x = y;
+            y = t;
+        }
+        int xBits = x.bitLength();
+        int parts = Math.min(getParallelism(), xBits / PARALLEL_MULTIPLY_BITS);
+        if (y.bitLength() < PARALLEL_MULTIPLY_BITS || parts < 2) {
+            return x.multiply(y);
+        }
+
+        boolean negative = x.signum() != y.signum();
+        final BigInteger a = x.abs();
+        final BigInteger b = y.abs();
+        final int partBits = (xBits + parts - 1) / parts;
+        final BigInteger mask = BigInteger.ONE.shiftLeft(partBits).subtract(BigInteger.ONE);
+
+        // Multiply all parts but the first in background, then the first on this thread.
+        List<Future<BigInteger>> futures = new ArrayList<>(parts - 1);
+        ExecutorService executor = getExecutor();
+        for (int i = 1; i < parts; i++) {
+            final int offset = i * partBits;
+            futures.add(executor.submit(new Callable<BigInteger>() {
+                @Override
+                public BigInteger call() {
+                    return a.shiftRight(offset).and(mask).multiply(b);
+                }
+            }));
+        }
+
+        BigInteger product = a.and(mask).multiply(b);
+        try {
+            for (int i = 1; i < parts; i++) {
+                product = product.add(futures.get(i - 1).get().shiftLeft(i * partBits));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Multiplication was interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<BigInteger> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return negative ? product.negate() : product;
+    }
+
+    /**
+     * Divide two integers, exactly like {@link BigInteger#divideAndRemainder(BigInteger)}.
+     * If the divisor and the quotient are huge, Newton division is used.
+     */
+    @NonNull
+    static BigInteger[] divideAndRemainder(@NonNull BigInteger n, @NonNull BigInteger d) {
+        int dBits = d.bitLength();
+        int qBits = n.bitLength() - dBits + 1;
+        if (dBits < NEWTON_DIVIDE_BITS || qBits < NEWTON_DIVIDE_BITS || getParallelism() < 2) {
+            // Long division is faster when multiplication isn't parallel.
+            return n.divideAndRemainder(d);
+        }
+
+        BigInteger na = n.abs();
+        BigInteger da = d.abs();
+
+        // Approximate the quotient by multiplying with the reciprocal of the divisor.
+        int precision = qBits + 4;
+        BigInteger reciprocal = getReciprocal(da, precision);
+        BigInteger q = multiply(na, reciprocal).shiftRight(dBits + precision);
+
+        // Correct the quotient so that 0 <= remainder < divisor.
+        BigInteger r = na.subtract(multiply(q, da));
+        int corrections = 0;
+        while (r.signum() < 0 || r.compareTo(da) >= 0) {
+            if (corrections == MAX_CORRECTIONS) {
+                return n.divideAndRemainder(d);
+            }
+            if (r.signum() < 0) {
+                q = q.subtract(BigInteger.ONE);
+                r = r.add(da);
+            } else {
+                q = q.add(BigInteger.ONE);
+                r = r.subtract(da);
+            }
+            corrections++;
+        }
+
+        // Quotient is truncated toward zero and remainder has the sign of the dividend.
+        if (n.signum() != d.signum()) {
+            q = q.negate();
+        }
+        if (n.signum() < 0) {
+            r = r.negate();
+        }
+        return new BigInteger[]{q, r};
+    }
+
+    /**
+     * Get an approximation of {@code 2^(bitLength(d) + precision) / d}, within a few units.
+     * The last reciprocal is cached, and can be used again for the same or a lower precision.
+     */
+    private static BigInteger getReciprocal(BigInteger d, int precision) {
+        synchronized (HighPrecisionMath.class) {
+            if (cachedPrecision >= precision && d.equals(cachedDivisor)) {
+                return cachedReciprocal.shiftRight(cachedPrecision - precision);
+            }
+        }
+        BigInteger reciprocal = computeReciprocal(d, precision);
+        synchronized (HighPrecisionMath.class) {
+            cachedDivisor = d;
+            cachedReciprocal = reciprocal;
+            cachedPrecision = precision;
+        }
+        return reciprocal;
+    }
+
+    /**
+     * Compute an approximation of {@code 2^(bitLength(d) + precision) / d} with Newton's
+     * method. The reciprocal is first computed with half the precision, then one iteration
+     * doubles the precision. Only the most significant bits of the divisor are used.
+     */
+    private static BigInteger computeReciprocal(BigInteger d, int precision) {
+        int shift = Math.max(0, d.bitLength() - precision - GUARD_BITS);
+        BigInteger dt = d.shiftRight(shift);
+        int bits = dt.bitLength() + precision;
+        if (precision <= NEWTON_MIN_BITS) {
+            return BigInteger.ONE.shiftLeft(bits).divide(dt);
+        }
+
+        int half = precision / 2 + GUARD_BITS;
+        BigInteger r = computeReciprocal(dt, half).shiftLeft(precision - half);
+
+        // Newton iteration: r = r + r * (1 - d * r).
+        BigInteger e = BigInteger.ONE.shiftLeft(bits).subtract(multiply(dt, r));
+        return r.add(multiply(r, e).shiftRight(bits));
+    }
+
+    private static boolean isHuge(BigDecimal value, int bits) {
+        return value.unscaledValue().bitLength() >= bits;
+    }
+
+    private static synchronized int getParallelism() {
+        if (parallelism == 0) {
+            parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+        }
+        return parallelism;
+    }
+
+    /**
+     * Set the number of parts multiplied in parallel, 0 for the number of processors.
+     * Only changed for testing.
+     */
+    static synchronized void setParallelism(int count) {
+        parallelism = count;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(getParallelism(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "CalcHighPrecision");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+}
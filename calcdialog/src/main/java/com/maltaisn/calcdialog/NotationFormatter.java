@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Formats values with too many integer digits in scientific or engineering notation.
+ * The exponent is found from the precision and the scale of the value, and the value is
+ * rounded before formatting, so the digits of huge values are never all generated.
+ */
+final class NotationFormatter {
+
+    private NotationFormatter() {
+        // Utility class
+    }
+
+    /**
+     * Get the number of integer digits of a value, without generating its digits.
+     * Values with an absolute value below 1 have 0 integer digits.
+     */
+    static int getIntegerDigits(@NonNull BigDecimal value) {
+        if (value.signum() == 0) {
+            return 0;
+        }
+        return Math.max(0, value.precision() - value.scale());
+    }
+
+    /**
+     * Format a value in a notation if it has more integer digits than allowed.
+     * @param value     The value to format.
+     * @param nbFormat  The format used for the mantissa. Its maximum fraction digits
+     *                  and its rounding mode are used to round the mantissa.
+     * @param notation  The notation to use.
+     * @param maxDigits The maximum number of integer digits shown in plain notation.
+     * @return The formatted value, or null if the value should be formatted normally.
+     */
+    @Nullable
+    static String format(@NonNull BigDecimal value, @NonNull NumberFormat nbFormat,
+                         @NonNull CalcNotation notation, int maxDigits) {
+        if (notation == CalcNotation.PLAIN || getIntegerDigits(value) <= maxDigits) {
+            return null;
+        }
+
+        // Round to the digits shown before computing the mantissa, since rounding can
+        // carry into a new digit and change the exponent (9.999E9 -> 1E10).
+        int exponent = value.precision() - value.scale() - 1;
+        int mantissaIntDigits = 1;
+        if (notation == CalcNotation.ENGINEERING) {
+            mantissaIntDigits = exponent % 3 + 1;
+        }
+        MathContext mc = new MathContext(mantissaIntDigits
+                + nbFormat.getMaximumFractionDigits(), nbFormat.getRoundingMode());
+        BigDecimal rounded = value.round(mc);
+
+        exponent = rounded.precision() - rounded.scale() - 1;
+        if (notation == CalcNotation.ENGINEERING) {
+            exponent -= exponent % 3;
+        }
+        BigDecimal mantissa = rounded.movePointLeft(exponent);
+
+        if (nbFormat instanceof DecimalFormat) {
+            // Insert the exponent before the suffix.
+            DecimalFormat fmt = (DecimalFormat) nbFormat;
+            String exp = fmt.getDecimalFormatSymbols().getExponentSeparator() + exponent;
+            String text;
+            if (mantissa.signum() >= 0) {
+                String suffixBefore = fmt.getPositiveSuffix();
+                fmt.setPositiveSuffix(exp + suffixBefore);
+                text = fmt.format(mantissa);
+                fmt.setPositiveSuffix(suffixBefore);
+            } else {
+                String suffixBefore = fmt.getNegativeSuffix();
+                fmt.setNegativeSuffix(exp + suffixBefore);
+                text = fmt.format(mantissa);
+                fmt.setNegativeSuffix(suffixBefore);
+            }
+            return text;
+        } else {
+            return nbFormat.format(mantissa) + "E" + exponent;
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Process-wide cache of number formats and decimal format symbols, which are slow to
+ * create since locale data must be loaded. Cached formats are prototypes that are never
+ * returned directly, callers always get a clone which they can modify.
+ */
+final class NumberFormatCache {
+
+    /** Maximum fraction digits of the default format. */
+    static final int DEFAULT_MAX_FRACTION_DIGITS = 8;
+
+    private static final Map<Key, NumberFormat> FORMATS = new HashMap<>();
+    private static final Map<Locale, DecimalFormatSymbols> SYMBOLS = new HashMap<>();
+
+    private NumberFormatCache() {
+        // Utility class
+    }
+
+    /**
+     * Get the default format used by the calculator for a locale: the locale's number format,
+     * without limit on integer digits and with {@link #DEFAULT_MAX_FRACTION_DIGITS}.
+     * @return A new copy of the format.
+     */
+    @NonNull
+    static NumberFormat getDefault(@NonNull Locale locale) {
+        return get(locale, null, RoundingMode.HALF_EVEN);
+    }
+
+    /**
+     * Get a number format.
+     * @param locale       The locale of the format.
+     * @param pattern      The decimal format pattern, or null for the locale's number format
+     *                     with the calculator defaults, see {@link #getDefault(Locale)}.
+     * @param roundingMode The rounding mode of the format.
+     * @return A new copy of the format.
+     */
+    @NonNull
+    static NumberFormat get(@NonNull Locale locale, @Nullable String pattern,
+                            @NonNull RoundingMode roundingMode) {
+        Key key = new Key(locale, pattern, roundingMode);
+        NumberFormat format;
+        synchronized (FORMATS) {
+            format = FORMATS.get(key);
+            if (format == null) {
+                if (pattern == null) {
+                    format = NumberFormat.getInstance(locale);
+                    format.setMaximumIntegerDigits(Integer.MAX_VALUE);
+                    format.setMaximumFractionDigits(DEFAULT_MAX_FRACTION_DIGITS);
+                } else {
+                    format = new DecimalFormat(pattern, getSymbols(locale));
+                }
+                format.setRoundingMode(roundingMode);
+                FORMATS.put(key, format);
+            }
+            // Formats aren't thread-safe, clone while holding the lock.
+            return (NumberFormat) format.clone();
+        }
+    }
+
+    /**
+     * Get the decimal format symbols of a locale.
+     * @return A new copy of the symbols.
+     */
+    @NonNull
+    static DecimalFormatSymbols getSymbols(@NonNull Locale locale) {
+        synchronized (SYMBOLS) {
+            DecimalFormatSymbols symbols = SYMBOLS.get(locale);
+            if (symbols == null) {
+                symbols = new DecimalFormatSymbols(locale);
+                SYMBOLS.put(locale, symbols);
+            }
+            return (DecimalFormatSymbols) symbols.clone();
+        }
+    }
+
+    /**
+     * Copy a format so that the copy can be used on another thread than the original.
+     * The original is locked while it's cloned, like the cached prototypes.
+     * @return A new format, with all the attributes of the original.
+     */
+    @NonNull
+    static NumberFormat copy(@NonNull NumberFormat format) {
+        synchronized (format) {
+            return (NumberFormat) format.clone();
+        }
+    }
+
+    /**
+     * Returns whether a format is the same as the default format for a locale,
+     * in which case it doesn't need to be serialized.
+     */
+    static boolean isDefault(@NonNull NumberFormat format, @NonNull Locale locale) {
+        Key key = new Key(locale, null, RoundingMode.HALF_EVEN);
+        synchronized (FORMATS) {
+            NumberFormat prototype = FORMATS.get(key);
+            return prototype != null && prototype.equals(format);
+        }
+    }
+
+    private static final class Key {
+
+        @NonNull
+        final Locale locale;
+        @Nullable
+        final String pattern;
+        @NonNull
+        final RoundingMode roundingMode;
+
+        Key(@NonNull Locale locale, @Nullable String pattern, @NonNull RoundingMode roundingMode) {
+            this.locale = locale;
+            this.pattern = pattern;
+            this.roundingMode = roundingMode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key key = (Key) obj;
+            return locale.equals(key.locale) && roundingMode == key.roundingMode
+                    && (pattern == null ? key.pattern == null : pattern.equals(key.pattern));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = locale.hashCode();
+            result = 31 * result + (pattern != null ? pattern.hashCode() : 0);
+            result = 31 * result + roundingMode.hashCode();
+            return result;
+        }
+    }
+
+}
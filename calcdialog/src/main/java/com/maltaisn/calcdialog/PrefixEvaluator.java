@@ -0,0 +1,236 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import com.maltaisn.calcdialog.Expression.Operator;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Evaluates an expression followed by one more number, keeping the partial evaluation of
+ * the expression between calls. Numbers added to the expression since the last call are
+ * evaluated once, so the cost of each call doesn't depend on the expression length.
+ * The result is exactly the same as {@link ExpressionSnapshot#evaluate(boolean, int, RoundingMode)}
+ * or {@link ExpressionSnapshot#evaluateExact(boolean, int, RoundingMode)} would give.
+ */
+class PrefixEvaluator {
+
+    @NonNull
+    private final Expression expression;
+
+    // Evaluation parameters of the partial evaluation.
+    private boolean priority;
+    private boolean exact;
+    private int scale;
+    private RoundingMode roundingMode;
+
+    /** Number of numbers of the expression evaluated, 0 if none. */
+    private int count;
+
+    /** Whether a division by zero occurred in the evaluated numbers. */
+    private boolean divByZero;
+
+    /** Whether a division was evaluated, in which case exact evaluation uses fractions. */
+    private boolean hasQuotient;
+
+    /**
+     * Sum of the terms before the last one, and value of the last term so far.
+     * Without priority, the sum is zero and the term is the result so far.
+     * For exact evaluation, these are only valid until a division is evaluated.
+     */
+    private BigDecimal sum;
+    private BigDecimal term;
+    private boolean termNegative;
+
+    // Same as above but as fractions, only used for exact evaluation.
+    private Rational exactSum;
+    private Rational exactTerm;
+
+    PrefixEvaluator(@NonNull Expression expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * Must be called when numbers are removed from the expression.
+     * @param numberCount The new number of numbers in the expression.
+     */
+    void truncate(int numberCount) {
+        if (numberCount < count) {
+            // Partial evaluation can't be undone, start over.
+            count = 0;
+            divByZero = false;
+        }
+    }
+
+    /**
+     * Evaluate the expression with a number appended. The expression must end with an
+     * operator, or be empty.
+     * @param value The number appended to the expression, or null to evaluate the
+     *              expression without its last operator instead.
+     * @return The result, or null if a division by zero occurred or if there's no result.
+     */
+    @Nullable
+    BigDecimal evaluate(@Nullable BigDecimal value, boolean priority, boolean exact,
+                        int scale, RoundingMode roundingMode) {
+        int numberCount = expression.getNumberCount();
+        if (expression.getOperatorCount() != numberCount) {
+            throw new IllegalStateException("Expression must end with an operator.");
+        }
+        if (numberCount == 0) {
+            return value;
+        }
+
+        if (priority != this.priority || exact != this.exact
+                || scale != this.scale || roundingMode != this.roundingMode) {
+            this.priority = priority;
+            this.exact = exact;
+            this.scale = scale;
+            this.roundingMode = roundingMode;
+            count = 0;
+            divByZero = false;
+        }
+
+        // Evaluate the numbers added since last time.
+        while (count < numberCount && !divByZero) {
+            add(count);
+            count++;
+        }
+        if (divByZero) {
+            return null;
+        }
+
+        if (value == null) {
+            // Result of the evaluated numbers only.
+            if (exact && hasQuotient) {
+                Rational s = termNegative ? exactSum.subtract(exactTerm) : exactSum.add(exactTerm);
+                return s.toBigDecimal(scale, roundingMode);
+            } else {
+                BigDecimal s = termNegative ? sum.subtract(term) : sum.add(term);
+                return s.stripTrailingZeros();
+            }
+        }
+
+        // Evaluate the appended number without changing the partial evaluation.
+        Operator op = expression.getOperator(numberCount - 1);
+        try {
+            if (exact && (hasQuotient || op == Operator.DIVIDE)) {
+                Rational s = exactSum;
+                Rational t = exactTerm;
+                Rational n = Rational.valueOf(value);
+                boolean negative = termNegative;
+                if (op == Operator.MULTIPLY) {
+                    t = t.multiply(n);
+                } else if (op == Operator.DIVIDE) {
+                    t = t.divide(n);
+                } else if (priority) {
+                    s = termNegative ? s.subtract(t) : s.add(t);
+                    t = n;
+                    negative = (op == Operator.SUBTRACT);
+                } else {
+                    t = (op == Operator.ADD) ? t.add(n) : t.subtract(n);
+                }
+                s = negative ? s.subtract(t) : s.add(t);
+                return s.toBigDecimal(scale, roundingMode);
+
+            } else {
+                BigDecimal s = sum;
+                BigDecimal t = term;
+                boolean negative = termNegative;
+                if (op == Operator.MULTIPLY) {
+                    t = HighPrecisionMath.multiply(t, value);
+                } else if (op == Operator.DIVIDE) {
+                    t = HighPrecisionMath.divide(t, value, scale, roundingMode);
+                } else if (priority) {
+                    s = termNegative ? s.subtract(t) : s.add(t);
+                    t = value;
+                    negative = (op == Operator.SUBTRACT);
+                } else {
+                    t = (op == Operator.ADD) ? t.add(value) : t.subtract(value);
+                }
+                s = negative ? s.subtract(t) : s.add(t);
+                return s.stripTrailingZeros();
+            }
+        } catch (ArithmeticException e) {
+            // Division by zero occurred.
+            return null;
+        }
+    }
+
+    /**
+     * Add a number of the expression to the partial evaluation.
+     */
+    private void add(int index) {
+        BigDecimal n = expression.getNumber(index);
+        if (index == 0) {
+            hasQuotient = false;
+            sum = BigDecimal.ZERO;
+            term = n;
+            termNegative = false;
+            if (exact) {
+                exactSum = Rational.ZERO;
+                exactTerm = Rational.valueOf(n);
+            }
+            return;
+        }
+
+        Operator op = expression.getOperator(index - 1);
+        try {
+            if (exact) {
+                if (op == Operator.DIVIDE) {
+                    hasQuotient = true;
+                }
+                Rational r = Rational.valueOf(n);
+                if (op == Operator.MULTIPLY) {
+                    exactTerm = exactTerm.multiply(r);
+                } else if (op == Operator.DIVIDE) {
+                    exactTerm = exactTerm.divide(r);
+                } else if (priority) {
+                    exactSum = termNegative ? exactSum.subtract(exactTerm) : exactSum.add(exactTerm);
+                    exactTerm = r;
+                } else {
+                    exactTerm = (op == Operator.ADD) ? exactTerm.add(r) : exactTerm.subtract(r);
+                }
+                if (hasQuotient) {
+                    // Decimal evaluation isn't needed anymore.
+                    if (priority && (op == Operator.ADD || op == Operator.SUBTRACT)) {
+                        termNegative = (op == Operator.SUBTRACT);
+                    }
+                    return;
+                }
+            }
+
+            if (op == Operator.MULTIPLY) {
+                term = HighPrecisionMath.multiply(term, n);
+            } else if (op == Operator.DIVIDE) {
+                term = HighPrecisionMath.divide(term, n, scale, roundingMode);
+            } else if (priority) {
+                sum = termNegative ? sum.subtract(term) : sum.add(term);
+                term = n;
+                termNegative = (op == Operator.SUBTRACT);
+            } else {
+                term = (op == Operator.ADD) ? term.add(n) : term.subtract(n);
+            }
+        } catch (ArithmeticException e) {
+            divByZero = true;
+        }
+    }
+
+}
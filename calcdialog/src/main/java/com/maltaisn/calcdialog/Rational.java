@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable exact fraction used to evaluate expressions without intermediate rounding.
+ * Fractions are not always in lowest terms: the GCD is only computed when the numerator
+ * or the denominator of a product or quotient gets bigger than {@link #REDUCE_THRESHOLD}
+ * bits, or twice their size after the last reduction, since most calculations never need it.
+ * Sums are never reduced. Their denominator is at most the product of the denominators
+ * summed so its size only grows linearly, while computing the GCD of big numbers takes
+ * much longer than the multiplications it saves.
+ */
+final class Rational {
+
+    /** Number of bits over which the fraction is reduced. */
+    static final int REDUCE_THRESHOLD = 256;
+
+    static final Rational ZERO = new Rational(BigInteger.ZERO, BigInteger.ONE);
+
+    /** The numerator, holds the sign. */
+    final BigInteger num;
+
+    /** The denominator, always positive. */
+    final BigInteger den;
+
+    /**
+     * Number of bits over which the fraction will be reduced. After a reduction, this
+     * is twice the size of the reduced terms, so that fractions which can't be reduced
+     * much aren't reduced after every operation.
+     */
+    private final int reduceBits;
+
+    private Rational(BigInteger num, BigInteger den, int reduceBits) {
+        this.num = num;
+        this.den = den;
+        this.reduceBits = reduceBits;
+    }
+
+    private Rational(BigInteger num, BigInteger den) {
+        this(num, den, REDUCE_THRESHOLD);
+    }
+
+    @NonNull
+    static Rational valueOf(@NonNull BigDecimal value) {
+        return valueOf(value.unscaledValue(), value.scale());
+    }
+
+    @NonNull
+    static Rational valueOf(long unscaled, int scale) {
+        return valueOf(BigInteger.valueOf(unscaled), scale);
+    }
+
+    private static Rational valueOf(BigInteger unscaled, int scale) {
+        if (scale > 0) {
+            return new Rational(unscaled, BigDecimalCache.bigPowerOfTen(scale));
+        } else if (scale == 0) {
+            return new Rational(unscaled, BigInteger.ONE);
+        } else {
+            return new Rational(unscaled.multiply(BigDecimalCache.bigPowerOfTen(-scale)),
+                    BigInteger.ONE);
+        }
+    }
+
+    /**
+     * Create a fraction, reducing it if its terms are too big.
+     * @param reduceBits The reduction threshold of the operands.
+     */
+    private static Rational create(BigInteger num, BigInteger den, int reduceBits) {
+        int bits = Math.max(num.bitLength(), den.bitLength());
+        if (bits > reduceBits) {
+            BigInteger gcd = num.gcd(den);
+            if (!gcd.equals(BigInteger.ONE)) {
+                num = num.divide(gcd);
+                den = den.divide(gcd);
+            }
+            bits = Math.max(num.bitLength(), den.bitLength());
+            reduceBits = Math.max(REDUCE_THRESHOLD, bits * 2);
+        }
+        return new Rational(num, den, reduceBits);
+    }
+
+    @NonNull
+    Rational add(@NonNull Rational r) {
+        return sum(r.num, r.den, r.reduceBits);
+    }
+
+    @NonNull
+    Rational negate() {
+        return new Rational(num.negate(), den, reduceBits);
+    }
+
+    @NonNull
+    Rational subtract(@NonNull Rational r) {
+        return sum(r.num.negate(), r.den, r.reduceBits);
+    }
+
+    private Rational sum(BigInteger n, BigInteger d, int bits) {
+        // Not reduced, see the class documentation.
+        bits = Math.max(reduceBits, bits);
+        if (den.equals(d)) {
+            // Common case when adding decimal numbers of the same scale.
+            return new Rational(num.add(n), den, bits);
+        }
+        return new Rational(num.multiply(d).add(n.multiply(den)), den.multiply(d), bits);
+    }
+
+    @NonNull
+    Rational multiply(@NonNull Rational r) {
+        return create(HighPrecisionMath.multiply(num, r.num),
+                HighPrecisionMath.multiply(den, r.den), Math.max(reduceBits, r.reduceBits));
+    }
+
+    /**
+     * @throws ArithmeticException if the divisor is zero.
+     */
+    @NonNull
+    Rational divide(@NonNull Rational r) {
+        if (r.num.signum() == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        BigInteger n = HighPrecisionMath.multiply(num, r.den);
+        BigInteger d = HighPrecisionMath.multiply(den, r.num);
+        if (d.signum() < 0) {
+            n = n.negate();
+            d = d.negate();
+        }
+        return create(n, d, Math.max(reduceBits, r.reduceBits));
+    }
+
+    /**
+     * Round the fraction to a decimal number.
+     * @param scale        Number of decimal places to keep.
+     * @param roundingMode Rounding mode to use.
+     * @return The rounded value, without trailing zeroes.
+     */
+    @NonNull
+    BigDecimal toBigDecimal(int scale, RoundingMode roundingMode) {
+        BigDecimal value;
+        if (den.equals(BigInteger.ONE)) {
+            value = new BigDecimal(num);
+        } else {
+            value = HighPrecisionMath.divide(new BigDecimal(num), new BigDecimal(den),
+                    scale, roundingMode);
+        }
+        return value.stripTrailingZeros();
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Running statistics over a stream of values, updated in constant time without keeping
+ * the values. The sum and the sum of squares are exact, so the mean and the variance are
+ * rounded only once, like a quotient in an expression.
+ */
+final class StatisticsAccumulator implements Parcelable {
+
+    private long count;
+    @NonNull private BigDecimal sum = BigDecimal.ZERO;
+    @NonNull private BigDecimal sumOfSquares = BigDecimal.ZERO;
+    @Nullable private BigDecimal min;
+    @Nullable private BigDecimal max;
+
+    StatisticsAccumulator() {
+        // Empty
+    }
+
+    /**
+     * Add a value to the statistics.
+     */
+    void add(@NonNull BigDecimal value) {
+        count++;
+        sum = sum.add(value);
+        sumOfSquares = sumOfSquares.add(value.multiply(value));
+        if (min == null || value.compareTo(min) < 0) {
+            min = value;
+        }
+        if (max == null || value.compareTo(max) > 0) {
+            max = value;
+        }
+    }
+
+    void clear() {
+        count = 0;
+        sum = BigDecimal.ZERO;
+        sumOfSquares = BigDecimal.ZERO;
+        min = null;
+        max = null;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Get a statistic of the values added.
+     * @param statistic    The statistic.
+     * @param scale        Number of fraction digits of rounded statistics.
+     * @param roundingMode Rounding mode of rounded statistics.
+     * @return The statistic without trailing zeroes, or null if no values were added
+     * and the statistic is the mean, the minimum or the maximum.
+     */
+    @Nullable
+    BigDecimal get(@NonNull CalcStatistic statistic, int scale, @NonNull RoundingMode roundingMode) {
+        BigDecimal value;
+        switch (statistic) {
+            case COUNT:
+                value = BigDecimal.valueOf(count);
+                break;
+            case SUM:
+                value = sum;
+                break;
+            case MEAN:
+                if (count == 0) return null;
+                value = HighPrecisionMath.divide(sum, BigDecimal.valueOf(count), scale, roundingMode);
+                break;
+            case VARIANCE:
+                value = getVariance(scale, roundingMode, false);
+                break;
+            case STANDARD_DEVIATION:
+                // The variance is rounded down with twice as many digits and a sticky digit,
+                // so that the square root is rounded to the scale without accumulating errors.
+                value = BigDecimalMath.sqrt(getVariance(2 * scale + 2, RoundingMode.DOWN, true),
+                        scale, roundingMode);
+                break;
+            case MIN:
+                value = min;
+                break;
+            case MAX:
+                value = max;
+                break;
+            default:
+                throw new IllegalArgumentException();
+        }
+        return (value != null) ? value.stripTrailingZeros() : null;
+    }
+
+    /**
+     * Compute the sample variance, {@code (n × Σx² − (Σx)²) ÷ (n × (n − 1))}.
+     * Since the sums are exact, there's no cancellation error.
+     * @param sticky Whether to append a last nonzero digit if the result isn't exact. The
+     *               result rounded down is then between the same squares of numbers with half
+     *               the scale as the exact variance, so its square root rounds the same.
+     */
+    private BigDecimal getVariance(int scale, RoundingMode roundingMode, boolean sticky) {
+        if (count < 2) {
+            return BigDecimal.ZERO;
+        }
+        BigDecimal n = BigDecimal.valueOf(count);
+        BigDecimal num = n.multiply(sumOfSquares).subtract(sum.multiply(sum));
+        BigDecimal den = n.multiply(BigDecimal.valueOf(count - 1));
+        BigDecimal variance = HighPrecisionMath.divide(num, den, scale, roundingMode);
+        if (sticky && variance.multiply(den).compareTo(num) != 0) {
+            variance = variance.add(BigDecimal.ONE.scaleByPowerOfTen(-scale - 1));
+        }
+        return variance;
+    }
+
+    ////////// PARCELABLE //////////
+    private StatisticsAccumulator(Parcel in) {
+        count = in.readLong();
+        if (count > 0) {
+            sum = new BigDecimal(in.readString());
+            sumOfSquares = new BigDecimal(in.readString());
+            min = new BigDecimal(in.readString());
+            max = new BigDecimal(in.readString());
+        }
+    }
+
+    @Override
+    public void writeToParcel(@NonNull Parcel out, int flags) {
+        out.writeLong(count);
+        if (count > 0) {
+            assert min != null && max != null;
+            out.writeString(sum.toString());
+            out.writeString(sumOfSquares.toString());
+            out.writeString(min.toString());
+            out.writeString(max.toString());
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<StatisticsAccumulator> CREATOR = new Creator<StatisticsAccumulator>() {
+        @Override
+        public StatisticsAccumulator createFromParcel(Parcel in) {
+            return new StatisticsAccumulator(in);
+        }
+
+        @Override
+        public StatisticsAccumulator[] newArray(int size) {
+            return new StatisticsAccumulator[size];
+        }
+    };
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class BigDecimalCacheTest {
+
+    @Test
+    public void internSmallValues() {
+        assertSame(BigDecimal.ZERO, BigDecimalCache.intern(new BigDecimal("0")));
+        assertSame(BigDecimalCache.intern(new BigDecimal("-12.5")),
+                BigDecimalCache.intern(new BigDecimal("-12.5")));
+        assertSame(BigDecimalCache.intern(new BigDecimal("1E+6")),
+                BigDecimalCache.valueOf(1, -6));
+    }
+
+    @Test
+    public void internKeepsScale() {
+        BigDecimal value = BigDecimalCache.intern(new BigDecimal("1.50"));
+        assertEquals(2, value.scale());
+        assertEquals(new BigDecimal("1.50"), value);
+
+        BigDecimal big = new BigDecimal("123456.789");
+        assertSame(big, BigDecimalCache.intern(big));
+    }
+
+    @Test
+    public void parse() {
+        assertEquals(new BigDecimal("12"), BigDecimalCache.parse("12"));
+        assertEquals(new BigDecimal("12"), BigDecimalCache.parse("12."));
+        assertEquals(new BigDecimal("-0.50"), BigDecimalCache.parse("-0.50"));
+        assertEquals(new BigDecimal("1234567890123456.789"),
+                BigDecimalCache.parse("1234567890123456.789"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseSignOnly() {
+        BigDecimalCache.parse("-");
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import static org.junit.Assert.assertEquals;
+
+public class BigDecimalMathTest {
+
+    private static final String E = "2.71828182845904523536028747135266249775724709369995957496696763";
+    private static final String LN_2 = "0.69314718055994530941723212145817656807550013436025525412068001";
+    private static final String SQRT_2 = "1.41421356237309504880168872420969807856967187537694807317667974";
+
+    @Test
+    public void sqrt() {
+        assertEquals(new BigDecimal("1.4142"), BigDecimalMath.sqrt(new BigDecimal("2"), 4, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("1.4143"), BigDecimalMath.sqrt(new BigDecimal("2"), 4, RoundingMode.UP));
+        assertEquals(new BigDecimal("1.5"), BigDecimalMath.sqrt(new BigDecimal("2.25"), 1, RoundingMode.UNNECESSARY));
+        assertEquals(new BigDecimal("0.01"), BigDecimalMath.sqrt(new BigDecimal("0.0001"), 2, RoundingMode.UNNECESSARY));
+        assertEquals(new BigDecimal(SQRT_2).setScale(60, RoundingMode.HALF_EVEN),
+                BigDecimalMath.sqrt(new BigDecimal("2"), 60, RoundingMode.HALF_EVEN));
+    }
+
+    @Test
+    public void expAndLn() {
+        assertEquals(new BigDecimal(E).setScale(60, RoundingMode.HALF_EVEN),
+                BigDecimalMath.exp(BigDecimal.ONE, 60, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal(LN_2).setScale(60, RoundingMode.HALF_EVEN),
+                BigDecimalMath.ln(new BigDecimal("2"), 60, RoundingMode.HALF_EVEN));
+        // Constants cached at a higher scale must give the same result at a lower scale.
+        assertEquals(new BigDecimal(LN_2).setScale(20, RoundingMode.FLOOR),
+                BigDecimalMath.ln(new BigDecimal("2"), 20, RoundingMode.FLOOR));
+
+        assertEquals(new BigDecimal("0.36787944"), BigDecimalMath.exp(new BigDecimal("-1"), 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("0.00000000"), BigDecimalMath.exp(new BigDecimal("-1000"), 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("0.00000001"), BigDecimalMath.exp(new BigDecimal("-1000"), 8, RoundingMode.UP));
+        assertEquals(new BigDecimal("230.25850930"), BigDecimalMath.ln(new BigDecimal("1e100"), 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("-2.30258509"), BigDecimalMath.ln(new BigDecimal("0.1"), 8, RoundingMode.HALF_EVEN));
+    }
+
+    @Test
+    public void log10() {
+        assertEquals(new BigDecimal("3.00000000"), BigDecimalMath.log10(new BigDecimal("1000"), 8, RoundingMode.UNNECESSARY));
+        assertEquals(new BigDecimal("-2.00"), BigDecimalMath.log10(new BigDecimal("0.0100"), 2, RoundingMode.UNNECESSARY));
+        assertEquals(new BigDecimal("0.30102999566"), BigDecimalMath.log10(new BigDecimal("2"), 11, RoundingMode.HALF_EVEN));
+    }
+
+    @Test
+    public void pow() {
+        assertEquals(new BigDecimal("1024"), BigDecimalMath.pow(new BigDecimal("2"), new BigDecimal("10"), 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("-0.125"), BigDecimalMath.pow(new BigDecimal("-0.5"), new BigDecimal("3.0"), 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("0.00097656"), BigDecimalMath.pow(new BigDecimal("2"), new BigDecimal("-10"), 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal(SQRT_2).setScale(40, RoundingMode.HALF_EVEN),
+                BigDecimalMath.pow(new BigDecimal("2"), new BigDecimal("0.5"), 40, RoundingMode.HALF_EVEN));
+        assertEquals(BigDecimal.ONE, BigDecimalMath.pow(BigDecimal.ZERO, BigDecimal.ZERO, 8, RoundingMode.HALF_EVEN));
+    }
+
+    @Test(expected = BigDecimalMath.DomainException.class)
+    public void powNegativeBaseFractionalExponent() {
+        BigDecimalMath.pow(new BigDecimal("-8"), new BigDecimal("0.5"), 8, RoundingMode.HALF_EVEN);
+    }
+
+    @Test(expected = BigDecimalMath.DomainException.class)
+    public void powOverflow() {
+        BigDecimalMath.pow(new BigDecimal("10"), new BigDecimal("1e9"), 8, RoundingMode.HALF_EVEN);
+    }
+
+    @Test(expected = BigDecimalMath.DomainException.class)
+    public void lnOfZero() {
+        BigDecimalMath.ln(BigDecimal.ZERO, 8, RoundingMode.HALF_EVEN);
+    }
+
+}
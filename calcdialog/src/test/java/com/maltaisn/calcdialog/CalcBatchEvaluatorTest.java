@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.channels.Channels;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CalcBatchEvaluatorTest {
+
+    private final NumberFormat nbFormat = NumberFormatCache.getDefault(Locale.US);
+
+    @Test
+    public void evaluateLines() throws IOException {
+        String input = "1 + 2 × 3\n"
+                + "10/4\r\n"
+                + "\n"
+                + "-2 - -3 * 1.5\n"
+                + "1 ÷ 0\n"
+                + "2 +\n"
+                + "1 + a\n"
+                + "123456789012345678901234567890 − 1\n"
+                + "1 ÷ 3";
+        String expected = "7\n"
+                + "2.5\n"
+                + "\n"
+                + "2.5\n"
+                + CalcBatchEvaluator.ERROR_DIV_ZERO + "\n"
+                + CalcBatchEvaluator.ERROR_SYNTAX + "\n"
+                + CalcBatchEvaluator.ERROR_SYNTAX + "\n"
+                + "123,456,789,012,345,678,901,234,567,889\n"
+                + "0.33333333\n";
+        assertEquals(expected, evaluate(new CalcBatchEvaluator(nbFormat, true, false), input));
+    }
+
+    @Test
+    public void settings() throws IOException {
+        assertEquals("9\n1\n", evaluate(new CalcBatchEvaluator(nbFormat, false, true),
+                "1 + 2 × 3\n1 ÷ 3 × 3\n"));
+    }
+
+    @Test
+    public void chunksInOrder() throws IOException {
+        Random random = new Random(0);
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            Expression expr = new Expression();
+            int count = random.nextInt(10) + 1;
+            for (int j = 0; j < count; j++) {
+                BigDecimal n = BigDecimal.valueOf(random.nextInt(100000) + 1, random.nextInt(3));
+                if (j > 0) {
+                    Expression.Operator op = Expression.OPERATORS[random.nextInt(4)];
+                    expr.addOperator(op);
+                    input.append(' ').append(op.symbol).append(' ');
+                }
+                expr.addNumber(n);
+                input.append(n.toPlainString());
+            }
+            input.append('\n');
+            expected.append(nbFormat.format(expr.evaluate(true, 8, RoundingMode.HALF_EVEN))).append('\n');
+        }
+
+        CalcBatchEvaluator evaluator = new CalcBatchEvaluator(nbFormat, true, false);
+        evaluator.setThreadCount(4);
+        evaluator.setChunkSize(100);
+        assertEquals(expected.toString(), evaluate(evaluator, input.toString()));
+
+        // Same with a memory-mapped file.
+        File file = File.createTempFile("calc_batch", null);
+        file.deleteOnExit();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(input.toString().getBytes("UTF-8"));
+        fileOut.close();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        evaluator.evaluate(file, Channels.newChannel(out));
+        assertEquals(expected.toString(), out.toString("UTF-8"));
+    }
+
+    private static String evaluate(CalcBatchEvaluator evaluator, String input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        evaluator.evaluate(Channels.newChannel(new ByteArrayInputStream(input.getBytes("UTF-8"))),
+                Channels.newChannel(out));
+        return out.toString("UTF-8");
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CalcConversionTableTest {
+
+    private static final String RATES = "# Lengths\n"
+            + "km m 1000\n"
+            + "ft m 0.3048   # exact\n"
+            + "\n"
+            + "in ft 0.0833333333333333333333333333333333333333\n"
+            + "USD EUR 0.92\n"
+            + "EUR GBP 0.85\n";
+
+    @Test
+    public void crossRates() throws IOException {
+        CalcConversionTable table = CalcConversionTable.fromFile(createTable(RATES));
+        table.load();
+        assertEquals(Arrays.asList("km", "m", "ft", "in", "USD", "EUR", "GBP"), table.getUnits());
+
+        int km = table.getUnitIndex("km");
+        int ft = table.getUnitIndex("ft");
+        int usd = table.getUnitIndex("USD");
+        int gbp = table.getUnitIndex("GBP");
+        assertEquals(-1, table.getUnitIndex("mi"));
+
+        assertEquals(new BigDecimal("304.8"), table.getFactor(ft, km).movePointRight(6));
+        assertEquals(new BigDecimal("3280.84"), table.convert(BigDecimal.ONE, km, ft, 2, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("0.782"), table.getFactor(usd, gbp));
+        assertEquals(new BigDecimal("127.88"), table.convert(new BigDecimal("100"), gbp, usd, 2, RoundingMode.HALF_EVEN));
+        assertNull(table.getFactor(km, usd));
+
+        try {
+            table.convert(BigDecimal.ONE, km, usd, 2, RoundingMode.HALF_EVEN);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void longSameAsBigDecimal() throws IOException {
+        CalcConversionTable table = CalcConversionTable.fromFile(createTable(RATES));
+        Random random = new Random(0);
+        long[] values = new long[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i % 100 == 0) ? random.nextLong() : random.nextInt(2000000) - 1000000;
+        }
+        long[] result = new long[values.length];
+        RoundingMode[] modes = {RoundingMode.HALF_EVEN, RoundingMode.FLOOR, RoundingMode.UP};
+
+        int units = table.getUnits().size();
+        for (int from = 0; from < units; from++) {
+            for (int to = 0; to < units; to++) {
+                if (table.getFactor(from, to) == null) continue;
+                for (RoundingMode mode : modes) {
+                    table.convert(values, 2, from, to, result, 3, mode);
+                    for (int i = 0; i < values.length; i++) {
+                        BigDecimal expected = table.convert(BigDecimal.valueOf(values[i], 2), from, to, 3, mode);
+                        long unscaled = (expected.unscaledValue().bitLength() < Long.SIZE)
+                                ? expected.unscaledValue().longValue() : CalcConversionTable.ERROR_VALUE;
+                        assertEquals(unscaled, result[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sharedTable() throws IOException {
+        File file = createTable(RATES);
+        assertSame(CalcConversionTable.fromFile(file), CalcConversionTable.fromFile(file));
+    }
+
+    @Test
+    public void invalidTable() throws IOException {
+        CalcConversionTable table = CalcConversionTable.fromFile(createTable("km m 1000\nm ft\n"));
+        try {
+            table.load();
+            fail();
+        } catch (IOException e) {
+            assertEquals("Invalid conversion rate at line 2.", e.getMessage());
+        }
+        assertEquals(0, table.getUnits().size());
+    }
+
+    @Test
+    public void conversionKey() throws IOException {
+        DecimalFormat fmt = new DecimalFormat("0.##", DecimalFormatSymbols.getInstance(Locale.US));
+        CalcSettings settings = new CalcSettings()
+                .setNumberFormat(fmt)
+                .setConversionUnits("km", "ft");
+        CalcDriver driver = new CalcDriver(settings);
+        assertEquals(new BigDecimal("2"), driver.run("2→").getValue());
+
+        driver.setConversionTable(CalcConversionTable.fromFile(createTable(RATES)));
+        assertEquals(new BigDecimal("6561.68"), driver.run("2→").getValue());
+        assertEquals(new BigDecimal("6563.68"), driver.run("2+2→=").getValue());
+        assertEquals(new BigDecimal("13123.36"), driver.run("1+2→×2-1=").getValue());
+
+        settings.setConversionUnits("km", "USD");
+        assertEquals(CalcDriver.ERROR_INVALID, driver.run("2→").getError());
+    }
+
+    private static File createTable(String text) throws IOException {
+        File file = File.createTempFile("calc_rates", null);
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+}
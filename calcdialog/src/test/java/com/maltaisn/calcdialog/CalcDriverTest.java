@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CalcDriverTest {
+
+    private static CalcSettings createSettings() {
+        DecimalFormat fmt = new DecimalFormat("#,##0.########", DecimalFormatSymbols.getInstance(Locale.US));
+        fmt.setRoundingMode(RoundingMode.HALF_UP);
+        return new CalcSettings().setNumberFormat(fmt);
+    }
+
+    @Test
+    public void keySequence() {
+        CalcDriver driver = new CalcDriver(createSettings());
+        CalcDriver.Result result = driver.run("12.5×3=");
+        assertEquals(new BigDecimal("37.5"), result.getValue());
+        assertEquals(CalcDriver.ERROR_NONE, result.getError());
+        assertFalse(result.isEntered());
+    }
+
+    @Test
+    public void orderOfOperations() {
+        CalcDriver driver = new CalcDriver(createSettings());
+        assertEquals(new BigDecimal("23"), driver.run("3 + 4 * 5 =").getValue());
+
+        CalcSettings settings = createSettings().setOrderOfOperationsApplied(false);
+        assertEquals(new BigDecimal("35"), new CalcDriver(settings).run("3 + 4 * 5 =").getValue());
+    }
+
+    @Test
+    public void reusedDriver() {
+        CalcDriver driver = new CalcDriver(createSettings());
+        assertEquals(new BigDecimal("3"), driver.run("1+2=").getValue());
+        assertEquals(new BigDecimal("7"), driver.run("7").getValue());
+    }
+
+    @Test
+    public void divisionByZero() {
+        CalcDriver driver = new CalcDriver(createSettings());
+        CalcDriver.Result result = driver.run("5/0=");
+        assertNull(result.getValue());
+        assertEquals(CalcDriver.ERROR_DIV_ZERO, result.getError());
+    }
+
+    @Test
+    public void powersAndFunctions() {
+        CalcDriver driver = new CalcDriver(createSettings());
+        assertEquals(new BigDecimal("18"), driver.run("2*3^2=").getValue());
+        assertEquals(new BigDecimal("1.41421356"), driver.run("2√").getValue());
+        assertEquals(new BigDecimal("3"), driver.run(new int[]{1, 0, 0, 0, CalcDriver.KEY_LOG}).getValue());
+
+        CalcDriver.Result result = driver.run(new int[]{0, CalcDriver.KEY_LN});
+        assertNull(result.getValue());
+        assertEquals(CalcDriver.ERROR_INVALID, result.getError());
+    }
+
+    @Test
+    public void functionAfterOperator() {
+        // The function result is the operand of the equal button or of the next operator.
+        CalcDriver driver = new CalcDriver(createSettings());
+        assertEquals(new BigDecimal("5"), driver.run("2+9√=").getValue());
+        assertEquals(new BigDecimal("8"), driver.run("2+9√×2=").getValue());
+        assertEquals(new BigDecimal("11"), driver.run("2+9√+6=").getValue());
+
+        CalcDriver.Result result = driver.run(new int[]{2, CalcDriver.KEY_ADD, 9,
+                CalcDriver.KEY_SQRT, CalcDriver.KEY_OK, CalcDriver.KEY_OK});
+        assertEquals(new BigDecimal("5"), result.getValue());
+        assertTrue(result.isEntered());
+    }
+
+    @Test
+    public void statistics() {
+        CalcSettings settings = createSettings().setStatistic(CalcStatistic.MEAN);
+        CalcDriver driver = new CalcDriver(settings);
+        CalcDriver.Result result = driver.run("2=3=2*5=");
+        assertEquals(new BigDecimal("5"), result.getValue());
+
+        // The statistic shown isn't added again, and OK enters it.
+        result = driver.run(new int[]{1, CalcDriver.KEY_EQUAL, 2, CalcDriver.KEY_EQUAL,
+                CalcDriver.KEY_EQUAL, CalcDriver.KEY_OK});
+        assertEquals(new BigDecimal("1.5"), result.getValue());
+        assertTrue(result.isEntered());
+
+        // Clearing removes all values.
+        settings.setStatistic(CalcStatistic.COUNT);
+        result = new CalcDriver(settings).run(new int[]{4, CalcDriver.KEY_EQUAL,
+                CalcDriver.KEY_CLEAR, 5, CalcDriver.KEY_OK});
+        assertEquals(new BigDecimal("1"), result.getValue());
+    }
+
+    @Test
+    public void keyCodes() {
+        CalcDriver driver = new CalcDriver(createSettings());
+        CalcDriver.Result result = driver.run(new int[]{1, 2, CalcDriver.KEY_ERASE, 5,
+                CalcDriver.KEY_SIGN, CalcDriver.KEY_DIVIDE, 4, CalcDriver.KEY_OK, CalcDriver.KEY_OK, 9});
+        assertEquals(new BigDecimal("-3.75"), result.getValue());
+        assertTrue(result.isEntered());
+    }
+
+    @Test
+    public void outOfBounds() {
+        CalcSettings settings = createSettings().setMaxValue(new BigDecimal("100"));
+        CalcDriver.Result result = new CalcDriver(settings).run(new int[]{
+                2, 0, 0, CalcDriver.KEY_OK});
+        assertFalse(result.isEntered());
+        assertEquals(CalcDriver.ERROR_OUT_OF_BOUNDS, result.getError());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCharacter() {
+        new CalcDriver(createSettings()).run("1+a");
+    }
+
+}
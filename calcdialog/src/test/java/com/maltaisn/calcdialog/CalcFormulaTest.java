@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CalcFormulaTest {
+
+    @Test
+    public void sameAsExpression() {
+        String[] formulas = {"{0} × 1.05 + {1}", "{0} - {1} ÷ 3 × {0}", "{1} / {0} / 7 - 0.5",
+                "2 - {0} × {1} × {1} + {0}"};
+        RoundingMode[] modes = {RoundingMode.HALF_EVEN, RoundingMode.HALF_UP, RoundingMode.FLOOR};
+        Random random = new Random(0);
+        long[][] columns = new long[2][1000];
+        for (long[] column : columns) {
+            for (int i = 0; i < column.length; i++) {
+                // Mostly small values, with some that overflow.
+                column[i] = (i % 100 == 0) ? random.nextLong() : random.nextInt(2000000) - 1000000;
+            }
+        }
+        columns[1][5] = 0;
+
+        for (String text : formulas) {
+            for (RoundingMode mode : modes) {
+                for (int p = 0; p < 2; p++) {
+                    CalcFormula formula = new CalcFormula(text, p == 0, false, 8, mode);
+                    long[] result = new long[columns[0].length];
+                    formula.evaluate(columns, 2, result, 3);
+
+                    for (int i = 0; i < result.length; i++) {
+                        String expr = text.replace("{0}", BigDecimal.valueOf(columns[0][i], 2).toPlainString())
+                                .replace("{1}", BigDecimal.valueOf(columns[1][i], 2).toPlainString());
+                        assertEquals(expr, expected(expr, p == 0, mode), result[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void exactDivision() {
+        CalcFormula formula = new CalcFormula("{0} ÷ 3 × 3", true, true, 2, RoundingMode.HALF_EVEN);
+        long[] result = new long[2];
+        assertEquals(0, formula.evaluate(new long[][]{{100, 7}}, 0, result, 2));
+        assertEquals(10000, result[0]);
+        assertEquals(700, result[1]);
+
+        formula = new CalcFormula("1 ÷ {0}", true, true, 2, RoundingMode.HALF_EVEN);
+        assertEquals(1, formula.evaluate(new long[][]{{3, 0}}, 0, result, 2));
+        assertEquals(33, result[0]);
+        assertEquals(CalcFormula.ERROR_VALUE, result[1]);
+    }
+
+    @Test
+    public void doubles() {
+        CalcFormula formula = new CalcFormula("{0} + {1} × 2 ÷ {1}", true, false, 8, RoundingMode.HALF_EVEN);
+        double[] result = new double[3];
+        formula.evaluate(new double[][]{{1, 2, 3}, {4, 0, -1}}, result);
+        assertEquals(3.0, result[0], 0.0);
+        assertEquals(Double.NaN, result[1], 0.0);
+        assertEquals(5.0, result[2], 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidFormula() {
+        new CalcFormula("{0} × ", true, false, 8, RoundingMode.HALF_EVEN);
+    }
+
+    private static long expected(String text, boolean priority, RoundingMode mode) {
+        Expression expr = new Expression();
+        String[] parts = text.split(" ");
+        for (int i = 0; i < parts.length; i++) {
+            if (i % 2 == 0) {
+                expr.addNumber(new BigDecimal(parts[i]));
+            } else {
+                char c = parts[i].charAt(0);
+                expr.addOperator(c == '+' ? Expression.Operator.ADD
+                        : c == '-' ? Expression.Operator.SUBTRACT
+                        : c == '×' ? Expression.Operator.MULTIPLY : Expression.Operator.DIVIDE);
+            }
+        }
+        try {
+            BigDecimal value = expr.evaluate(priority, 8, mode).setScale(3, mode);
+            if (value.unscaledValue().bitLength() < Long.SIZE) {
+                return value.unscaledValue().longValue();
+            }
+        } catch (ArithmeticException e) {
+            // Division by zero.
+        }
+        return CalcFormula.ERROR_VALUE;
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CalcHistoryTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void restoreEntries() throws Exception {
+        File file = createTempFile();
+        CalcHistory history = new CalcHistory(file, 10);
+        addCalculation(history, "1", "2");
+        addCalculation(history, "2.5", "-0.25");
+        history.close();
+
+        List<CalcHistory.Entry> entries = loadEntries(new CalcHistory(file, 10));
+        assertEquals(2, entries.size());
+        assertEquals(new BigDecimal("3"), entries.get(0).getResult());
+        assertEquals(new BigDecimal("2.25"), entries.get(1).getResult());
+        assertEquals(new BigDecimal("-0.25"), entries.get(1).getExpressionSnapshot().getNumber(1));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        File file = createTempFile();
+        CalcHistory history = new CalcHistory(file, 5);
+        for (int i = 0; i < 30; i++) {
+            addCalculation(history, String.valueOf(i), "1");
+        }
+        history.close();
+        List<CalcHistory.Entry> entries = loadEntries(history);
+        assertEquals(5, entries.size());
+        assertEquals(new BigDecimal("30"), entries.get(4).getResult());
+
+        long length = file.length();
+        entries = loadEntries(new CalcHistory(file, 5));
+        assertEquals(5, entries.size());
+        assertEquals(new BigDecimal("26"), entries.get(0).getResult());
+        // File never holds more than twice the entries.
+        assertTrue(length < 11 * 60);
+    }
+
+    @Test
+    public void truncatedRecord() throws Exception {
+        File file = createTempFile();
+        CalcHistory history = new CalcHistory(file, 10);
+        addCalculation(history, "1", "1");
+        addCalculation(history, "2", "2");
+        history.close();
+        loadEntries(history);
+
+        // Simulate a write interrupted in the middle of the last record.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 3);
+        raf.close();
+
+        history = new CalcHistory(file, 10);
+        List<CalcHistory.Entry> entries = loadEntries(history);
+        assertEquals(1, entries.size());
+        addCalculation(history, "3", "3");
+        history.close();
+        assertEquals(2, loadEntries(new CalcHistory(file, 10)).size());
+    }
+
+    @Test
+    public void corruptedFile() throws Exception {
+        File file = createTempFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3, 4, 5});
+        out.close();
+        assertEquals(0, loadEntries(new CalcHistory(file, 10)).size());
+    }
+
+    private static File createTempFile() throws IOException {
+        File file = File.createTempFile("calc_history", null);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static void addCalculation(CalcHistory history, String a, String b) {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal(a));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal(b));
+        history.add(expr.snapshot(), new BigDecimal(a).add(new BigDecimal(b)));
+    }
+
+    private static List<CalcHistory.Entry> loadEntries(CalcHistory history) throws InterruptedException {
+        final List<CalcHistory.Entry> result = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        history.load(new CalcHistory.LoadCallback() {
+            @Override
+            public void onLoaded(List<CalcHistory.Entry> entries) {
+                result.addAll(entries);
+                latch.countDown();
+            }
+        }, DIRECT_EXECUTOR);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return result;
+    }
+
+}
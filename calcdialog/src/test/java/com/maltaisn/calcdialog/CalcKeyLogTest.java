@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CalcKeyLogTest {
+
+    @Test
+    public void appendAndRead() {
+        CalcKeyLog log = new CalcKeyLog();
+        log.append(1, 0);
+        log.append(CalcPresenter.KEY_ADD, 127);
+        log.append(2, 128);
+        log.append(CalcPresenter.KEY_EQUAL, 1234567890123L);
+
+        assertEquals(4, log.size());
+        int[] keys = log.getKeys();
+        assertEquals(1, keys[0]);
+        assertEquals(CalcPresenter.KEY_ADD, keys[1]);
+        assertEquals(2, keys[2]);
+        assertEquals(CalcPresenter.KEY_EQUAL, keys[3]);
+
+        long[] times = log.getTimeDeltas();
+        assertEquals(0, times[0]);
+        assertEquals(127, times[1]);
+        assertEquals(128, times[2]);
+        assertEquals(1234567890123L, times[3]);
+    }
+
+    @Test
+    public void compactEncoding() {
+        CalcKeyLog log = new CalcKeyLog();
+        for (int i = 0; i < 100; i++) {
+            log.append(i % 10, 100);
+        }
+        // Magic number, then one byte per key and one byte per delta under 128 ms.
+        assertEquals(4 + 200, log.toByteArray().length);
+    }
+
+    @Test
+    public void encodeDecode() throws IOException {
+        CalcKeyLog log = new CalcKeyLog();
+        for (int i = 0; i < 1000; i++) {
+            log.append(i % 22, i * 31);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        log.writeTo(out);
+        CalcKeyLog read = CalcKeyLog.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(log.size(), read.size());
+        assertTrue(Arrays.equals(log.getKeys(), read.getKeys()));
+        assertTrue(Arrays.equals(log.getTimeDeltas(), read.getTimeDeltas()));
+
+        CalcKeyLog decoded = CalcKeyLog.fromByteArray(log.toByteArray());
+        assertTrue(Arrays.equals(log.getKeys(), decoded.getKeys()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncated() {
+        CalcKeyLog log = new CalcKeyLog();
+        log.append(3, 300);
+        byte[] bytes = log.toByteArray();
+        CalcKeyLog.fromByteArray(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test
+    public void replay() {
+        CalcSettings settings = new CalcSettings().setKeyLogRecorded(true);
+        CalcDriver driver = new CalcDriver(settings);
+        int[] keys = {7, CalcPresenter.KEY_MULTIPLY, 6, CalcPresenter.KEY_EQUAL};
+        CalcDriver.Result result = driver.run(keys);
+        assertEquals(new BigDecimal("42"), result.getValue());
+
+        CalcKeyLog log = driver.getKeyLog();
+        assertTrue(Arrays.equals(keys, log.getKeys()));
+        assertEquals(result.getValue(), new CalcDriver(settings).run(log).getValue());
+    }
+
+}
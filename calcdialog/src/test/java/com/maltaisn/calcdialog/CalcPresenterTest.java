@@ -0,0 +1,302 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CalcPresenterTest {
+
+    private final QueueExecutor evalExecutor = new QueueExecutor();
+    private final QueueExecutor mainExecutor = new QueueExecutor();
+
+    @Test
+    public void pendingTextShown() {
+        RecordingView view = new RecordingView(createSettings(true));
+        CalcPresenter presenter = attach(view);
+
+        type(presenter, "1÷3=");
+        assertTrue(view.pendingTextShown);
+        assertEquals(RecordingView.PENDING_TEXT, view.valueText);
+
+        runAll();
+        assertEquals(typeSync("1÷3="), view.valueText);
+
+        presenter.detach();
+    }
+
+    @Test
+    public void resultOfKeysTypedWhilePending() {
+        // Each operator starts an evaluation cancelled by the next digit.
+        RecordingView view = new RecordingView(createSettings(true));
+        CalcPresenter presenter = attach(view);
+
+        type(presenter, "1÷3+2=");
+        assertEquals(RecordingView.PENDING_TEXT, view.valueText);
+        runAll();
+        assertEquals(typeSync("1÷3+2="), view.valueText);
+        assertEquals("2.33333333", view.valueText);
+        assertEquals(typeSyncExpression("1÷3+2="), view.expressionText);
+
+        presenter.detach();
+    }
+
+    @Test
+    public void staleResultDiscarded() {
+        RecordingView view = new RecordingView(createSettings(true));
+        CalcPresenter presenter = attach(view);
+
+        // The result of 1÷3 is posted, but the digit is typed before it's applied.
+        type(presenter, "1÷3+");
+        evalExecutor.runAll();
+        type(presenter, "2");
+        mainExecutor.runAll();
+        assertEquals("2", view.valueText);
+
+        type(presenter, "=");
+        runAll();
+        assertEquals(typeSync("1÷3+2="), view.valueText);
+
+        presenter.detach();
+    }
+
+    @Test
+    public void keysDeferredAndReplayedInOrder() {
+        RecordingView view = new RecordingView(createSettings(true));
+        CalcPresenter presenter = attach(view);
+
+        // The operator uses the result of the evaluation started by +,
+        // so it's deferred, and all keys after it too.
+        type(presenter, "1÷3+");
+        String expression = view.expressionText;
+        type(presenter, "×2−5=");
+        assertEquals(expression, view.expressionText);
+        assertEquals("3", view.valueText);
+
+        runAll();
+        assertEquals(typeSync("1÷3+×2−5="), view.valueText);
+        assertEquals(typeSyncExpression("1÷3+×2−5="), view.expressionText);
+
+        presenter.detach();
+    }
+
+    @Test
+    public void onlyFinalEvaluationDefersDigits() {
+        RecordingView view = new RecordingView(createSettings(true));
+        CalcPresenter presenter = attach(view);
+
+        // Not final: the digit is applied now and the evaluation is cancelled.
+        type(presenter, "1÷3+");
+        type(presenter, "2");
+        assertEquals("2", view.valueText);
+        runAll();
+        assertEquals("2", view.valueText);
+
+        // Final: the digit waits for the result of the equal button.
+        type(presenter, "=5");
+        assertEquals(RecordingView.PENDING_TEXT, view.valueText);
+        runAll();
+        assertEquals(typeSync("1÷3+2=5"), view.valueText);
+        assertEquals(typeSyncExpression("1÷3+2=5"), view.expressionText);
+
+        presenter.detach();
+    }
+
+    @Test
+    public void functionBtnsShown() {
+        RecordingView view = new RecordingView(new CalcSettings());
+        CalcPresenter presenter = new CalcPresenter();
+        presenter.attach(view, null);
+        assertFalse(view.functionBtnsVisible);
+        assertFalse(view.convertBtnVisible);
+        presenter.detach();
+
+        view = new RecordingView(new CalcSettings().setFunctionBtnsShown(true));
+        presenter = new CalcPresenter();
+        presenter.attach(view, null);
+        assertTrue(view.functionBtnsVisible);
+        assertFalse(view.convertBtnVisible);
+        presenter.detach();
+    }
+
+    private static CalcSettings createSettings(boolean inBackground) {
+        return new CalcSettings()
+                .setExpressionShown(true)
+                .setEvaluatedInBackground(inBackground);
+    }
+
+    private CalcPresenter attach(RecordingView view) {
+        CalcPresenter presenter = new CalcPresenter();
+        presenter.setExecutors(evalExecutor, mainExecutor);
+        presenter.attach(view, null);
+        return presenter;
+    }
+
+    private static void type(CalcPresenter presenter, String keys) {
+        for (int i = 0; i < keys.length(); i++) {
+            presenter.onKey(CalcPresenter.getKeyForChar(keys.charAt(i)));
+        }
+    }
+
+    /**
+     * Run evaluations and apply their results until none is left,
+     * since replaying deferred keys can start another evaluation.
+     */
+    private void runAll() {
+        while (!evalExecutor.isEmpty() || !mainExecutor.isEmpty()) {
+            evalExecutor.runAll();
+            mainExecutor.runAll();
+        }
+    }
+
+    private static RecordingView typeSyncView(String keys) {
+        RecordingView view = new RecordingView(createSettings(false));
+        CalcPresenter presenter = new CalcPresenter();
+        presenter.attach(view, null);
+        type(presenter, keys);
+        presenter.detach();
+        return view;
+    }
+
+    /** Get the value displayed after typing keys with evaluation on the calling thread. */
+    private static String typeSync(String keys) {
+        return typeSyncView(keys).valueText;
+    }
+
+    /** Get the expression displayed after typing keys with evaluation on the calling thread. */
+    private static String typeSyncExpression(String keys) {
+        return typeSyncView(keys).expressionText;
+    }
+
+    /**
+     * Executor queuing tasks until the test runs them.
+     */
+    private static class QueueExecutor implements Executor {
+
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            tasks.add(command);
+        }
+
+        boolean isEmpty() {
+            return tasks.isEmpty();
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove().run();
+            }
+        }
+    }
+
+    /**
+     * View recording the displayed texts and whether the function buttons were shown.
+     */
+    private static class RecordingView implements CalcPresenterView {
+
+        private final CalcSettings settings;
+
+        static final String PENDING_TEXT = "pending";
+
+        boolean pendingTextShown;
+        String valueText;
+        String expressionText;
+        boolean functionBtnsVisible;
+        boolean convertBtnVisible;
+
+        RecordingView(CalcSettings settings) {
+            this.settings = settings;
+        }
+
+        @NonNull
+        @Override
+        public CalcSettings getSettings() {
+            return settings;
+        }
+
+        @Override
+        public void exit() {}
+
+        @Override
+        public void sendValueResult(@Nullable BigDecimal value) {}
+
+        @Override
+        public void setExpressionVisible(boolean visible) {}
+
+        @Override
+        public void setAnswerBtnVisible(boolean visible) {}
+
+        @Override
+        public void setSignBtnVisible(boolean visible) {}
+
+        @Override
+        public void setFunctionBtnsVisible(boolean functionsVisible, boolean convertVisible) {
+            functionBtnsVisible = functionsVisible;
+            convertBtnVisible = convertVisible;
+        }
+
+        @Override
+        public void setDecimalSepBtnEnabled(boolean enabled) {}
+
+        @Override
+        public void updateExpression(@NonNull String text) {
+            expressionText = text;
+        }
+
+        @Override
+        public void showStatisticCount(long count) {}
+
+        @Override
+        public void updateCurrentValue(@Nullable String text) {
+            valueText = text;
+        }
+
+        @Override
+        public void setPreviewVisible(boolean visible) {}
+
+        @Override
+        public void updatePreview(@Nullable String text) {}
+
+        @Override
+        public void showErrorText(int error) {
+            valueText = "error " + error;
+        }
+
+        @Override
+        public void showAnswerText() {}
+
+        @Override
+        public void showPendingText() {
+            pendingTextShown = true;
+            valueText = PENDING_TEXT;
+        }
+    }
+
+}
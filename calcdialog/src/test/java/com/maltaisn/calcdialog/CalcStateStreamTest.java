@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CalcStateStreamTest {
+
+    private final NumberFormat nbFormat = NumberFormat.getInstance(Locale.US);
+
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    /** Executor which runs tasks only when asked. */
+    private final Executor queueExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    private final List<CalcStateStream.State> received = new ArrayList<>();
+
+    private final CalcStateStream.Subscriber subscriber = new CalcStateStream.Subscriber() {
+        @Override
+        public void onStateChanged(CalcStateStream.State state) {
+            received.add(state);
+        }
+    };
+
+    @Test
+    public void conflateStates() {
+        CalcStateStream stream = new CalcStateStream();
+        stream.subscribe(subscriber, queueExecutor);
+
+        Expression expr = new Expression();
+        stream.publish(new BigDecimal("1"), expr.snapshot(), false, CalcPresenter.ERROR_NONE, nbFormat);
+        stream.publish(new BigDecimal("12"), expr.snapshot(), false, CalcPresenter.ERROR_NONE, nbFormat);
+        expr.addNumber(new BigDecimal("12"));
+        expr.addOperator(Expression.Operator.ADD);
+        stream.publish(null, expr.snapshot(), false, CalcPresenter.ERROR_NONE, nbFormat);
+
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+
+        assertEquals(1, received.size());
+        assertNull(received.get(0).getValue());
+        assertEquals("12 +", received.get(0).getExpression());
+    }
+
+    @Test
+    public void publishChangesOnly() {
+        CalcStateStream stream = new CalcStateStream();
+        stream.subscribe(subscriber, queueExecutor);
+
+        Expression expr = new Expression();
+        stream.publish(new BigDecimal("5"), expr.snapshot(), false, CalcPresenter.ERROR_NONE, nbFormat);
+        tasks.remove(0).run();
+        stream.publish(new BigDecimal("5"), expr.snapshot(), false, CalcPresenter.ERROR_NONE, nbFormat);
+        assertEquals(0, tasks.size());
+
+        stream.publish(new BigDecimal("5"), expr.snapshot(), false, CalcPresenter.ERROR_DIV_ZERO, nbFormat);
+        tasks.remove(0).run();
+        assertEquals(2, received.size());
+        assertNull(received.get(1).getValue());
+        assertEquals(CalcPresenter.ERROR_DIV_ZERO, received.get(1).getError());
+    }
+
+    @Test
+    public void lastStateOnSubscribe() {
+        CalcStateStream stream = new CalcStateStream();
+        CalcStateStream.Subscriber other = new CalcStateStream.Subscriber() {
+            @Override
+            public void onStateChanged(CalcStateStream.State state) {
+            }
+        };
+        stream.subscribe(other, queueExecutor);
+        stream.publish(new BigDecimal("3.5"), new Expression().snapshot(), false,
+                CalcPresenter.ERROR_NONE, nbFormat);
+        tasks.clear();
+
+        stream.subscribe(subscriber, queueExecutor);
+        tasks.remove(0).run();
+        assertEquals(new BigDecimal("3.5"), received.get(0).getValue());
+
+        stream.unsubscribe(subscriber);
+        stream.unsubscribe(other);
+        stream.publish(BigDecimal.ONE, new Expression().snapshot(), false,
+                CalcPresenter.ERROR_NONE, nbFormat);
+        assertEquals(0, tasks.size());
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the time taken by the different evaluation methods of {@link Expression}.
+ * This isn't run with the unit tests, run the main method directly.
+ */
+public class EvaluationBenchmark {
+
+    /** Time during which expressions are evaluated before measuring, so that the JIT is done. */
+    private static final long WARMUP_NANOS = 2000000000L;
+    private static final long MEASURE_NANOS = 2000000000L;
+
+    private static final Expression.Operator[] ALL_OPERATORS = {Expression.Operator.ADD,
+            Expression.Operator.SUBTRACT, Expression.Operator.MULTIPLY, Expression.Operator.DIVIDE};
+    private static final Expression.Operator[] NO_DIVISION_OPERATORS = {Expression.Operator.ADD,
+            Expression.Operator.SUBTRACT, Expression.Operator.MULTIPLY};
+
+    public static void main(String[] args) {
+        for (int size : new int[]{10, 100, 1000}) {
+            Expression[] exprs = new Expression[100];
+            Expression[] noDivisionExprs = new Expression[100];
+            Random random = new Random(size);
+            for (int i = 0; i < exprs.length; i++) {
+                exprs[i] = createExpression(random, size, ALL_OPERATORS, 100000);
+                noDivisionExprs[i] = createExpression(random, size, NO_DIVISION_OPERATORS, 100);
+            }
+
+            System.out.println("Expressions of " + size + " numbers:");
+            benchmark("  Rounded", exprs, false);
+            benchmark("  Exact", exprs, true);
+            benchmark("  Without division", noDivisionExprs, false);
+        }
+    }
+
+    /**
+     * Create a random expression like the ones typed by users: short decimal numbers
+     * with a few digits after the decimal point and operators from {@code ops}.
+     * Powers aren't used, chains of them overflow. Operands after the first one are
+     * below {@code bound}, products of small operands stay in a long for longer.
+     */
+    static Expression createExpression(Random random, int size,
+                                       Expression.Operator[] ops, int bound) {
+        Expression expr = new Expression();
+        expr.addNumber(BigDecimal.valueOf(random.nextInt(100000), random.nextInt(4)));
+        for (int i = 1; i < size; i++) {
+            expr.addOperator(ops[random.nextInt(ops.length)]);
+            expr.addNumber(BigDecimal.valueOf(random.nextInt(bound) + 1, random.nextInt(4)));
+        }
+        return expr;
+    }
+
+    private static void benchmark(String name, Expression[] exprs, boolean exact) {
+        long best = Long.MAX_VALUE;
+        long measureStart = System.nanoTime() + WARMUP_NANOS;
+        long end = measureStart + MEASURE_NANOS;
+        long start;
+        while ((start = System.nanoTime()) < end) {
+            for (Expression expr : exprs) {
+                if (exact) {
+                    expr.evaluateExact(true, 8, RoundingMode.HALF_UP);
+                } else {
+                    expr.evaluate(true, 8, RoundingMode.HALF_UP);
+                }
+            }
+            long time = System.nanoTime() - start;
+            if (start >= measureStart) {
+                best = Math.min(best, time);
+            }
+        }
+        System.out.println(String.format(Locale.US, "%s: %.1f us per expression",
+                name, best / 1000.0 / exprs.length));
+    }
+
+}
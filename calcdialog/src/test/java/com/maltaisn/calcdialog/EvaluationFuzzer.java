@@ -0,0 +1,795 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import com.maltaisn.calcdialog.Expression.Operator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.channels.Channels;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Differential fuzzer checking that all evaluation engines agree with the reference on
+ * random expressions, scales and rounding modes, including divisions by zero, invalid powers,
+ * values that overflow a long and huge values computed with {@link HighPrecisionMath}.
+ * The reference is a simple evaluation with {@link BigDecimal} operations, or with fractions
+ * for exact evaluation, and {@link Expression#evaluate(boolean, int, RoundingMode)} for
+ * expressions with powers. Failing cases are shrunk to a minimal expression still failing,
+ * and can be reproduced with their seed.
+ * <p>
+ * This isn't run with the unit tests, run the main method directly, with the number of
+ * cases and the first seed as arguments. {@link EvaluationFuzzerTest} runs a few cases.
+ * Parallelism of {@link HighPrecisionMath} must be set to at least 2 for its parallel
+ * multiplication and Newton division to be used.
+ */
+public class EvaluationFuzzer {
+
+    private static final RoundingMode[] ROUNDING_MODES = {RoundingMode.UP, RoundingMode.DOWN,
+            RoundingMode.CEILING, RoundingMode.FLOOR, RoundingMode.HALF_UP,
+            RoundingMode.HALF_DOWN, RoundingMode.HALF_EVEN};
+
+    private static final BigDecimal[] EXPONENTS = {BigDecimal.ZERO, BigDecimal.ONE,
+            new BigDecimal("2"), new BigDecimal("3"), new BigDecimal("-1"),
+            new BigDecimal("0.5"), new BigDecimal("-0.5"), new BigDecimal("1.5")};
+
+    private static final String ERROR_DIV_ZERO = "division by zero";
+    private static final String ERROR_INVALID = "invalid operation";
+    private static final String ERROR_ANY = "error";
+
+    /** The engines compared to the reference. */
+    static final List<Engine> ENGINES = Collections.unmodifiableList(Arrays.asList(
+            new Engine("sequential") {
+                @Override
+                boolean supports(Case c) {
+                    return !c.exact;
+                }
+
+                @Override
+                BigDecimal compute(Case c) {
+                    return c.toExpression().snapshot().evaluateSequential(
+                            c.priority, c.scale, c.roundingMode);
+                }
+            },
+            new Engine("parallel") {
+                @Override
+                boolean supports(Case c) {
+                    return !c.exact && (c.priority || !c.hasProductOrQuotient());
+                }
+
+                @Override
+                BigDecimal compute(Case c) {
+                    return c.toExpression().snapshot().evaluateParallel(
+                            c.priority, c.scale, c.roundingMode, 4);
+                }
+            },
+            new Engine("exact") {
+                @Override
+                boolean supports(Case c) {
+                    return c.exact;
+                }
+
+                @Override
+                BigDecimal compute(Case c) {
+                    return c.toExpression().evaluateExact(c.priority, c.scale, c.roundingMode);
+                }
+            },
+            new Engine("incremental") {
+                @Override
+                BigDecimal compute(Case c) {
+                    // Evaluate with each number before it's added, like the result preview.
+                    Expression expr = new Expression();
+                    BigDecimal result = null;
+                    for (int i = 0; i < c.numbers.length; i++) {
+                        result = expr.evaluateWith(c.numbers[i], c.priority, c.exact,
+                                c.scale, c.roundingMode);
+                        if (i < c.operators.length) {
+                            expr.addNumber(c.numbers[i]);
+                            expr.addOperator(c.operators[i]);
+                        }
+                    }
+                    return result;
+                }
+            },
+            new Engine("formula") {
+                @Override
+                boolean supports(Case c) {
+                    BigDecimal first = c.numbers[0];
+                    return first.setScale(Math.max(0, first.scale())).unscaledValue().bitLength() < Long.SIZE;
+                }
+
+                @Override
+                BigDecimal compute(Case c) {
+                    // The first number is the value of a column, the others are constants.
+                    StringBuilder sb = new StringBuilder("{0}");
+                    for (int i = 0; i < c.operators.length; i++) {
+                        sb.append(' ').append(c.operators[i].symbol).append(' ');
+                        sb.append(c.numbers[i + 1].toPlainString());
+                    }
+                    CalcFormula formula = new CalcFormula(sb.toString(), c.priority, c.exact,
+                            c.scale, c.roundingMode);
+
+                    int columnScale = Math.max(0, c.numbers[0].scale());
+                    long[][] columns = {{c.numbers[0].setScale(columnScale).unscaledValue().longValue()}};
+                    long[] result = new long[1];
+                    formula.evaluate(columns, columnScale, result, c.scale);
+                    return (result[0] == CalcFormula.ERROR_VALUE) ? null : BigDecimal.valueOf(result[0], c.scale);
+                }
+
+                @Override
+                Outcome getExpected(Outcome reference, Case c) {
+                    // Results are rounded to the scale, and must fit in a long.
+                    if (reference.value == null) {
+                        return new Outcome(null, ERROR_ANY);
+                    }
+                    BigDecimal value = reference.value.setScale(c.scale, c.roundingMode);
+                    if (value.unscaledValue().bitLength() >= Long.SIZE
+                            || value.unscaledValue().longValue() == CalcFormula.ERROR_VALUE) {
+                        return new Outcome(null, ERROR_ANY);
+                    }
+                    return new Outcome(value, null);
+                }
+            },
+            new Engine("batch") {
+                @Override
+                BigDecimal compute(Case c) {
+                    // Operators alternate between their symbol and their ASCII form.
+                    StringBuilder sb = new StringBuilder(c.numbers[0].toPlainString());
+                    for (int i = 0; i < c.operators.length; i++) {
+                        Operator op = c.operators[i];
+                        sb.append(' ').append(i % 2 == 0 ? op.symbol : ASCII_OPERATORS[op.ordinal()]);
+                        sb.append(' ').append(c.numbers[i + 1].toPlainString());
+                    }
+                    sb.append('\n');
+
+                    String line;
+                    try {
+                        CalcBatchEvaluator evaluator = new CalcBatchEvaluator(createFormat(c),
+                                c.priority, c.exact);
+                        evaluator.setThreadCount(1);
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        evaluator.evaluate(Channels.newChannel(new ByteArrayInputStream(
+                                sb.toString().getBytes("UTF-8"))), Channels.newChannel(out));
+                        line = out.toString("UTF-8").trim();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    if (line.equals(CalcBatchEvaluator.ERROR_DIV_ZERO)) {
+                        throw new ArithmeticException("Division by zero");
+                    } else if (line.equals(CalcBatchEvaluator.ERROR_INVALID)) {
+                        throw new BigDecimalMath.DomainException("Invalid operation");
+                    }
+                    return parse(c, line);
+                }
+
+                @Override
+                Outcome getExpected(Outcome reference, Case c) {
+                    // Results are formatted with the scale and the rounding mode.
+                    if (reference.value == null) {
+                        return reference;
+                    }
+                    return new Outcome(parse(c, createFormat(c).format(reference.value)), null);
+                }
+            }
+    ));
+
+    private static final char[] ASCII_OPERATORS = {'+', '-', '*', '/', '^'};
+
+    private static DecimalFormat createFormat(Case c) {
+        DecimalFormat format = new DecimalFormat("0", DecimalFormatSymbols.getInstance(Locale.US));
+        format.setMaximumFractionDigits(c.scale);
+        format.setRoundingMode(c.roundingMode);
+        format.setParseBigDecimal(true);
+        return format;
+    }
+
+    private static BigDecimal parse(Case c, String str) {
+        Number value;
+        try {
+            value = createFormat(c).parse(str);
+        } catch (ParseException e) {
+            value = null;
+        }
+        if (!(value instanceof BigDecimal)) {
+            throw new IllegalStateException("Invalid result: " + str);
+        }
+        return (BigDecimal) value;
+    }
+
+    public static void main(String[] args) {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : System.currentTimeMillis();
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Fuzzing " + count + " cases from seed " + seed
+                + " on " + threads + " threads.");
+        HighPrecisionMath.setParallelism(Math.max(2, threads));
+        List<String> failures = run(seed, count, threads, ENGINES, 10);
+        for (String failure : failures) {
+            System.out.println(failure);
+        }
+        if (failures.isEmpty()) {
+            System.out.println("All engines agree with the reference.");
+        } else {
+            System.out.println(failures.size() + " failures, run a single case with arguments 1 <seed>.");
+        }
+    }
+
+    /**
+     * Check cases with consecutive seeds, in parallel.
+     * @param firstSeed   Seed of the first case.
+     * @param count       Number of cases checked.
+     * @param threads     Number of threads.
+     * @param engines     Engines compared to the reference.
+     * @param maxFailures Number of failures after which checking stops.
+     * @return The reports of the failing cases, in the order of their seed.
+     */
+    static List<String> run(final long firstSeed, final int count, int threads,
+                            final List<Engine> engines, final int maxFailures) {
+        final AtomicInteger next = new AtomicInteger();
+        final List<long[]> failedSeeds = Collections.synchronizedList(new ArrayList<long[]>());
+        final List<String> reports = Collections.synchronizedList(new ArrayList<String>());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    int i;
+                    while (failedSeeds.size() < maxFailures && (i = next.getAndIncrement()) < count) {
+                        long seed = firstSeed + i;
+                        String report = check(generate(seed), engines);
+                        if (report != null) {
+                            synchronized (reports) {
+                                failedSeeds.add(new long[]{seed, reports.size()});
+                                reports.add(report);
+                            }
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Sort the reports by seed, so that the output doesn't depend on the threads.
+        List<long[]> sorted = new ArrayList<>(failedSeeds);
+        Collections.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        List<String> result = new ArrayList<>();
+        for (long[] failure : sorted) {
+            result.add(reports.get((int) failure[1]));
+        }
+        return result;
+    }
+
+    /**
+     * Generate a random case from a seed.
+     */
+    static Case generate(long seed) {
+        Random random = new Random(seed);
+        boolean priority = random.nextBoolean();
+        boolean exact = random.nextInt(3) == 0;
+        int scale = (random.nextInt(10) == 0) ? 15 + random.nextInt(20) : random.nextInt(13);
+        RoundingMode roundingMode = ROUNDING_MODES[random.nextInt(ROUNDING_MODES.length)];
+
+        // Sometimes a long expression of small numbers, to be evaluated in parallel.
+        boolean isLong = !exact && random.nextInt(100) == 0;
+        if (!isLong && random.nextInt(100) == 0) {
+            return generateHuge(random, seed, priority, exact, scale, roundingMode);
+        }
+        int size = isLong ? 600 + random.nextInt(1000) : 1 + random.nextInt(12);
+
+        BigDecimal[] numbers = new BigDecimal[size];
+        Operator[] operators = new Operator[size - 1];
+        numbers[0] = isLong ? generateSmallNumber(random) : generateNumber(random);
+        for (int i = 1; i < size; i++) {
+            int r = random.nextInt(100);
+            Operator op;
+            if (r < 30) {
+                op = Operator.ADD;
+            } else if (r < 50) {
+                op = Operator.SUBTRACT;
+            } else if (r < 72) {
+                op = Operator.MULTIPLY;
+            } else if (r < 95 || exact || isLong) {
+                // Exact powers aren't compared, there's no simple reference for them.
+                op = Operator.DIVIDE;
+            } else {
+                op = Operator.POWER;
+            }
+            operators[i - 1] = op;
+            if (op == Operator.POWER) {
+                numbers[i] = EXPONENTS[random.nextInt(EXPONENTS.length)];
+            } else {
+                numbers[i] = isLong ? generateSmallNumber(random) : generateNumber(random);
+            }
+        }
+        return new Case(seed, priority, exact, scale, roundingMode, numbers, operators);
+    }
+
+    /**
+     * Generate a case with a few numbers big enough for products to be computed in parallel,
+     * and for quotients of products to use Newton division.
+     */
+    private static Case generateHuge(Random random, long seed, boolean priority, boolean exact,
+                                     int scale, RoundingMode roundingMode) {
+        int size = 2 + random.nextInt(4);
+        BigDecimal[] numbers = new BigDecimal[size];
+        Operator[] operators = new Operator[size - 1];
+        for (int i = 0; i < size; i++) {
+            BigInteger unscaled = new BigInteger(HighPrecisionMath.PARALLEL_MULTIPLY_BITS
+                    + random.nextInt(HighPrecisionMath.PARALLEL_MULTIPLY_BITS), random);
+            numbers[i] = new BigDecimal(random.nextBoolean() ? unscaled : unscaled.negate(),
+                    random.nextInt(20));
+            if (i == 0) {
+                continue;
+            } else if (random.nextInt(10) < 8) {
+                // Alternate products and quotients, so that the dividends are huge products.
+                operators[i - 1] = (i % 2 == 1) ? Operator.MULTIPLY : Operator.DIVIDE;
+            } else {
+                operators[i - 1] = random.nextBoolean() ? Operator.ADD : Operator.SUBTRACT;
+            }
+        }
+        return new Case(seed, priority, exact, scale, roundingMode, numbers, operators);
+    }
+
+    private static BigDecimal generateNumber(Random random) {
+        switch (random.nextInt(20)) {
+            case 0:
+            case 1:
+                return BigDecimal.valueOf(0, random.nextInt(3));
+            case 2: {
+                // Close to the limits of a long, on both sides.
+                BigDecimal n = new BigDecimal(BigInteger.valueOf(Long.MAX_VALUE)
+                        .add(BigInteger.valueOf(random.nextInt(2000) - 1000)), random.nextInt(19));
+                return random.nextBoolean() ? n : n.negate();
+            }
+            case 3:
+                return new BigDecimal(new BigInteger(64 + random.nextInt(100), random), random.nextInt(30));
+            case 4:
+                return BigDecimal.valueOf(1 + random.nextInt(9), 15 + random.nextInt(15));
+            default:
+                return generateSmallNumber(random);
+        }
+    }
+
+    private static BigDecimal generateSmallNumber(Random random) {
+        return BigDecimal.valueOf(random.nextInt(2000000) - 1000000, random.nextInt(5));
+    }
+
+    /**
+     * Compare the engines supporting a case to the reference.
+     * @return The report of the first engine disagreeing, with the case shrunk,
+     * or null if all engines agree.
+     */
+    static String check(Case c, List<Engine> engines) {
+        for (Engine engine : engines) {
+            if (engine.supports(c) && disagrees(c, engine)) {
+                Case min = shrink(c, engine);
+                Outcome reference = getReference(min);
+                return "Seed " + c.seed + ": " + engine.name + " disagrees with the reference\n"
+                        + "  case: " + min + "\n"
+                        + "  expected: " + engine.getExpected(reference, min) + "\n"
+                        + "  " + engine.name + ": " + engine.evaluate(min);
+            }
+        }
+        return null;
+    }
+
+    private static boolean disagrees(Case c, Engine engine) {
+        Outcome expected = engine.getExpected(getReference(c), c);
+        return !engine.evaluate(c).matches(expected);
+    }
+
+    /**
+     * Get the reference outcome of a case.
+     */
+    static Outcome getReference(final Case c) {
+        return new Engine("reference") {
+            @Override
+            BigDecimal compute(Case c) {
+                if (c.exact) {
+                    return evaluateFractions(c);
+                } else if (c.hasPower()) {
+                    return c.toExpression().evaluate(c.priority, c.scale, c.roundingMode);
+                }
+                return evaluateDecimals(c);
+            }
+        }.evaluate(c);
+    }
+
+    /**
+     * Evaluate a case without powers with {@link BigDecimal} operations,
+     * rounding quotients to the scale.
+     */
+    private static BigDecimal evaluateDecimals(Case c) {
+        BigDecimal sum = BigDecimal.ZERO;
+        BigDecimal term = c.numbers[0];
+        boolean negative = false;
+        for (int i = 0; i < c.operators.length; i++) {
+            Operator op = c.operators[i];
+            BigDecimal n = c.numbers[i + 1];
+            if (op == Operator.MULTIPLY) {
+                term = term.multiply(n);
+            } else if (op == Operator.DIVIDE) {
+                term = term.divide(n, c.scale, c.roundingMode);
+            } else if (c.priority) {
+                sum = negative ? sum.subtract(term) : sum.add(term);
+                term = n;
+                negative = (op == Operator.SUBTRACT);
+            } else {
+                term = (op == Operator.ADD) ? term.add(n) : term.subtract(n);
+            }
+        }
+        return (negative ? sum.subtract(term) : sum.add(term)).stripTrailingZeros();
+    }
+
+    /**
+     * Evaluate a case without powers exactly with fractions. If there's a division,
+     * the result is rounded once, unless it's an integer.
+     */
+    private static BigDecimal evaluateFractions(Case c) {
+        BigInteger[] sum = {BigInteger.ZERO, BigInteger.ONE};
+        BigInteger[] term = toFraction(c.numbers[0]);
+        boolean negative = false;
+        for (int i = 0; i < c.operators.length; i++) {
+            Operator op = c.operators[i];
+            BigInteger[] f = toFraction(c.numbers[i + 1]);
+            if (op == Operator.MULTIPLY) {
+                term = reduce(term[0].multiply(f[0]), term[1].multiply(f[1]));
+            } else if (op == Operator.DIVIDE) {
+                if (f[0].signum() == 0) {
+                    throw new ArithmeticException("Division by zero");
+                }
+                term = reduce(term[0].multiply(f[1]), term[1].multiply(f[0]));
+            } else if (c.priority) {
+                sum = add(sum, term, negative);
+                term = f;
+                negative = (op == Operator.SUBTRACT);
+            } else {
+                term = add(term, f, op == Operator.SUBTRACT);
+            }
+        }
+        BigInteger[] result = add(sum, term, negative);
+        if (!c.hasQuotient()) {
+            // Without division, the result is a decimal number and isn't rounded.
+            return new BigDecimal(result[0]).divide(new BigDecimal(result[1]));
+        } else if (result[1].equals(BigInteger.ONE)) {
+            return new BigDecimal(result[0]);
+        }
+        return new BigDecimal(result[0]).divide(new BigDecimal(result[1]),
+                c.scale, c.roundingMode).stripTrailingZeros();
+    }
+
+    private static BigInteger[] toFraction(BigDecimal n) {
+        if (n.scale() <= 0) {
+            return new BigInteger[]{n.toBigIntegerExact(), BigInteger.ONE};
+        }
+        return reduce(n.unscaledValue(), BigInteger.TEN.pow(n.scale()));
+    }
+
+    private static BigInteger[] add(BigInteger[] a, BigInteger[] b, boolean subtract) {
+        BigInteger n = b[0].multiply(a[1]);
+        return reduce(subtract ? a[0].multiply(b[1]).subtract(n) : a[0].multiply(b[1]).add(n),
+                a[1].multiply(b[1]));
+    }
+
+    private static BigInteger[] reduce(BigInteger num, BigInteger den) {
+        if (den.signum() < 0) {
+            num = num.negate();
+            den = den.negate();
+        }
+        BigInteger gcd = num.gcd(den);
+        if (gcd.signum() != 0 && !gcd.equals(BigInteger.ONE)) {
+            num = num.divide(gcd);
+            den = den.divide(gcd);
+        }
+        return new BigInteger[]{num, den};
+    }
+
+    /**
+     * Shrink a case on which an engine disagrees with the reference: numbers are removed
+     * and simplified, operators replaced and the scale lowered, as long as it still fails.
+     * Every change makes the case smaller, so shrinking always ends.
+     */
+    static Case shrink(Case c, Engine engine) {
+        boolean shrunk = true;
+        while (shrunk) {
+            shrunk = false;
+            for (Case candidate : getShrinkCandidates(c)) {
+                if (engine.supports(candidate) && disagrees(candidate, engine)) {
+                    c = candidate;
+                    shrunk = true;
+                    break;
+                }
+            }
+        }
+        return c;
+    }
+
+    private static List<Case> getShrinkCandidates(Case c) {
+        List<Case> candidates = new ArrayList<>();
+        int size = c.numbers.length;
+
+        // Remove ranges of numbers, big ones first for long expressions.
+        for (int length = size / 2; length >= 1; length /= 2) {
+            for (int start = 0; start + length <= size && length < size; start += length) {
+                candidates.add(c.withoutNumbers(start, length));
+            }
+        }
+
+        // Simplify numbers.
+        for (int i = 0; i < size; i++) {
+            BigDecimal n = c.numbers[i];
+            List<BigDecimal> simpler = new ArrayList<>();
+            simpler.add(BigDecimal.ZERO);
+            simpler.add(BigDecimal.ONE);
+            simpler.add(n.abs());
+            // Remove half of the digits, then a quarter and so on, so that huge numbers
+            // are shrunk in a few steps.
+            for (int digits = n.precision() / 2; digits > 1; digits /= 2) {
+                simpler.add(n.movePointLeft(digits).setScale(n.scale(), RoundingMode.DOWN));
+            }
+            if (n.scale() > 0) {
+                simpler.add(n.setScale(n.scale() - 1, RoundingMode.DOWN));
+            } else {
+                simpler.add(n.movePointLeft(1).setScale(0, RoundingMode.DOWN));
+            }
+            for (BigDecimal s : simpler) {
+                if (getSize(s) < getSize(n)) {
+                    candidates.add(c.withNumber(i, s));
+                }
+            }
+        }
+
+        // Replace operators, powers last since they have the highest ordinal.
+        for (int i = 0; i < size - 1; i++) {
+            for (Operator op : Operator.values()) {
+                if (op.ordinal() < c.operators[i].ordinal()) {
+                    candidates.add(c.withOperator(i, op));
+                }
+            }
+        }
+
+        // Lower the scale.
+        for (int scale : new int[]{0, c.scale / 2, c.scale - 1}) {
+            if (scale >= 0 && scale < c.scale) {
+                candidates.add(c.withScale(scale));
+            }
+        }
+        return candidates;
+    }
+
+    private static int getSize(BigDecimal n) {
+        return n.unscaledValue().abs().toString().length() + Math.abs(n.scale())
+                + (n.signum() < 0 ? 1 : 0);
+    }
+
+    /**
+     * An expression and its evaluation settings.
+     */
+    static final class Case {
+
+        final long seed;
+        final boolean priority;
+        final boolean exact;
+        final int scale;
+        final RoundingMode roundingMode;
+        final BigDecimal[] numbers;
+
+        /** Operators between the numbers, one less than the numbers. */
+        final Operator[] operators;
+
+        Case(long seed, boolean priority, boolean exact, int scale, RoundingMode roundingMode,
+             BigDecimal[] numbers, Operator[] operators) {
+            this.seed = seed;
+            this.priority = priority;
+            this.exact = exact;
+            this.scale = scale;
+            this.roundingMode = roundingMode;
+            this.numbers = numbers;
+            this.operators = operators;
+        }
+
+        Expression toExpression() {
+            Expression expr = new Expression();
+            expr.addNumber(numbers[0]);
+            for (int i = 0; i < operators.length; i++) {
+                expr.addOperator(operators[i]);
+                expr.addNumber(numbers[i + 1]);
+            }
+            return expr;
+        }
+
+        boolean hasProductOrQuotient() {
+            for (Operator op : operators) {
+                if (op != Operator.ADD && op != Operator.SUBTRACT) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean hasPower() {
+            for (Operator op : operators) {
+                if (op == Operator.POWER) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean hasQuotient() {
+            for (Operator op : operators) {
+                if (op == Operator.DIVIDE) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Case withoutNumbers(int start, int length) {
+            // Remove the numbers and the operators before them, or after for the first number.
+            int opStart = (start == 0) ? 0 : start - 1;
+            BigDecimal[] n = new BigDecimal[numbers.length - length];
+            Operator[] ops = new Operator[operators.length - length];
+            System.arraycopy(numbers, 0, n, 0, start);
+            System.arraycopy(numbers, start + length, n, start, numbers.length - start - length);
+            System.arraycopy(operators, 0, ops, 0, opStart);
+            System.arraycopy(operators, opStart + length, ops, opStart, operators.length - opStart - length);
+            return new Case(seed, priority, exact, scale, roundingMode, n, ops);
+        }
+
+        Case withNumber(int index, BigDecimal number) {
+            BigDecimal[] n = numbers.clone();
+            n[index] = number;
+            return new Case(seed, priority, exact, scale, roundingMode, n, operators);
+        }
+
+        Case withOperator(int index, Operator operator) {
+            Operator[] ops = operators.clone();
+            ops[index] = operator;
+            return new Case(seed, priority, exact, scale, roundingMode, numbers, ops);
+        }
+
+        Case withScale(int scale) {
+            return new Case(seed, priority, exact, scale, roundingMode, numbers, operators);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(priority ? "priority" : "no priority");
+            sb.append(exact ? ", exact" : "");
+            sb.append(", scale ").append(scale).append(", ").append(roundingMode).append(": ");
+            sb.append(numbers[0].toPlainString());
+            for (int i = 0; i < operators.length; i++) {
+                sb.append(' ').append(operators[i].symbol).append(' ');
+                sb.append(numbers[i + 1].toPlainString());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Result of an evaluation, either a value or an error.
+     */
+    static final class Outcome {
+
+        final BigDecimal value;
+        final String error;
+
+        Outcome(BigDecimal value, String error) {
+            this.value = value;
+            this.error = error;
+        }
+
+        /**
+         * Values match if they're numerically equal. Errors match if they're the same,
+         * or if one of them doesn't tell which error occurred.
+         */
+        boolean matches(Outcome expected) {
+            if (value != null) {
+                return expected.value != null && value.compareTo(expected.value) == 0;
+            }
+            return expected.value == null && (error.equals(expected.error)
+                    || error.equals(ERROR_ANY) || expected.error.equals(ERROR_ANY));
+        }
+
+        @Override
+        public String toString() {
+            return (value != null) ? value.toPlainString() : error;
+        }
+    }
+
+    /**
+     * An evaluation engine compared to the reference.
+     */
+    abstract static class Engine {
+
+        final String name;
+
+        Engine(String name) {
+            this.name = name;
+        }
+
+        boolean supports(Case c) {
+            return true;
+        }
+
+        /**
+         * @return The result, or null if an error occurred without knowing which.
+         * @throws ArithmeticException If a division by zero occurred.
+         */
+        abstract BigDecimal compute(Case c);
+
+        /**
+         * Get the outcome expected from this engine for the outcome of the reference.
+         */
+        Outcome getExpected(Outcome reference, Case c) {
+            return reference;
+        }
+
+        final Outcome evaluate(Case c) {
+            try {
+                BigDecimal value = compute(c);
+                return (value != null) ? new Outcome(value, null) : new Outcome(null, ERROR_ANY);
+            } catch (BigDecimalMath.DomainException e) {
+                return new Outcome(null, ERROR_INVALID);
+            } catch (ArithmeticException e) {
+                return new Outcome(null, ERROR_DIV_ZERO);
+            } catch (RuntimeException e) {
+                // Engines must never fail otherwise.
+                return new Outcome(null, "crash: " + e);
+            }
+        }
+    }
+
+}
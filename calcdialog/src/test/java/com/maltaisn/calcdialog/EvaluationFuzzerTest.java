@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import com.maltaisn.calcdialog.Expression.Operator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class EvaluationFuzzerTest {
+
+    @Before
+    public void setUp() {
+        HighPrecisionMath.setParallelism(4);
+    }
+
+    @After
+    public void tearDown() {
+        HighPrecisionMath.setParallelism(0);
+    }
+
+    @Test
+    public void enginesAgree() {
+        List<String> failures = EvaluationFuzzer.run(0, 3000, 2, EvaluationFuzzer.ENGINES, 5);
+        assertEquals(Collections.<String>emptyList(), failures);
+    }
+
+    @Test
+    public void hugeNumbersGenerated() {
+        int count = 0;
+        for (int seed = 0; seed < 3000; seed++) {
+            BigDecimal first = EvaluationFuzzer.generate(seed).numbers[0];
+            if (first.unscaledValue().bitLength() >= HighPrecisionMath.PARALLEL_MULTIPLY_BITS) {
+                count++;
+            }
+        }
+        assertTrue(count >= 10);
+    }
+
+    @Test
+    public void sameCaseForSeed() {
+        assertEquals(EvaluationFuzzer.generate(42).toString(), EvaluationFuzzer.generate(42).toString());
+    }
+
+    @Test
+    public void shrinkFailingCase() {
+        // Engine that is wrong as soon as there's a division.
+        EvaluationFuzzer.Engine broken = new EvaluationFuzzer.Engine("broken") {
+            @Override
+            BigDecimal compute(EvaluationFuzzer.Case c) {
+                BigDecimal result = c.toExpression().evaluate(c.priority, c.scale, c.roundingMode);
+                for (Operator op : c.operators) {
+                    if (op == Operator.DIVIDE) {
+                        return result.add(BigDecimal.ONE);
+                    }
+                }
+                return result;
+            }
+        };
+        EvaluationFuzzer.Case c = new EvaluationFuzzer.Case(0, true, false, 8, RoundingMode.HALF_UP,
+                new BigDecimal[]{new BigDecimal("12.5"), new BigDecimal("-3"), new BigDecimal("7.25"),
+                        new BigDecimal("4"), new BigDecimal("100")},
+                new Operator[]{Operator.MULTIPLY, Operator.SUBTRACT, Operator.DIVIDE, Operator.ADD});
+
+        EvaluationFuzzer.Case min = EvaluationFuzzer.shrink(c, broken);
+        assertEquals(2, min.numbers.length);
+        assertEquals(Operator.DIVIDE, min.operators[0]);
+        assertEquals(0, min.scale);
+
+        String report = EvaluationFuzzer.check(c, Collections.singletonList(broken));
+        assertNotNull(report);
+        assertTrue(report, report.contains("broken disagrees"));
+    }
+
+}
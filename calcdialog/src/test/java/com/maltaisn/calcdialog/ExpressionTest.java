@@ -20,17 +20,21 @@ import org.junit.Test;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 public class ExpressionTest {
 
     @Test
     public void twoSum() {
         Expression expr = new Expression();
-        expr.numbers.add(new BigDecimal("12.1"));
-        expr.operators.add(Expression.Operator.ADD);
-        expr.numbers.add(new BigDecimal("-24.8"));
+        expr.addNumber(new BigDecimal("12.1"));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal("-24.8"));
 
         BigDecimal result = expr.evaluate(false, 8, RoundingMode.HALF_UP);
         assertEquals(result, new BigDecimal("-12.7"));
@@ -39,11 +43,11 @@ public class ExpressionTest {
     @Test
     public void sumAndMultiply() {
         Expression expr = new Expression();
-        expr.numbers.add(new BigDecimal("3"));
-        expr.operators.add(Expression.Operator.ADD);
-        expr.numbers.add(new BigDecimal("4"));
-        expr.operators.add(Expression.Operator.MULTIPLY);
-        expr.numbers.add(new BigDecimal("5"));
+        expr.addNumber(new BigDecimal("3"));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal("4"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addNumber(new BigDecimal("5"));
 
         BigDecimal result1 = expr.evaluate(false, 8, RoundingMode.HALF_UP);
         assertEquals(result1, new BigDecimal("35"));
@@ -55,19 +59,19 @@ public class ExpressionTest {
     @Test
     public void longExpression() {
         Expression expr = new Expression();
-        expr.numbers.add(new BigDecimal("-1"));
-        expr.operators.add(Expression.Operator.DIVIDE);
-        expr.numbers.add(new BigDecimal("6"));
-        expr.operators.add(Expression.Operator.ADD);
-        expr.numbers.add(new BigDecimal("5"));
-        expr.operators.add(Expression.Operator.MULTIPLY);
-        expr.numbers.add(new BigDecimal("12"));
-        expr.operators.add(Expression.Operator.DIVIDE);
-        expr.numbers.add(new BigDecimal("3"));
-        expr.operators.add(Expression.Operator.DIVIDE);
-        expr.numbers.add(new BigDecimal("8"));
-        expr.operators.add(Expression.Operator.SUBTRACT);
-        expr.numbers.add(new BigDecimal("-10"));
+        expr.addNumber(new BigDecimal("-1"));
+        expr.addOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(new BigDecimal("6"));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal("5"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addNumber(new BigDecimal("12"));
+        expr.addOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(new BigDecimal("3"));
+        expr.addOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(new BigDecimal("8"));
+        expr.addOperator(Expression.Operator.SUBTRACT);
+        expr.addNumber(new BigDecimal("-10"));
 
         BigDecimal result1 = expr.evaluate(false, 8, RoundingMode.HALF_UP);
         assertEquals(result1, new BigDecimal("12.41666667"));
@@ -79,12 +83,264 @@ public class ExpressionTest {
     @Test
     public void stripTrailingZeroes() {
         Expression expr = new Expression();
-        expr.numbers.add(new BigDecimal("1"));
-        expr.operators.add(Expression.Operator.DIVIDE);
-        expr.numbers.add(new BigDecimal("8"));
+        expr.addNumber(new BigDecimal("1"));
+        expr.addOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(new BigDecimal("8"));
 
         BigDecimal result = expr.evaluate(false, 8, RoundingMode.HALF_UP);
         assertEquals(result, new BigDecimal("0.125"));
     }
 
+    @Test
+    public void parallelSameAsSequential() {
+        Random random = new Random(31);
+        // Chains of powers of random numbers would overflow.
+        Expression.Operator[] ops = {Expression.Operator.ADD, Expression.Operator.SUBTRACT,
+                Expression.Operator.MULTIPLY, Expression.Operator.DIVIDE};
+        for (int n = 0; n < 20; n++) {
+            Expression expr = new Expression();
+            expr.addNumber(BigDecimal.valueOf(random.nextInt(2000) - 1000, random.nextInt(3)));
+            for (int i = 1; i < ExpressionSnapshot.PARALLEL_THRESHOLD * 2; i++) {
+                expr.addOperator(ops[random.nextInt(ops.length)]);
+                expr.addNumber(BigDecimal.valueOf(random.nextInt(2000) + 1, random.nextInt(3)));
+            }
+
+            RoundingMode roundingMode = (n % 2 == 0) ? RoundingMode.FLOOR : RoundingMode.HALF_EVEN;
+            BigDecimal expected = expr.snapshot().evaluateSequential(true, 8, roundingMode);
+            assertEquals(expected, expr.snapshot().evaluateParallel(true, 8, roundingMode, 4));
+            assertEquals(expected, expr.evaluate(true, 8, roundingMode));
+        }
+    }
+
+    @Test
+    public void longOverflowSameAsBigDecimal() {
+        // Operands close to the limits of a long, with various scales, so that sums and
+        // products overflow a long and scales must be aligned.
+        Random random = new Random(7);
+        Expression.Operator[] ops = {Expression.Operator.ADD, Expression.Operator.SUBTRACT,
+                Expression.Operator.MULTIPLY, Expression.Operator.DIVIDE};
+        for (int n = 0; n < 500; n++) {
+            Expression expr = new Expression();
+            BigDecimal expected = randomOperand(random);
+            expr.addNumber(expected);
+            for (int i = 0; i < 6; i++) {
+                Expression.Operator op = ops[random.nextInt(ops.length)];
+                BigDecimal operand = randomOperand(random);
+                if (op == Expression.Operator.DIVIDE && operand.signum() == 0) {
+                    operand = BigDecimal.ONE;
+                }
+                expr.addOperator(op);
+                expr.addNumber(operand);
+                if (op == Expression.Operator.ADD) {
+                    expected = expected.add(operand);
+                } else if (op == Expression.Operator.SUBTRACT) {
+                    expected = expected.subtract(operand);
+                } else if (op == Expression.Operator.MULTIPLY) {
+                    expected = expected.multiply(operand);
+                } else {
+                    expected = expected.divide(operand, 8, RoundingMode.HALF_UP);
+                }
+            }
+            assertEquals(expected.stripTrailingZeros(), expr.evaluate(false, 8, RoundingMode.HALF_UP));
+        }
+    }
+
+    private static BigDecimal randomOperand(Random random) {
+        long value = (random.nextInt(3) == 0) ? random.nextLong() : random.nextInt(1000000);
+        return BigDecimal.valueOf(value, random.nextInt(20) - 2);
+    }
+
+    @Test
+    public void parallelDivideByZero() {
+        Expression expr = new Expression();
+        expr.addNumber(BigDecimal.ONE);
+        for (int i = 2; i < ExpressionSnapshot.PARALLEL_THRESHOLD * 2; i++) {
+            expr.addOperator(Expression.Operator.ADD);
+            expr.addNumber(BigDecimal.ONE);
+        }
+        expr.addOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(BigDecimal.ZERO);
+
+        try {
+            expr.snapshot().evaluateParallel(true, 8, RoundingMode.HALF_UP, 4);
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void bigNumbers() {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("123456789012345678901234567890.5"));
+        expr.addOperator(Expression.Operator.SUBTRACT);
+        expr.addNumber(new BigDecimal("-0.25"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addNumber(new BigDecimal("1e40"));
+
+        assertEquals(new BigDecimal("1e40"), expr.removeLastNumber());
+        expr.removeLastOperator();
+        assertEquals(new BigDecimal("-0.25"), expr.getNumber(1));
+
+        BigDecimal result = expr.evaluate(false, 8, RoundingMode.HALF_UP);
+        assertEquals(new BigDecimal("123456789012345678901234567890.75"), result);
+    }
+
+    @Test
+    public void exactDivision() {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("1"));
+        expr.addOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(new BigDecimal("3"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addNumber(new BigDecimal("3"));
+
+        assertEquals(new BigDecimal("0.99999999"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+        assertEquals(BigDecimal.ONE, expr.evaluateExact(true, 8, RoundingMode.HALF_UP));
+    }
+
+    @Test
+    public void exactLongExpression() {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("-1"));
+        expr.addOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(new BigDecimal("6"));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal("5"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addNumber(new BigDecimal("12"));
+        expr.addOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(new BigDecimal("7"));
+        expr.addOperator(Expression.Operator.SUBTRACT);
+        expr.addNumber(new BigDecimal("-10.5"));
+
+        // (-1/6 + 5) * 12 / 7 + 10.5 = 18.78571428...
+        assertEquals(new BigDecimal("18.78571429"), expr.evaluateExact(false, 8, RoundingMode.HALF_UP));
+        // -1/6 + 60/7 + 10.5 = 18.90476190...
+        assertEquals(new BigDecimal("18.9047619"), expr.evaluateExact(true, 8, RoundingMode.HALF_UP));
+    }
+
+    @Test
+    public void exactManyTerms() {
+        // 1 ÷ 1 × 1 - 1 ÷ 2 × 2 + 1 ÷ 3 × 3 - ... + 1 ÷ 37 × 37, terms are summed pairwise.
+        Expression expr = new Expression();
+        expr.addNumber(BigDecimal.ONE);
+        for (int i = 1; i <= 37; i++) {
+            if (i > 1) {
+                expr.addOperator(i % 2 == 0 ? Expression.Operator.SUBTRACT : Expression.Operator.ADD);
+                expr.addNumber(BigDecimal.ONE);
+            }
+            expr.addOperator(Expression.Operator.DIVIDE);
+            expr.addNumber(BigDecimal.valueOf(i));
+            expr.addOperator(Expression.Operator.MULTIPLY);
+            expr.addNumber(BigDecimal.valueOf(i));
+        }
+
+        assertEquals(BigDecimal.ONE, expr.evaluateExact(true, 8, RoundingMode.HALF_UP));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void exactDivideByZero() {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(new BigDecimal("0.0"));
+        expr.evaluateExact(true, 8, RoundingMode.HALF_UP);
+    }
+
+    @Test
+    public void snapshotUnchangedByModification() {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal("3"));
+        ExpressionSnapshot snap = expr.snapshot();
+        assertSame(snap, expr.snapshot());
+
+        expr.removeLastNumber();
+        expr.setLastOperator(Expression.Operator.MULTIPLY);
+        expr.addNumber(new BigDecimal("4"));
+        expr.addOperator(Expression.Operator.SUBTRACT);
+        expr.addNumber(new BigDecimal("1"));
+
+        assertEquals(new BigDecimal("5"), snap.evaluate(true, 8, RoundingMode.HALF_UP));
+        assertEquals(new BigDecimal("7"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+        assertEquals(2, snap.getNumberCount());
+    }
+
+    @Test
+    public void snapshotEquality() {
+        Expression expr1 = new Expression();
+        expr1.addNumber(new BigDecimal("1.5"));
+        expr1.addOperator(Expression.Operator.DIVIDE);
+        expr1.addNumber(new BigDecimal("1e30"));
+
+        Expression expr2 = new Expression();
+        expr2.addNumber(new BigDecimal("1.5"));
+        expr2.addOperator(Expression.Operator.DIVIDE);
+        expr2.addNumber(new BigDecimal("1e30"));
+
+        assertEquals(expr1.snapshot(), expr2.snapshot());
+        assertEquals(expr1.snapshot().hashCode(), expr2.snapshot().hashCode());
+
+        expr2.setLastOperator(Expression.Operator.MULTIPLY);
+        assertNotEquals(expr1.snapshot(), expr2.snapshot());
+    }
+
+    @Test
+    public void powerPriority() {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addNumber(new BigDecimal("3"));
+        expr.addOperator(Expression.Operator.POWER);
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.POWER);
+        expr.addNumber(new BigDecimal("0.5"));
+
+        // 2 * (3 ^ 2) ^ 0.5 = 6, and ((2 * 3) ^ 2) ^ 0.5 = 6 too.
+        assertEquals(new BigDecimal("6"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+        assertEquals(new BigDecimal("6"), expr.evaluateExact(true, 8, RoundingMode.HALF_UP));
+        assertEquals(new BigDecimal("6"), expr.evaluate(false, 8, RoundingMode.HALF_UP));
+
+        expr.setLastOperator(Expression.Operator.ADD);
+        assertEquals(new BigDecimal("18.5"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+        assertEquals(new BigDecimal("36.5"), expr.evaluate(false, 8, RoundingMode.HALF_UP));
+        assertEquals(new BigDecimal("18.5"), expr.snapshot().evaluateParallel(true, 8, RoundingMode.HALF_UP, 4));
+    }
+
+    @Test
+    public void evaluateWithSameAsEvaluate() {
+        Random random = new Random(37);
+        Expression.Operator[] ops = Expression.Operator.values();
+        for (int n = 0; n < 8; n++) {
+            boolean priority = (n % 2 == 0);
+            boolean exact = (n / 2 % 2 == 0);
+            Expression expr = new Expression();
+            for (int i = 0; i < 60; i++) {
+                if (expr.getNumberCount() > 1 && random.nextInt(5) == 0) {
+                    // Undo the last number sometimes.
+                    expr.removeLastOperator();
+                    expr.removeLastNumber();
+                    expr.removeLastOperator();
+                    expr.addOperator(ops[random.nextInt(ops.length)]);
+                    continue;
+                }
+                BigDecimal value = BigDecimal.valueOf(random.nextInt(2000) - 1000, random.nextInt(3));
+                BigDecimal preview = expr.evaluateWith(value, priority, exact, 8, RoundingMode.HALF_EVEN);
+
+                expr.addNumber(value);
+                BigDecimal expected = null;
+                try {
+                    expected = exact ? expr.evaluateExact(priority, 8, RoundingMode.HALF_EVEN)
+                            : expr.evaluate(priority, 8, RoundingMode.HALF_EVEN);
+                } catch (ArithmeticException e) {
+                    // Division by zero
+                }
+                assertEquals(expected, preview);
+                expr.addOperator(ops[random.nextInt(ops.length)]);
+            }
+        }
+    }
+
 }
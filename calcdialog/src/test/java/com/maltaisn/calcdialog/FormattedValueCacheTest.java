@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FormattedValueCacheTest {
+
+    private final NumberFormat nbFormat = NumberFormat.getInstance(Locale.US);
+
+    @Before
+    public void setUp() {
+        FormattedValueCache.clear();
+        FormattedValueCache.setMaxSize(FormattedValueCache.DEFAULT_MAX_SIZE);
+        FormattedValueCache.resetCounters();
+    }
+
+    @Test
+    public void hitAndMiss() {
+        BigDecimal value = new BigDecimal("1234.5");
+        assertNull(FormattedValueCache.get(value, 1, false, nbFormat));
+        FormattedValueCache.put(value, 1, false, nbFormat, "1,234.5");
+        assertEquals("1,234.5", FormattedValueCache.get(new BigDecimal("1234.5"), 1, false, nbFormat));
+
+        // Different scale, flag or format are different entries, equal formats aren't.
+        assertNull(FormattedValueCache.get(value, 2, false, nbFormat));
+        assertNull(FormattedValueCache.get(value, 1, true, nbFormat));
+        assertNull(FormattedValueCache.get(value, 1, false, NumberFormat.getInstance(Locale.GERMANY)));
+        assertEquals("1,234.5", FormattedValueCache.get(value, 1, false, NumberFormat.getInstance(Locale.US)));
+
+        assertEquals(2, CalcInstrumentation.getFormatCacheHitCount());
+        assertEquals(4, CalcInstrumentation.getFormatCacheMissCount());
+    }
+
+    @Test
+    public void formatChanged() {
+        BigDecimal value = new BigDecimal("0.125");
+        FormattedValueCache.put(value, -1, false, nbFormat, nbFormat.format(value));
+        nbFormat.setMaximumFractionDigits(1);
+        assertNull(FormattedValueCache.get(value, -1, false, nbFormat));
+    }
+
+    @Test
+    public void symbolsChanged() {
+        DecimalFormat format = (DecimalFormat) NumberFormat.getInstance(Locale.US);
+        BigDecimal value = new BigDecimal("1.5");
+        FormattedValueCache.put(value, -1, false, format, format.format(value));
+        format.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(Locale.FRANCE));
+        assertNull(FormattedValueCache.get(value, -1, false, format));
+    }
+
+    @Test
+    public void evictEldest() {
+        FormattedValueCache.setMaxSize(2);
+        FormattedValueCache.put(BigDecimal.ONE, -1, false, nbFormat, "1");
+        FormattedValueCache.put(BigDecimal.TEN, -1, false, nbFormat, "10");
+        FormattedValueCache.get(BigDecimal.ONE, -1, false, nbFormat);
+        FormattedValueCache.put(BigDecimal.ZERO, -1, false, nbFormat, "0");
+
+        assertEquals("1", FormattedValueCache.get(BigDecimal.ONE, -1, false, nbFormat));
+        assertNull(FormattedValueCache.get(BigDecimal.TEN, -1, false, nbFormat));
+    }
+
+    @Test
+    public void expressionFormat() {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("1000"));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal("1000"));
+        expr.addOperator(Expression.Operator.ADD);
+        assertEquals("1,000 + 1,000 +", expr.format(nbFormat));
+        assertEquals(1, CalcInstrumentation.getFormatCacheHitCount());
+    }
+
+    @Test
+    public void expressionTooLargeNotCached() {
+        Expression expr = new Expression();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i <= FormattedValueCache.DEFAULT_MAX_SIZE; i++) {
+            BigDecimal n = BigDecimal.valueOf(1000 + i);
+            expr.addNumber(n);
+            expr.addOperator(Expression.Operator.ADD);
+            expected.append(nbFormat.format(n)).append(" + ");
+        }
+        expected.setLength(expected.length() - 1);
+
+        assertEquals(expected.toString(), expr.format(nbFormat));
+        assertEquals(expected.toString(), expr.format(nbFormat));
+        assertEquals(0, CalcInstrumentation.getFormatCacheHitCount());
+        assertEquals(0, CalcInstrumentation.getFormatCacheMissCount());
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HighPrecisionMathTest {
+
+    private final Random random = new Random(0);
+
+    @Before
+    public void setUp() {
+        HighPrecisionMath.setParallelism(4);
+    }
+
+    @After
+    public void tearDown() {
+        HighPrecisionMath.setParallelism(0);
+    }
+
+    @Test
+    public void multiply() {
+        for (int i = 0; i < 5; i++) {
+            BigInteger x = new BigInteger(100000 + random.nextInt(100000), random);
+            BigInteger y = new BigInteger(20000 + random.nextInt(100000), random);
+            if (i % 2 == 1) {
+                y = y.negate();
+            }
+            assertEquals(x.multiply(y), HighPrecisionMath.multiply(x, y));
+            assertEquals(x.multiply(y), HighPrecisionMath.multiply(y, x));
+        }
+    }
+
+    @Test
+    public void multiplyDecimalScaleOverflow() {
+        BigInteger x = new BigInteger(100000, random);
+        BigInteger y = new BigInteger(100000, random);
+        int[][] scales = {{Integer.MAX_VALUE, 1}, {Integer.MIN_VALUE, -1}};
+        for (int[] scale : scales) {
+            BigDecimal a = new BigDecimal(x, scale[0]);
+            BigDecimal b = new BigDecimal(y, scale[1]);
+            try {
+                a.multiply(b);
+                fail();
+            } catch (ArithmeticException e) {
+                // Expected, like below
+            }
+            try {
+                HighPrecisionMath.multiply(a, b);
+                fail();
+            } catch (ArithmeticException e) {
+                // Expected
+            }
+        }
+        // Scales of opposite signs can't overflow.
+        BigDecimal a = new BigDecimal(x, Integer.MAX_VALUE);
+        BigDecimal b = new BigDecimal(y, Integer.MIN_VALUE + 1);
+        assertEquals(a.multiply(b), HighPrecisionMath.multiply(a, b));
+    }
+
+    @Test
+    public void divideAndRemainder() {
+        for (int i = 0; i < 10; i++) {
+            BigInteger n = new BigInteger(60000 + random.nextInt(60000), random);
+            BigInteger d = new BigInteger(20000 + random.nextInt(20000), random);
+            if (i % 2 == 1) {
+                n = n.negate();
+            }
+            if (i % 3 == 1) {
+                d = d.negate();
+            }
+            assertArrayEquals(n.divideAndRemainder(d), HighPrecisionMath.divideAndRemainder(n, d));
+            // Again with the cached reciprocal.
+            n = n.shiftRight(100);
+            assertArrayEquals(n.divideAndRemainder(d), HighPrecisionMath.divideAndRemainder(n, d));
+        }
+    }
+
+    @Test
+    public void divideExact() {
+        BigInteger d = new BigInteger(30000, random);
+        BigInteger q = new BigInteger(30000, random);
+        BigInteger[] qr = HighPrecisionMath.divideAndRemainder(q.multiply(d), d);
+        assertEquals(q, qr[0]);
+        assertEquals(BigInteger.ZERO, qr[1]);
+    }
+
+    @Test
+    public void divideDecimal() {
+        BigDecimal a = new BigDecimal(new BigInteger(50000, random), 3000);
+        BigDecimal b = new BigDecimal(new BigInteger(20000, random), 1000);
+        for (RoundingMode mode : RoundingMode.values()) {
+            if (mode != RoundingMode.UNNECESSARY) {
+                assertEquals(a.divide(b, 12000, mode), HighPrecisionMath.divide(a, b, 12000, mode));
+                assertEquals(a.negate().divide(b, 12000, mode),
+                        HighPrecisionMath.divide(a.negate(), b, 12000, mode));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NotationFormatterTest {
+
+    private final NumberFormat nbFormat = NumberFormatCache.getDefault(Locale.US);
+
+    @Test
+    public void integerDigits() {
+        assertEquals(0, NotationFormatter.getIntegerDigits(BigDecimal.ZERO));
+        assertEquals(0, NotationFormatter.getIntegerDigits(new BigDecimal("0.0012")));
+        assertEquals(3, NotationFormatter.getIntegerDigits(new BigDecimal("-123.45")));
+        assertEquals(12, NotationFormatter.getIntegerDigits(new BigDecimal("1.2E11")));
+    }
+
+    @Test
+    public void belowThreshold() {
+        assertNull(NotationFormatter.format(new BigDecimal("123456"), nbFormat,
+                CalcNotation.SCIENTIFIC, 6));
+        assertNull(NotationFormatter.format(new BigDecimal("1234567"), nbFormat,
+                CalcNotation.PLAIN, 6));
+    }
+
+    @Test
+    public void scientific() {
+        assertEquals("1.2345678E6", NotationFormatter.format(new BigDecimal("1234567.8"),
+                nbFormat, CalcNotation.SCIENTIFIC, 6));
+        assertEquals("-1.23456789E9", NotationFormatter.format(new BigDecimal("-1234567890"),
+                nbFormat, CalcNotation.SCIENTIFIC, 6));
+        // Rounding carries into a new digit.
+        assertEquals("1E10", NotationFormatter.format(new BigDecimal("9999999999.9"),
+                nbFormat, CalcNotation.SCIENTIFIC, 6));
+    }
+
+    @Test
+    public void engineering() {
+        assertEquals("123.456789E9", NotationFormatter.format(new BigDecimal("123456789000"),
+                nbFormat, CalcNotation.ENGINEERING, 6));
+        assertEquals("1.5E6", NotationFormatter.format(new BigDecimal("1500000"),
+                nbFormat, CalcNotation.ENGINEERING, 6));
+    }
+
+    @Test
+    public void hugeValue() {
+        BigDecimal value = new BigDecimal(BigInteger.TEN.pow(100000).multiply(BigInteger.valueOf(15)));
+        assertEquals("1.5E100001", NotationFormatter.format(value,
+                nbFormat, CalcNotation.SCIENTIFIC, 15));
+    }
+
+    @Test
+    public void suffix() {
+        DecimalFormat format = new DecimalFormat("#,##0.## $", new DecimalFormatSymbols(Locale.US));
+        assertEquals("1.5E9 $", NotationFormatter.format(new BigDecimal("1500000000"),
+                format, CalcNotation.SCIENTIFIC, 6));
+        assertEquals(" $", format.getPositiveSuffix());
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class NumberFormatCacheTest {
+
+    @Test
+    public void defaultFormat() {
+        NumberFormat format = NumberFormatCache.getDefault(Locale.US);
+        assertEquals(Integer.MAX_VALUE, format.getMaximumIntegerDigits());
+        assertEquals(8, format.getMaximumFractionDigits());
+        assertEquals("1,234,567,890,123.12345679",
+                format.format(new BigDecimal("1234567890123.123456789")));
+    }
+
+    @Test
+    public void copiesAreIndependent() {
+        NumberFormat format1 = NumberFormatCache.getDefault(Locale.US);
+        NumberFormat format2 = NumberFormatCache.getDefault(Locale.US);
+        assertNotSame(format1, format2);
+        assertTrue(NumberFormatCache.isDefault(format1, Locale.US));
+
+        format1.setMaximumFractionDigits(2);
+        assertEquals(8, format2.getMaximumFractionDigits());
+        assertFalse(NumberFormatCache.isDefault(format1, Locale.US));
+    }
+
+    @Test
+    public void copyKeepsAttributes() {
+        DecimalFormat format = (DecimalFormat) NumberFormatCache.get(Locale.US, "0.##", RoundingMode.HALF_UP);
+        format.setMultiplier(1000);
+        format.setParseIntegerOnly(true);
+        DecimalFormat copy = (DecimalFormat) NumberFormatCache.copy(format);
+        assertNotSame(format, copy);
+        assertEquals(1000, copy.getMultiplier());
+        assertTrue(copy.isParseIntegerOnly());
+        assertEquals("1234.5", copy.format(new BigDecimal("1.2345")));
+    }
+
+    @Test
+    public void pattern() {
+        NumberFormat format = NumberFormatCache.get(Locale.FRANCE, "#,##0.00 $", RoundingMode.DOWN);
+        assertEquals(RoundingMode.DOWN, format.getRoundingMode());
+        assertEquals("1,99 $", format.format(new BigDecimal("1.999")));
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StatisticsAccumulatorTest {
+
+    @Test
+    public void statistics() {
+        StatisticsAccumulator stats = new StatisticsAccumulator();
+        assertEquals(BigDecimal.ZERO, stats.get(CalcStatistic.COUNT, 8, RoundingMode.HALF_EVEN));
+        assertNull(stats.get(CalcStatistic.MEAN, 8, RoundingMode.HALF_EVEN));
+
+        for (String value : new String[]{"2", "4", "4", "4", "5", "5", "7", "9"}) {
+            stats.add(new BigDecimal(value));
+        }
+        assertEquals(new BigDecimal("8"), stats.get(CalcStatistic.COUNT, 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("4E+1"), stats.get(CalcStatistic.SUM, 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("5"), stats.get(CalcStatistic.MEAN, 8, RoundingMode.HALF_EVEN));
+        // Sum of squared deviations is 32, divided by 7.
+        assertEquals(new BigDecimal("4.57142857"), stats.get(CalcStatistic.VARIANCE, 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("4.57142858"), stats.get(CalcStatistic.VARIANCE, 8, RoundingMode.CEILING));
+        assertEquals(new BigDecimal("2.13808994"), stats.get(CalcStatistic.STANDARD_DEVIATION, 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("2"), stats.get(CalcStatistic.MIN, 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("9"), stats.get(CalcStatistic.MAX, 8, RoundingMode.HALF_EVEN));
+
+        stats.clear();
+        stats.add(new BigDecimal("-1.5"));
+        assertEquals(BigDecimal.ZERO, stats.get(CalcStatistic.VARIANCE, 8, RoundingMode.HALF_EVEN));
+        assertEquals(new BigDecimal("-1.5"), stats.get(CalcStatistic.MIN, 8, RoundingMode.HALF_EVEN));
+    }
+
+    @Test
+    public void standardDeviationRounding() {
+        // Standard deviation is about 5.8E-10, the variance is too small to be kept
+        // with 18 digits but the square root must still round up.
+        StatisticsAccumulator stats = new StatisticsAccumulator();
+        stats.add(new BigDecimal("1"));
+        stats.add(new BigDecimal("1"));
+        stats.add(new BigDecimal("1.000000001"));
+        assertEquals(new BigDecimal("1E-8"), stats.get(CalcStatistic.STANDARD_DEVIATION, 8, RoundingMode.UP));
+        assertEquals(new BigDecimal("1E-8"), stats.get(CalcStatistic.STANDARD_DEVIATION, 8, RoundingMode.CEILING));
+        assertEquals(BigDecimal.ZERO, stats.get(CalcStatistic.STANDARD_DEVIATION, 8, RoundingMode.HALF_UP));
+        assertEquals(new BigDecimal("5.8E-10"), stats.get(CalcStatistic.STANDARD_DEVIATION, 11, RoundingMode.HALF_UP));
+    }
+
+    @Test
+    public void noCancellation() {
+        // Large values with a small spread, which lose all precision in floating point.
+        StatisticsAccumulator stats = new StatisticsAccumulator();
+        Random random = new Random(0);
+        BigDecimal offset = new BigDecimal("1e15");
+        BigDecimal sum = BigDecimal.ZERO;
+        BigDecimal[] values = new BigDecimal[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = offset.add(BigDecimal.valueOf(random.nextInt(1000), 3));
+            sum = sum.add(values[i]);
+            stats.add(values[i]);
+        }
+
+        // Two-pass variance, computed exactly.
+        BigDecimal mean = sum.divide(BigDecimal.valueOf(values.length));
+        BigDecimal squares = BigDecimal.ZERO;
+        for (BigDecimal value : values) {
+            BigDecimal d = value.subtract(mean);
+            squares = squares.add(d.multiply(d));
+        }
+        BigDecimal expected = squares.divide(BigDecimal.valueOf(values.length - 1), 10, RoundingMode.HALF_UP);
+        assertEquals(expected.stripTrailingZeros(), stats.get(CalcStatistic.VARIANCE, 10, RoundingMode.HALF_UP));
+    }
+
+}